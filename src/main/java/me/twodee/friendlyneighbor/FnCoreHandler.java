@@ -1,7 +1,10 @@
 package me.twodee.friendlyneighbor;
 
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
+import me.twodee.friendlyneighbor.component.FnCoreConfig;
 import me.twodee.friendlyneighbor.dto.*;
 import me.twodee.friendlyneighbor.entity.Post;
 import me.twodee.friendlyneighbor.entity.UserLocation;
@@ -10,15 +13,27 @@ import me.twodee.friendlyneighbor.service.Feed;
 import me.twodee.friendlyneighbor.service.Notifier;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 @Slf4j
 public class FnCoreHandler extends FnCoreGrpc.FnCoreImplBase {
+    private static final int DEFAULT_CHUNK_SIZE = 100;
+    private static final int MAX_CHUNK_SIZE = 1000;
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final int DEFAULT_BULK_BATCH_SIZE = 500;
+    private static final int MAX_BATCH_USERS = 100;
+    // Immutable, so every successful call can share the same one
+    private static final FnCoreGenerated.Result SUCCESS = FnCoreGenerated.Result.newBuilder().setSuccess(true).build();
     private final Discovery discovery;
     private final Feed feed;
     private Notifier notifier;
+    private int bulkBatchSize = DEFAULT_BULK_BATCH_SIZE;
 
     /**
      * @param discovery
@@ -30,20 +45,82 @@ public class FnCoreHandler extends FnCoreGrpc.FnCoreImplBase {
         this.feed = feed;
     }
 
-    @Inject
     FnCoreHandler(Discovery discovery, Feed feed, Notifier notifier) {
         this.discovery = discovery;
         this.feed = feed;
         this.notifier = notifier;
     }
 
+    @Inject
+    FnCoreHandler(Discovery discovery, Feed feed, Notifier notifier, FnCoreConfig config) {
+        this(discovery, feed, notifier);
+        if (config.getLocationBulkBatchSize() > 0) {
+            this.bulkBatchSize = config.getLocationBulkBatchSize();
+        }
+    }
+
     @Override
     public void saveUserLocation(FnCoreGenerated.RegistrationRequest request, StreamObserver<FnCoreGenerated.Result> responseObserver) {
-        ResultObject result = discovery.saveUserLocation(buildSearchLocation(request));
+        UserLocation location = buildSearchLocation(request);
+        // The previous location is only read when a move can bring the timeline in line
+        UserLocationResult previous = feed.isRematerializing() ? discovery.getUserLocation(location.getId()) : null;
+        ResultObject result = discovery.saveUserLocation(location);
+        if (!result.hasErrors() && previous != null && !previous.hasErrors()) {
+            feed.refreshAfterMove(previous.userLocation, location);
+        }
         responseObserver.onNext(buildResult(result));
         responseObserver.onCompleted();
     }
 
+    /**
+     * Inbound messages are requested one batch at a time and the next batch is only asked for once the
+     * previous one is written, so a client can't push faster than the store takes the writes.
+     */
+    @Override
+    public StreamObserver<FnCoreGenerated.RegistrationRequest> saveUserLocations(StreamObserver<FnCoreGenerated.BulkSaveResult> responseObserver) {
+        ServerCallStreamObserver<FnCoreGenerated.BulkSaveResult> observer =
+                (ServerCallStreamObserver<FnCoreGenerated.BulkSaveResult>) responseObserver;
+        observer.disableAutoInboundFlowControl();
+        observer.request(bulkBatchSize);
+
+        return new StreamObserver<FnCoreGenerated.RegistrationRequest>() {
+            private final List<UserLocation> batch = new ArrayList<>(bulkBatchSize);
+            private final Map<String, FnCoreGenerated.Result> results = new HashMap<>();
+
+            @Override
+            public void onNext(FnCoreGenerated.RegistrationRequest request) {
+                batch.add(buildSearchLocation(request));
+                if (batch.size() >= bulkBatchSize) {
+                    flush();
+                    observer.request(bulkBatchSize);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.warn("Bulk location save aborted by client after " + results.size() + " users", t);
+            }
+
+            @Override
+            public void onCompleted() {
+                flush();
+                observer.onNext(FnCoreGenerated.BulkSaveResult.newBuilder()
+                                        .putAllResults(results)
+                                        .setMetaResult(SUCCESS)
+                                        .build());
+                observer.onCompleted();
+            }
+
+            private void flush() {
+                if (batch.isEmpty()) {
+                    return;
+                }
+                discovery.saveUserLocations(batch).forEach((id, result) -> results.put(id, buildResult(result)));
+                batch.clear();
+            }
+        };
+    }
+
     @Override
     public void deleteUserLocation(FnCoreGenerated.UserIdentifier request, StreamObserver<FnCoreGenerated.Result> responseObserver) {
         ResultObject result = discovery.deleteUserLocation(request.getUserId());
@@ -52,29 +129,34 @@ public class FnCoreHandler extends FnCoreGrpc.FnCoreImplBase {
     }
 
     private UserLocation buildSearchLocation(FnCoreGenerated.PostData request) {
-        return new UserLocation(request.getUserId(),
-                                new UserLocation.Position(request.getLocation().getLatitude(),
-                                                          request.getLocation().getLongitude()),
-                                request.getRadius());
+        return new UserLocation(request.getUserId(), request.getLocation().getLatitude(),
+                                request.getLocation().getLongitude(), request.getRadius());
     }
 
     private UserLocation buildSearchLocation(FnCoreGenerated.RegistrationRequest request) {
-        return new UserLocation(request.getUserId(),
-                                new UserLocation.Position(request.getLocation().getLatitude(),
-                                                          request.getLocation().getLongitude()),
-                                request.getRadius());
+        return new UserLocation(request.getUserId(), request.getLocation().getLatitude(),
+                                request.getLocation().getLongitude(), request.getRadius());
+    }
+
+    private UserLocation buildSearchLocation(FnCoreGenerated.NearbyUsersPageRequest request) {
+        return new UserLocation(request.getUserId(), request.getLocation().getLatitude(),
+                                request.getLocation().getLongitude(), request.getRadius());
     }
 
     private UserLocation buildSearchLocation(FnCoreGenerated.SearchAreaRequest request) {
-        return new UserLocation(request.getUserId(),
-                                new UserLocation.Position(request.getLocation().getLatitude(),
-                                                          request.getLocation().getLongitude()),
-                                request.getRadius());
+        return new UserLocation(request.getUserId(), request.getLocation().getLatitude(),
+                                request.getLocation().getLongitude(), request.getRadius());
     }
 
     private FnCoreGenerated.Result buildResult(ResultObject result) {
-        return FnCoreGenerated.Result.newBuilder().setSuccess(
-                !result.getNotification().hasErrors()).putAllErrors(result.getNotification().getErrors()).build();
+        if (result instanceof FanoutResult) {
+            FanoutResult fanout = (FanoutResult) result;
+            return SUCCESS.toBuilder().setReached(fanout.getReached()).setSkipped(fanout.getSkipped()).build();
+        }
+        if (!result.hasErrors()) {
+            return SUCCESS;
+        }
+        return buildMetaResult(result.getErrors());
     }
 
     @Override
@@ -93,6 +175,71 @@ public class FnCoreHandler extends FnCoreGrpc.FnCoreImplBase {
         responseObserver.onCompleted();
     }
 
+    @Override
+    public void streamUsersInCircleByLocation(FnCoreGenerated.NearbyUsersPageRequest request, StreamObserver<FnCoreGenerated.NearbyUsersChunk> responseObserver) {
+        UserLocationStream users = discovery.streamNearbyUsersByLocation(buildSearchLocation(request),
+                                                                         request.getLimit(), request.getCursor());
+        streamUsers(users, request.getChunkSize(), responseObserver);
+    }
+
+    @Override
+    public void streamUsersInCircleById(FnCoreGenerated.NearbyUsersPageRequest request, StreamObserver<FnCoreGenerated.NearbyUsersChunk> responseObserver) {
+        UserLocationStream users = discovery.streamNearbyUsersByUserId(request.getUserId(), request.getLimit(),
+                                                                       request.getCursor());
+        streamUsers(users, request.getChunkSize(), responseObserver);
+    }
+
+    /**
+     * Sends the users in chunks only while the transport is ready for more, so a slow client holds back
+     * reading from the store instead of piling up messages in memory.
+     */
+    private void streamUsers(UserLocationStream users, int requestedChunkSize, StreamObserver<FnCoreGenerated.NearbyUsersChunk> responseObserver) {
+        if (users.hasErrors()) {
+            responseObserver.onNext(FnCoreGenerated.NearbyUsersChunk.newBuilder()
+                                            .setMetaResult(buildMetaResult(users.getErrors()))
+                                            .build());
+            responseObserver.onCompleted();
+            return;
+        }
+        int chunkSize = requestedChunkSize <= 0 ? DEFAULT_CHUNK_SIZE : Math.min(requestedChunkSize, MAX_CHUNK_SIZE);
+        ServerCallStreamObserver<FnCoreGenerated.NearbyUsersChunk> observer =
+                (ServerCallStreamObserver<FnCoreGenerated.NearbyUsersChunk>) responseObserver;
+        AtomicBoolean finished = new AtomicBoolean(false);
+
+        observer.setOnCancelHandler(() -> {
+            finished.set(true);
+            users.close();
+        });
+        observer.setOnReadyHandler(() -> {
+            synchronized (users) {
+                try {
+                    while (!finished.get() && observer.isReady()) {
+                        FnCoreGenerated.NearbyUsersChunk.Builder chunk = FnCoreGenerated.NearbyUsersChunk.newBuilder()
+                                .setMetaResult(SUCCESS);
+                        while (chunk.getUserCount() < chunkSize && users.hasNext()) {
+                            chunk.addUser(createPbUser(users.next()));
+                        }
+                        if (!users.hasNext()) {
+                            finished.set(true);
+                            chunk.setNextCursor(users.nextCursor());
+                            users.close();
+                            observer.onNext(chunk.build());
+                            observer.onCompleted();
+                        }
+                        else {
+                            observer.onNext(chunk.build());
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Streaming nearby users failed", e);
+                    finished.set(true);
+                    users.close();
+                    observer.onError(Status.INTERNAL.withDescription(ResultObject.SOMETHING_WENT_WRONG).asRuntimeException());
+                }
+            }
+        });
+    }
+
     private Post.PostType generateDomainType(FnCoreGenerated.PostData.Type type) {
         switch (type) {
             case REQUEST:
@@ -106,40 +253,103 @@ public class FnCoreHandler extends FnCoreGrpc.FnCoreImplBase {
     @Override
     public void forwardRequestNearbyDefaultLocation(FnCoreGenerated.PostData request, StreamObserver<FnCoreGenerated.Result> responseObserver) {
 
-        log.debug("Forward request by Default: " + request.toString());
+        log.debug("Forward request by Default: {}", request);
         ResultObject result = feed.fanoutToNearbyUsers(new PostData(request.getPostId(), request.getTitle(),
                                                                     generateDomainType(request.getType())),
                                                        request.getUserId());
-        log.debug("Forward request result by Default: " + result.toString());
+        log.debug("Forward request result by Default: {}", result);
         responseObserver.onNext(buildResult(result));
         responseObserver.onCompleted();
     }
 
     @Override
     public void forwardRequestNearbyCustomLocation(FnCoreGenerated.PostData request, StreamObserver<FnCoreGenerated.Result> responseObserver) {
-        log.debug("Forward request by Custom: " + request.toString());
+        log.debug("Forward request by Custom: {}", request);
 
         ResultObject result = feed.fanoutToNearbyUsers(new PostData(request.getPostId(), request.getTitle(),
                                                                     generateDomainType(request.getType())),
                                                        buildSearchLocation(request));
-        log.debug("Forward request result by Custom: " + result.toString());
+        log.debug("Forward request result by Custom: {}", result);
         responseObserver.onNext(buildResult(result));
         responseObserver.onCompleted();
     }
 
     @Override
     public void fetchRequestsNearby(FnCoreGenerated.UserIdentifier request, StreamObserver<FnCoreGenerated.RequestsNearby> responseObserver) {
-        log.debug("Fetch Requests Nearby: " + request.toString());
+        log.debug("Fetch Requests Nearby: {}", request);
 
         PostResults posts = feed.fetchRequestsForUser(request.getUserId());
-        log.debug("Fetch Requests Nearby service out: " + posts.toString());
+        log.debug("Fetch Requests Nearby service out: {}", posts);
         FnCoreGenerated.RequestsNearby res = buildRequestsNearbyResult(posts);
 
-        log.debug("Fetch Requests Nearby final response: " + res.toString());
+        log.debug("Fetch Requests Nearby final response: {}", res);
         responseObserver.onNext(res);
         responseObserver.onCompleted();
     }
 
+    @Override
+    public void fetchRequestsNearbyBatch(FnCoreGenerated.UserIdentifiers request, StreamObserver<FnCoreGenerated.RequestsNearbyBatch> responseObserver) {
+        List<String> userIds = request.getUserIdsList().stream().distinct().collect(Collectors.toList());
+        if (userIds.size() > MAX_BATCH_USERS) {
+            Map<String, String> errors = new HashMap<>();
+            errors.put("userIds", "At most " + MAX_BATCH_USERS + " users can be fetched at once");
+            responseObserver.onNext(FnCoreGenerated.RequestsNearbyBatch.newBuilder()
+                                            .setMetaResult(buildMetaResult(errors))
+                                            .build());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        FnCoreGenerated.RequestsNearbyBatch.Builder batch = FnCoreGenerated.RequestsNearbyBatch.newBuilder()
+                .setMetaResult(SUCCESS);
+        feed.fetchRequestsForUsers(userIds).forEach(
+                (userId, posts) -> batch.putFeeds(userId, buildRequestsNearbyResult(posts)));
+        responseObserver.onNext(batch.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void fetchRequestsNearbyPage(FnCoreGenerated.RequestsNearbyPageRequest request, StreamObserver<FnCoreGenerated.RequestsNearbyPage> responseObserver) {
+        int pageSize = request.getPageSize() <= 0 ? DEFAULT_PAGE_SIZE : Math.min(request.getPageSize(), MAX_PAGE_SIZE);
+        PostPage page = feed.fetchRequestPageForUser(request.getUserId(), pageSize, request.getCursor());
+
+        if (page.hasErrors()) {
+            responseObserver.onNext(FnCoreGenerated.RequestsNearbyPage.newBuilder()
+                                            .setMetaResult(buildMetaResult(page.getErrors()))
+                                            .build());
+        }
+        else {
+            responseObserver.onNext(FnCoreGenerated.RequestsNearbyPage.newBuilder()
+                                            .setMetaResult(SUCCESS)
+                                            .addAllRequests(buildNearbyRequestList(page.getPosts()))
+                                            .setNextCursor(page.getNextCursor())
+                                            .build());
+        }
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void fetchRequestsNearbyDelta(FnCoreGenerated.RequestsNearbyDeltaRequest request, StreamObserver<FnCoreGenerated.RequestsNearbyDelta> responseObserver) {
+        PostDelta delta = feed.fetchRequestDeltaForUser(request.getUserId(), request.getSyncToken());
+
+        if (delta.hasErrors()) {
+            responseObserver.onNext(FnCoreGenerated.RequestsNearbyDelta.newBuilder()
+                                            .setMetaResult(buildMetaResult(delta.getErrors()))
+                                            .build());
+        }
+        else {
+            responseObserver.onNext(FnCoreGenerated.RequestsNearbyDelta.newBuilder()
+                                            .setMetaResult(SUCCESS)
+                                            .addAllAdded(buildNearbyRequestList(delta.getPosts()))
+                                            .addAllRemoved(delta.getRemoved())
+                                            .setHorizon(delta.getHorizon())
+                                            .setReset(delta.isReset())
+                                            .setSyncToken(delta.getSyncToken())
+                                            .build());
+        }
+        responseObserver.onCompleted();
+    }
+
     @Override
     public void getUserLocation(FnCoreGenerated.UserIdentifier request, StreamObserver<FnCoreGenerated.LocationRadiusResult> responseObserver) {
         UserLocationResult result = discovery.getUserLocation(request.getUserId());
@@ -183,9 +393,9 @@ public class FnCoreHandler extends FnCoreGrpc.FnCoreImplBase {
     }
 
     private FnCoreGenerated.LocationRadiusResult buildUserLocationResult(UserLocationResult result) {
-        if (result.getNotification().hasErrors()) {
+        if (result.hasErrors()) {
             return FnCoreGenerated.LocationRadiusResult.newBuilder()
-                    .setMetaResult(buildMetaResult(result.getNotification().getErrors()))
+                    .setMetaResult(buildMetaResult(result.getErrors()))
                     .build();
         }
         UserLocation location = result.userLocation;
@@ -193,24 +403,24 @@ public class FnCoreHandler extends FnCoreGrpc.FnCoreImplBase {
         return FnCoreGenerated.LocationRadiusResult.newBuilder()
                 .setLocation(
                         FnCoreGenerated.Location.newBuilder()
-                                .setLatitude(location.getPosition().getLatitude())
-                                .setLongitude(location.getPosition().getLongitude())
+                                .setLatitude(location.getLatitude())
+                                .setLongitude(location.getLongitude())
                                 .build()
                 )
                 .setRadius(location.getRadius())
-                .setMetaResult(FnCoreGenerated.Result.newBuilder().setSuccess(true).build())
+                .setMetaResult(SUCCESS)
                 .build();
     }
 
     private FnCoreGenerated.RequestsNearby buildRequestsNearbyResult(PostResults posts) {
-        if (posts.getNotification().hasErrors()) {
+        if (posts.hasErrors()) {
             return FnCoreGenerated.RequestsNearby.newBuilder()
-                    .setMetaResult(buildMetaResult(posts.getNotification().getErrors()))
+                    .setMetaResult(buildMetaResult(posts.getErrors()))
                     .build();
         }
 
         return FnCoreGenerated.RequestsNearby.newBuilder()
-                .setMetaResult(FnCoreGenerated.Result.newBuilder().setSuccess(true).build())
+                .setMetaResult(SUCCESS)
                 .addAllRequests(buildNearbyRequestList(posts.getPosts()))
                 .build();
 
@@ -223,18 +433,18 @@ public class FnCoreHandler extends FnCoreGrpc.FnCoreImplBase {
     private FnCoreGenerated.PostOutput createPbPost(Post post) {
         return FnCoreGenerated.PostOutput.newBuilder()
                 .setPostId(post.getId())
-                .setDistance(post.getLocation().getDistance().doubleValue())
+                .setDistance(post.getLocation().getDistance())
                 .build();
     }
 
 
     private FnCoreGenerated.NearbyUsersResult buildLocationsResult(UserLocationsResult results) {
-        if (results.getNotification().hasErrors()) {
-            return buildFailedNearbyUsersResult(results.getNotification().getErrors());
+        if (results.hasErrors()) {
+            return buildFailedNearbyUsersResult(results.getErrors());
         }
 
         return FnCoreGenerated.NearbyUsersResult.newBuilder()
-                .setMetaResult(FnCoreGenerated.Result.newBuilder().setSuccess(true).build())
+                .setMetaResult(SUCCESS)
                 .addAllUser(buildUserList(results.getUserLocations()))
                 .build();
     }
@@ -247,7 +457,7 @@ public class FnCoreHandler extends FnCoreGrpc.FnCoreImplBase {
 
     private FnCoreGenerated.UserNearby createPbUser(UserLocation userLocation) {
         return FnCoreGenerated.UserNearby.newBuilder()
-                .setDistance(userLocation.getDistance().doubleValue())
+                .setDistance(userLocation.getDistance())
                 .setUserId(userLocation.getId())
                 .build();
     }
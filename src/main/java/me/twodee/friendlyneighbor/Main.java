@@ -4,8 +4,11 @@ import com.google.inject.Guice;
 import com.google.inject.Injector;
 import lombok.extern.slf4j.Slf4j;
 import me.twodee.friendlyneighbor.component.FnCoreConfig;
+import me.twodee.friendlyneighbor.component.MetricRegistry;
 import me.twodee.friendlyneighbor.configuration.LocationModule;
 import me.twodee.friendlyneighbor.configuration.NotifierModule;
+import me.twodee.friendlyneighbor.repository.HybridPostRepository;
+import me.twodee.friendlyneighbor.service.FanoutWorker;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -43,6 +46,18 @@ public class Main
             assert config != null;
             Injector injector = Guice.createInjector(new LocationModule(config), new NotifierModule(config));
             FnCoreHandler service = injector.getInstance(FnCoreHandler.class);
+            injector.getInstance(MetricRegistry.class).startReporting(config.getMetricsReportInterval());
+            if (config.isFeedFanoutAsync()) {
+                FanoutWorker worker = injector.getInstance(FanoutWorker.class);
+                worker.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(worker::close, "fncore-outbox-shutdown"));
+            }
+            if (config.isFeedEntryMigrate()) {
+                HybridPostRepository posts = injector.getInstance(HybridPostRepository.class);
+                Thread migration = new Thread(posts::migrateFeedEntries, "fncore-feed-migration");
+                migration.setDaemon(true);
+                migration.start();
+            }
             Server server = new Server(config.getFnCorePort(), service);
             server.start();
         } catch (Throwable e) {
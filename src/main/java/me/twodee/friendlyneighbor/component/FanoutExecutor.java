@@ -0,0 +1,121 @@
+package me.twodee.friendlyneighbor.component;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of threads with a bounded queue the feed work runs on, kept apart from the common fork join pool
+ * so a burst of fanouts blocking on Redis can't starve the rest of the process. Once the queue is full a task
+ * is either run by the submitting thread, which slows the caller down to the pace the pool keeps up with, or
+ * rejected outright. Callers that wait for the task anyway run it themselves with {@link #runInline}, which
+ * only bounds how many of them run at once.
+ * <p>
+ * Publishes the queue depth and active threads as gauges, the time tasks spent queued and running as timers,
+ * and as counters how many tasks were rejected and how many still ran but held their caller up.
+ */
+@Slf4j
+public class FanoutExecutor
+{
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    private final ThreadPoolExecutor pool;
+    private final Semaphore inline;
+    private final boolean callerRuns;
+    private final MetricRegistry metrics;
+
+    /**
+     * @param threads       Number of worker threads
+     * @param queueCapacity Most tasks waiting for a thread
+     * @param callerRuns    Whether a task that doesn't fit the queue is run by the caller instead of rejected
+     * @param metrics       Registry the queue and latency metrics are published to
+     */
+    public FanoutExecutor(int threads, int queueCapacity, boolean callerRuns, MetricRegistry metrics)
+    {
+        this.metrics = metrics;
+        this.callerRuns = callerRuns;
+        this.inline = new Semaphore(threads);
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "fncore-fanout-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (task, executor) -> {
+                    if (!callerRuns || executor.isShutdown()) {
+                        metrics.increment("feed.fanout.executor.rejected");
+                        throw new RejectedExecutionException("The fanout queue is full");
+                    }
+                    metrics.increment("feed.fanout.executor.throttled");
+                    task.run();
+                });
+        metrics.gauge("feed.fanout.executor.queued", () -> pool.getQueue().size());
+        metrics.gauge("feed.fanout.executor.active", pool::getActiveCount);
+    }
+
+    /**
+     * @throws RejectedExecutionException If the queue is full and tasks aren't run by the caller
+     */
+    public CompletableFuture<Void> run(Runnable task)
+    {
+        long queuedAt = System.nanoTime();
+        return CompletableFuture.runAsync(() -> {
+            long startedAt = System.nanoTime();
+            metrics.record("feed.fanout.executor.wait", startedAt - queuedAt);
+            try {
+                task.run();
+            } finally {
+                metrics.record("feed.fanout.executor.run", System.nanoTime() - startedAt);
+            }
+        }, pool);
+    }
+
+    /**
+     * Runs the task on the calling thread, with no more callers doing so at once than the pool has threads.
+     * Once they're all taken the caller waits for one to free up, or is rejected if tasks aren't run by the
+     * caller.
+     *
+     * @throws RejectedExecutionException If every slot is taken and tasks aren't run by the caller
+     */
+    public void runInline(Runnable task)
+    {
+        long queuedAt = System.nanoTime();
+        if (!inline.tryAcquire()) {
+            if (!callerRuns) {
+                metrics.increment("feed.fanout.executor.rejected");
+                throw new RejectedExecutionException("Every fanout slot is taken");
+            }
+            metrics.increment("feed.fanout.executor.throttled");
+            inline.acquireUninterruptibly();
+        }
+        long startedAt = System.nanoTime();
+        metrics.record("feed.fanout.executor.wait", startedAt - queuedAt);
+        try {
+            task.run();
+        } finally {
+            inline.release();
+            metrics.record("feed.fanout.executor.run", System.nanoTime() - startedAt);
+        }
+    }
+
+    /**
+     * Stops taking tasks and waits a while for the queued ones to finish
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn(pool.getQueue().size() + " fanout tasks were dropped on shutdown");
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
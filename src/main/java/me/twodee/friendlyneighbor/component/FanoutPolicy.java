@@ -0,0 +1,91 @@
+package me.twodee.friendlyneighbor.component;
+
+import me.twodee.friendlyneighbor.entity.UserLocation;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Caps how many users a single post is pushed to. In a dense area a nearby lookup can return far more users
+ * than are worth writing a feed entry for, so only the nearest ones up to the limit are kept, which bounds
+ * the writes per post regardless of how crowded the area is. Past the pull threshold a post isn't pushed at
+ * all but stored once for the readers to pull in, so the cap only trims audiences up to the threshold and has
+ * to sit below it to ever come into play.
+ */
+public class FanoutPolicy
+{
+    private static final Comparator<UserLocation> FARTHEST_FIRST =
+            Comparator.comparingDouble(UserLocation::getDistance).reversed();
+
+    private final int maxAudience;
+    private final int pullThreshold;
+
+    /**
+     * @param maxAudience Most users a post is pushed to, 0 or less for no limit
+     */
+    public FanoutPolicy(int maxAudience)
+    {
+        this(maxAudience, 0);
+    }
+
+    /**
+     * @param maxAudience   Most users a post is pushed to, 0 or less for no limit
+     * @param pullThreshold Audience size above which a post is pulled instead of pushed, 0 or less to always
+     *                      push
+     */
+    public FanoutPolicy(int maxAudience, int pullThreshold)
+    {
+        this.maxAudience = maxAudience;
+        this.pullThreshold = pullThreshold;
+    }
+
+    public static FanoutPolicy unbounded()
+    {
+        return new FanoutPolicy(0);
+    }
+
+    public int getMaxAudience()
+    {
+        return maxAudience;
+    }
+
+    /**
+     * @return Whether some audience gets trimmed by the cap, none does when every audience past it is pulled
+     */
+    public boolean capsBeforePulling()
+    {
+        return maxAudience > 0 && (pullThreshold <= 0 || maxAudience < pullThreshold);
+    }
+
+    public boolean shouldPull(int audience)
+    {
+        return pullThreshold > 0 && audience > pullThreshold;
+    }
+
+    /**
+     * @param candidates Every eligible user with the distance to the post set
+     * @return The candidates themselves when within the limit, otherwise the nearest ones ordered by distance
+     */
+    public List<UserLocation> select(List<UserLocation> candidates)
+    {
+        if (maxAudience <= 0 || candidates.size() <= maxAudience) {
+            return candidates;
+        }
+        // Bounded max-heap, keeps the k nearest in O(n log k) without sorting everyone
+        PriorityQueue<UserLocation> nearest = new PriorityQueue<>(maxAudience + 1, FARTHEST_FIRST);
+        for (UserLocation candidate : candidates) {
+            if (nearest.size() < maxAudience) {
+                nearest.add(candidate);
+            }
+            else if (candidate.getDistance() < nearest.peek().getDistance()) {
+                nearest.poll();
+                nearest.add(candidate);
+            }
+        }
+        List<UserLocation> audience = new ArrayList<>(nearest);
+        audience.sort(FARTHEST_FIRST.reversed());
+        return audience;
+    }
+}
@@ -20,6 +20,39 @@ public class FnCoreConfig {
     private final int fnCorePort;
     private final String firebaseServiceKeyFile;
     private final String firebaseDbUrl;
+    private final String locationStore;
+    private final double locationIndexCellSize;
+    private final boolean postIndexEnabled;
+    private final long locationCacheSize;
+    private final long locationCacheTtl;
+    private final long metricsReportInterval;
+    private final int locationBulkBatchSize;
+    private final double locationCoalesceDistance;
+    private final long locationCoalesceInterval;
+    private final String locationMemoryDirectory;
+    private final long locationMemorySnapshotInterval;
+    private final int feedFanoutMaxAudience;
+    private final int feedFanoutBatchSize;
+    private final int feedPullThreshold;
+    private final long feedTimelineMaxLength;
+    private final int feedFanoutThreads;
+    private final int feedFanoutQueueCapacity;
+    private final boolean feedFanoutCallerRuns;
+    private final boolean feedFanoutAsync;
+    private final int feedOutboxWorkers;
+    private final int feedOutboxMaxAttempts;
+    private final long feedOutboxRetryAfter;
+    private final long postCacheSize;
+    private final long postCacheTtl;
+    private final boolean postCacheRedis;
+    private final boolean feedEntryMigrate;
+    private final String feedReadStrategy;
+    private final long postRetention;
+    private final boolean postRetentionTtl;
+    private final boolean postRetentionMigrate;
+    private final double feedRematerializeDistance;
+    private final String feedTimelineEncoding;
+    private final long feedSyncOverlap;
 
     // TODO: Add redis password support
     public static FnCoreConfig createFromProperties(Properties properties) {
@@ -49,6 +82,105 @@ public class FnCoreConfig {
                     .firebaseServiceKeyFile(properties.getProperty("firebase.service.key.file",
                                                                    defaultProps.getProperty(
                                                                            "firebase.service.key.file")))
+                    .locationStore(properties.getProperty("location.store",
+                                                          defaultProps.getProperty("location.store", "mongo")))
+                    .locationIndexCellSize(Double.parseDouble(
+                            properties.getProperty("location.index.cell_size",
+                                                   defaultProps.getProperty("location.index.cell_size", "0.1"))))
+                    .postIndexEnabled(Boolean.parseBoolean(
+                            properties.getProperty("post.index", defaultProps.getProperty("post.index", "false"))))
+                    .locationCacheSize(Long.parseLong(
+                            properties.getProperty("location.cache.size",
+                                                   defaultProps.getProperty("location.cache.size", "100000"))))
+                    .locationCacheTtl(Long.parseLong(
+                            properties.getProperty("location.cache.ttl",
+                                                   defaultProps.getProperty("location.cache.ttl", "300"))))
+                    .metricsReportInterval(Long.parseLong(
+                            properties.getProperty("metrics.report_interval",
+                                                   defaultProps.getProperty("metrics.report_interval", "60"))))
+                    .locationBulkBatchSize(Integer.parseInt(
+                            properties.getProperty("location.bulk.batch_size",
+                                                   defaultProps.getProperty("location.bulk.batch_size", "500"))))
+                    .locationCoalesceDistance(Double.parseDouble(
+                            properties.getProperty("location.coalesce.distance",
+                                                   defaultProps.getProperty("location.coalesce.distance", "0.025"))))
+                    .locationCoalesceInterval(Long.parseLong(
+                            properties.getProperty("location.coalesce.flush_interval",
+                                                   defaultProps.getProperty("location.coalesce.flush_interval",
+                                                                            "0"))))
+                    .locationMemoryDirectory(properties.getProperty("location.memory.dir",
+                                                                    defaultProps.getProperty("location.memory.dir",
+                                                                                             "data")))
+                    .locationMemorySnapshotInterval(Long.parseLong(
+                            properties.getProperty("location.memory.snapshot_interval",
+                                                   defaultProps.getProperty("location.memory.snapshot_interval",
+                                                                            "300"))))
+                    .feedFanoutMaxAudience(Integer.parseInt(
+                            properties.getProperty("feed.fanout.max_audience",
+                                                   defaultProps.getProperty("feed.fanout.max_audience", "500"))))
+                    .feedFanoutBatchSize(Integer.parseInt(
+                            properties.getProperty("feed.fanout.batch_size",
+                                                   defaultProps.getProperty("feed.fanout.batch_size", "500"))))
+                    .feedPullThreshold(Integer.parseInt(
+                            properties.getProperty("feed.pull.threshold",
+                                                   defaultProps.getProperty("feed.pull.threshold", "1000"))))
+                    .feedTimelineMaxLength(Long.parseLong(
+                            properties.getProperty("feed.timeline.max_length",
+                                                   defaultProps.getProperty("feed.timeline.max_length", "500"))))
+                    .feedFanoutThreads(Integer.parseInt(
+                            properties.getProperty("feed.fanout.threads",
+                                                   defaultProps.getProperty("feed.fanout.threads", "8"))))
+                    .feedFanoutQueueCapacity(Integer.parseInt(
+                            properties.getProperty("feed.fanout.queue_capacity",
+                                                   defaultProps.getProperty("feed.fanout.queue_capacity", "1000"))))
+                    .feedFanoutCallerRuns(Boolean.parseBoolean(
+                            properties.getProperty("feed.fanout.caller_runs",
+                                                   defaultProps.getProperty("feed.fanout.caller_runs", "true"))))
+                    .feedFanoutAsync(Boolean.parseBoolean(
+                            properties.getProperty("feed.fanout.async",
+                                                   defaultProps.getProperty("feed.fanout.async", "false"))))
+                    .feedOutboxWorkers(Integer.parseInt(
+                            properties.getProperty("feed.outbox.workers",
+                                                   defaultProps.getProperty("feed.outbox.workers", "2"))))
+                    .feedOutboxMaxAttempts(Integer.parseInt(
+                            properties.getProperty("feed.outbox.max_attempts",
+                                                   defaultProps.getProperty("feed.outbox.max_attempts", "5"))))
+                    .feedOutboxRetryAfter(Long.parseLong(
+                            properties.getProperty("feed.outbox.retry_after",
+                                                   defaultProps.getProperty("feed.outbox.retry_after", "30000"))))
+                    .postCacheSize(Long.parseLong(
+                            properties.getProperty("post.cache.size",
+                                                   defaultProps.getProperty("post.cache.size", "50000"))))
+                    .postCacheTtl(Long.parseLong(
+                            properties.getProperty("post.cache.ttl",
+                                                   defaultProps.getProperty("post.cache.ttl", "3600"))))
+                    .postCacheRedis(Boolean.parseBoolean(
+                            properties.getProperty("post.cache.redis",
+                                                   defaultProps.getProperty("post.cache.redis", "false"))))
+                    .feedEntryMigrate(Boolean.parseBoolean(
+                            properties.getProperty("feed.entry.migrate",
+                                                   defaultProps.getProperty("feed.entry.migrate", "false"))))
+                    .feedReadStrategy(properties.getProperty("feed.read.strategy",
+                                                             defaultProps.getProperty("feed.read.strategy",
+                                                                                      "geo")))
+                    .postRetention(Long.parseLong(
+                            properties.getProperty("post.retention",
+                                                   defaultProps.getProperty("post.retention", "0"))))
+                    .postRetentionTtl(Boolean.parseBoolean(
+                            properties.getProperty("post.retention.ttl",
+                                                   defaultProps.getProperty("post.retention.ttl", "false"))))
+                    .postRetentionMigrate(Boolean.parseBoolean(
+                            properties.getProperty("post.retention.migrate",
+                                                   defaultProps.getProperty("post.retention.migrate", "false"))))
+                    .feedRematerializeDistance(Double.parseDouble(
+                            properties.getProperty("feed.rematerialize.distance",
+                                                   defaultProps.getProperty("feed.rematerialize.distance", "0.5"))))
+                    .feedTimelineEncoding(properties.getProperty("feed.timeline.encoding",
+                                                                 defaultProps.getProperty("feed.timeline.encoding",
+                                                                                          "list")))
+                    .feedSyncOverlap(Long.parseLong(
+                            properties.getProperty("feed.sync.overlap",
+                                                   defaultProps.getProperty("feed.sync.overlap", "60000"))))
                     .build();
 
 
@@ -0,0 +1,294 @@
+package me.twodee.friendlyneighbor.component;
+
+import me.twodee.friendlyneighbor.entity.UserLocation;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static me.twodee.friendlyneighbor.component.Util.KM_PER_DEGREE;
+import static me.twodee.friendlyneighbor.component.Util.cosLatitude;
+import static me.twodee.friendlyneighbor.component.Util.haversine;
+
+/**
+ * In-memory cell index over circles (a position plus the radius it's willing to reach). The globe is cut
+ * into latitude/longitude cells at several levels, each level doubling the cell edge of the previous one.
+ * Every circle is filed under the cells covering its bounding box, at the finest level where that takes no
+ * more than {@link #MAX_COVER_CELLS} cells.
+ * <p>
+ * Looking up a point then only takes one cell per level: whatever is filed there is a circle whose bounding
+ * box contains the point. That answers "who covers this point" directly, so a search only ever measures
+ * distances to the circles that can actually see the searcher.
+ * <p>
+ * Entries are stored as immutable snapshots, lookups always hand out fresh {@link UserLocation} objects.
+ */
+public class GeoCellIndex
+{
+    public static final double DEFAULT_CELL_SIZE = 0.1;
+    static final int MAX_COVER_CELLS = 16;
+    private static final int LEVELS = 24;
+
+    private final double cellSize;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<Long, Set<String>> cells = new ConcurrentHashMap<>();
+    private final AtomicIntegerArray levelCounts = new AtomicIntegerArray(LEVELS);
+
+    private static class Entry
+    {
+        final String id;
+        final String owner;
+        final double latitude;
+        final double longitude;
+        final double cosLatitude;
+        final double radius;
+        final int level;
+        final long[] cells;
+
+        Entry(String id, String owner, double latitude, double longitude, double radius, int level, long[] cells)
+        {
+            this.id = id;
+            this.owner = owner;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.cosLatitude = cosLatitude(latitude);
+            this.radius = radius;
+            this.level = level;
+            this.cells = cells;
+        }
+
+        UserLocation toUserLocation()
+        {
+            return new UserLocation(id, latitude, longitude, radius);
+        }
+    }
+
+    public GeoCellIndex()
+    {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * @param cellSize Edge of a cell at the finest level in degrees, 0.1 is roughly 11km at the equator
+     */
+    public GeoCellIndex(double cellSize)
+    {
+        this.cellSize = cellSize > 0 ? cellSize : DEFAULT_CELL_SIZE;
+    }
+
+    /**
+     * Adds a location to the index or moves it if it's already indexed
+     */
+    public void put(UserLocation location)
+    {
+        put(location.getId(), location.getId(), location.getLatitude(), location.getLongitude(), location.getRadius());
+    }
+
+    /**
+     * Adds a circle to the index or replaces it if the id is already indexed
+     *
+     * @param id       Identifier of the circle
+     * @param owner    User the circle belongs to, used to keep a user's own circles out of their lookups
+     * @param position Center of the circle
+     * @param radius   Radius in KM
+     */
+    public void put(String id, String owner, UserLocation.Position position, double radius)
+    {
+        put(id, owner, position.getLatitude(), position.getLongitude(), radius);
+    }
+
+    public synchronized void put(String id, String owner, double latitude, double longitude, double radius)
+    {
+        int level = coverLevel(latitude, radius);
+        Entry entry = new Entry(id, owner, latitude, longitude, radius, level,
+                                cover(level, latitude, longitude, radius));
+
+        Entry previous = entries.put(id, entry);
+        if (previous != null) {
+            detach(previous);
+        }
+        for (long cell : entry.cells) {
+            cells.computeIfAbsent(cell, key -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+        levelCounts.incrementAndGet(level);
+    }
+
+    public synchronized void remove(String id)
+    {
+        Entry previous = entries.remove(id);
+        if (previous != null) {
+            detach(previous);
+        }
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        cells.clear();
+        for (int level = 0; level < LEVELS; level++) {
+            levelCounts.set(level, 0);
+        }
+    }
+
+    /**
+     * @return A copy of the indexed location or null if it isn't indexed
+     */
+    public UserLocation get(String id)
+    {
+        Entry entry = entries.get(id);
+        return entry == null ? null : entry.toUserLocation();
+    }
+
+    public boolean contains(String id)
+    {
+        return entries.containsKey(id);
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Finds the circles that can see the given position and are within the given radius of it, i.e.
+     * the mutual visibility rule of the Mongo backed lookups.
+     *
+     * @param position Center of the search
+     * @param radius   Search radius in KM
+     * @param exclude  Owner whose circles are left out of the results, usually the one searching
+     * @return Matching circles as locations ordered by distance, closest first
+     */
+    public List<UserLocation> findNearby(UserLocation.Position position, double radius, String exclude)
+    {
+        return findNearby(position.getLatitude(), position.getLongitude(), radius, exclude);
+    }
+
+    public List<UserLocation> findNearby(double latitude, double longitude, double radius, String exclude)
+    {
+        double cosLatitude = cosLatitude(latitude);
+
+        List<UserLocation> results = new ArrayList<>();
+        for (int level = 0; level < LEVELS; level++) {
+            if (levelCounts.get(level) == 0) {
+                continue;
+            }
+            double size = levelSize(level);
+            Set<String> ids = cells.get(key(level, row(latitude, size), column(longitude, size)));
+            if (ids == null) {
+                continue;
+            }
+            for (String id : ids) {
+                Entry entry = entries.get(id);
+                if (entry == null || entry.level != level || entry.owner.equals(exclude)) {
+                    continue;
+                }
+                double distance = haversine(latitude, longitude, cosLatitude,
+                                            entry.latitude, entry.longitude, entry.cosLatitude);
+                if (distance <= radius && distance <= entry.radius) {
+                    UserLocation location = entry.toUserLocation();
+                    location.setDistance(distance);
+                    results.add(location);
+                }
+            }
+        }
+        results.sort(Comparator.comparingDouble(location -> location.getDistance()));
+        return results;
+    }
+
+    private int coverLevel(double latitude, double radius)
+    {
+        double latitudeSpan = radius / KM_PER_DEGREE;
+        double longitudeSpan = longitudeSpan(latitude, latitudeSpan);
+        for (int level = 0; level < LEVELS - 1; level++) {
+            double size = levelSize(level);
+            long rows = (long) Math.floor((latitude + latitudeSpan + 90) / size)
+                    - (long) Math.floor((latitude - latitudeSpan + 90) / size) + 1;
+            long columns = Math.min(columnCount(size), (long) Math.ceil(2 * longitudeSpan / size) + 1);
+            if (rows * columns <= MAX_COVER_CELLS) {
+                return level;
+            }
+        }
+        return LEVELS - 1;
+    }
+
+    private long[] cover(int level, double latitude, double longitude, double radius)
+    {
+        double size = levelSize(level);
+        double latitudeSpan = radius / KM_PER_DEGREE;
+        double longitudeSpan = longitudeSpan(latitude, latitudeSpan);
+        int columns = columnCount(size);
+
+        int fromRow = row(Math.max(-90, latitude - latitudeSpan), size);
+        int toRow = row(Math.min(90, latitude + latitudeSpan), size);
+        int fromColumn = (int) Math.floor((longitude - longitudeSpan + 180) / size);
+        int toColumn = (int) Math.floor((longitude + longitudeSpan + 180) / size);
+        if (toColumn - fromColumn + 1 >= columns) {
+            fromColumn = 0;
+            toColumn = columns - 1;
+        }
+
+        long[] keys = new long[(toRow - fromRow + 1) * (toColumn - fromColumn + 1)];
+        int i = 0;
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int column = fromColumn; column <= toColumn; column++) {
+                keys[i++] = key(level, row, Math.floorMod(column, columns));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Half the longitudinal extent of a circle, widened to the poleward edge of its bounding box
+     */
+    private double longitudeSpan(double latitude, double latitudeSpan)
+    {
+        double poleward = Math.min(90, Math.abs(latitude) + latitudeSpan);
+        double cos = Math.cos(Math.toRadians(poleward));
+        if (cos <= 1e-9) {
+            return 180;
+        }
+        return Math.min(180, latitudeSpan / cos);
+    }
+
+    private void detach(Entry entry)
+    {
+        for (long cell : entry.cells) {
+            Set<String> ids = cells.get(cell);
+            if (ids != null) {
+                ids.remove(entry.id);
+                if (ids.isEmpty()) {
+                    cells.remove(cell);
+                }
+            }
+        }
+        levelCounts.decrementAndGet(entry.level);
+    }
+
+    private double levelSize(int level)
+    {
+        return cellSize * (1L << level);
+    }
+
+    private int columnCount(double size)
+    {
+        return (int) Math.ceil(360 / size);
+    }
+
+    private int row(double latitude, double size)
+    {
+        return (int) Math.floor((latitude + 90) / size);
+    }
+
+    private int column(double longitude, double size)
+    {
+        return Math.floorMod((int) Math.floor((longitude + 180) / size), columnCount(size));
+    }
+
+    private long key(int level, int row, int column)
+    {
+        return ((long) level << 56) | ((long) row << 28) | column;
+    }
+}
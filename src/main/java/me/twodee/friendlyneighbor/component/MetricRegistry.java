@@ -0,0 +1,123 @@
+package me.twodee.friendlyneighbor.component;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Singleton;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process wide counters, gauges and timers. Everything is kept in memory and periodically written to the
+ * log, see {@link #startReporting(long)}.
+ */
+@Slf4j
+@Singleton
+public class MetricRegistry
+{
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private ScheduledExecutorService reporter;
+
+    private static class Timer
+    {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos)
+        {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+    }
+
+    public void increment(String name)
+    {
+        add(name, 1);
+    }
+
+    public void add(String name, long amount)
+    {
+        counters.computeIfAbsent(name, key -> new LongAdder()).add(amount);
+    }
+
+    public long count(String name)
+    {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Registers a value that's read whenever a snapshot is taken, replaces any gauge of the same name
+     */
+    public void gauge(String name, Supplier<? extends Number> value)
+    {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Records a single timed event
+     *
+     * @param name  Name of the timer
+     * @param nanos Duration in nanoseconds, usually from {@link System#nanoTime()}
+     */
+    public void record(String name, long nanos)
+    {
+        timers.computeIfAbsent(name, key -> new Timer()).record(nanos);
+    }
+
+    /**
+     * Times the given call under the given name
+     */
+    public <T> T time(String name, Supplier<T> call)
+    {
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } finally {
+            record(name, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return Every metric by name, timers are flattened into their count, mean and max in milliseconds
+     */
+    public Map<String, Number> snapshot()
+    {
+        Map<String, Number> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> snapshot.put(name, gauge.get()));
+        timers.forEach((name, timer) -> {
+            long count = timer.count.sum();
+            snapshot.put(name + ".count", count);
+            snapshot.put(name + ".mean_ms", count == 0 ? 0 : timer.totalNanos.sum() / count / 1e6);
+            snapshot.put(name + ".max_ms", timer.maxNanos.get() / 1e6);
+        });
+        return snapshot;
+    }
+
+    /**
+     * Logs a snapshot at a fixed interval, does nothing for a non positive interval
+     *
+     * @param intervalSeconds Seconds between two reports
+     */
+    public synchronized void startReporting(long intervalSeconds)
+    {
+        if (intervalSeconds <= 0 || reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fncore-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> log.info("Metrics: " + snapshot()),
+                                     intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
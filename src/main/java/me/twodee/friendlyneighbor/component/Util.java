@@ -2,24 +2,169 @@ package me.twodee.friendlyneighbor.component;
 
 public class Util
 {
+    public static final double EARTH_RADIUS_KM = 6371;
+    public static final double KM_PER_DEGREE = EARTH_RADIUS_KM * Math.PI / 180;
+
     public static double haversine(double lat1, double lon1,
                                    double lat2, double lon2)
     {
-        // distance between latitudes and longitudes
-        double dLat = Math.toRadians(lat2 - lat1);
-        double dLon = Math.toRadians(lon2 - lon1);
-
-        // convert to radians
-        lat1 = Math.toRadians(lat1);
-        lat2 = Math.toRadians(lat2);
-
-        // apply formulae
-        double a = Math.pow(Math.sin(dLat / 2), 2) +
-                Math.pow(Math.sin(dLon / 2), 2) *
-                        Math.cos(lat1) *
-                        Math.cos(lat2);
-        double rad = 6371;
-        double c = 2 * Math.asin(Math.sqrt(a));
-        return rad * c;
+        return haversine(lat1, lon1, cosLatitude(lat1), lat2, lon2, cosLatitude(lat2));
+    }
+
+    /**
+     * Haversine distance with the cosines of both latitudes already at hand, see {@link #cosLatitude(double)}.
+     * Worth it when one side is measured against many others or the other side is stored with its cosine.
+     */
+    public static double haversine(double lat1, double lon1, double cosLat1,
+                                   double lat2, double lon2, double cosLat2)
+    {
+        double sinLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double a = sinLat * sinLat + sinLon * sinLon * cosLat1 * cosLat2;
+        // Rounding can push a just past 1 for antipodal points
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.sqrt(Math.min(1, a)));
+    }
+
+    public static double cosLatitude(double latitude)
+    {
+        return Math.cos(Math.toRadians(latitude));
+    }
+
+    /**
+     * Equirectangular approximation of the distance, a flat projection around the mean latitude of the
+     * two points. Measured against {@link #haversine(double, double, double, double)} the relative error
+     * stays below 0.01% up to 100 KM between latitudes ±70, and below 0.1% up to 500 KM between
+     * latitudes ±60. It grows quickly with distance and towards the poles, use it for small radii only.
+     */
+    public static double equirectangular(double lat1, double lon1,
+                                         double lat2, double lon2)
+    {
+        double x = Math.toRadians(longitudeDelta(lon1, lon2)) * cosLatitude((lat1 + lat2) / 2);
+        double y = Math.toRadians(lat2 - lat1);
+        return EARTH_RADIUS_KM * Math.sqrt(x * x + y * y);
+    }
+
+    /**
+     * Haversine distances from one point to many
+     *
+     * @param cosLats   Cosines of latitudes, see {@link #cosLatitude(double)}
+     * @param count     Number of points to measure, from the start of the arrays
+     * @param distances Receives the distance of every point in KM
+     */
+    public static void haversine(double lat, double lon,
+                                 double[] lats, double[] lons, double[] cosLats, int count, double[] distances)
+    {
+        double cosLat = cosLatitude(lat);
+        for (int i = 0; i < count; i++) {
+            distances[i] = haversine(lat, lon, cosLat, lats[i], lons[i], cosLats[i]);
+        }
+    }
+
+    /**
+     * Equirectangular distances from one point to many, with the error bounds of
+     * {@link #equirectangular(double, double, double, double)}
+     *
+     * @param count     Number of points to measure, from the start of the arrays
+     * @param distances Receives the distance of every point in KM
+     */
+    public static void equirectangular(double lat, double lon,
+                                       double[] lats, double[] lons, int count, double[] distances)
+    {
+        for (int i = 0; i < count; i++) {
+            distances[i] = equirectangular(lat, lon, lats[i], lons[i]);
+        }
+    }
+
+    /**
+     * Finds the points within a radius of a center. Points outside the radius' bounding box are skipped
+     * before any trigonometry, the rest are measured with the haversine formula.
+     *
+     * @param cosLats   Cosines of latitudes, see {@link #cosLatitude(double)}
+     * @param count     Number of points to look at, from the start of the arrays
+     * @param hits      Receives the indexes of the points within the radius
+     * @param distances Receives the distances of those points, in the same order
+     * @return Number of points within the radius
+     */
+    public static int within(double lat, double lon, double radius,
+                             double[] lats, double[] lons, double[] cosLats, int count,
+                             int[] hits, double[] distances)
+    {
+        BoundingBox box = BoundingBox.around(lat, lon, radius);
+        double cosLat = cosLatitude(lat);
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            if (!box.contains(lats[i], lons[i])) {
+                continue;
+            }
+            double distance = haversine(lat, lon, cosLat, lats[i], lons[i], cosLats[i]);
+            if (distance <= radius) {
+                hits[found] = i;
+                distances[found] = distance;
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static double longitudeDelta(double lon1, double lon2)
+    {
+        double delta = lon2 - lon1;
+        if (delta > 180) {
+            return delta - 360;
+        }
+        return delta < -180 ? delta + 360 : delta;
+    }
+
+    /**
+     * Latitude/longitude box around a circle, a cheap test that rules out most far away points. Never
+     * rules out a point within the circle, may let through some outside of it. Boxes crossing the
+     * antimeridian wrap around.
+     */
+    public static final class BoundingBox
+    {
+        private final double minLat;
+        private final double maxLat;
+        private final double minLon;
+        private final double maxLon;
+        private final boolean allLongitudes;
+
+        private BoundingBox(double minLat, double maxLat, double minLon, double maxLon, boolean allLongitudes)
+        {
+            this.minLat = minLat;
+            this.maxLat = maxLat;
+            this.minLon = minLon;
+            this.maxLon = maxLon;
+            this.allLongitudes = allLongitudes;
+        }
+
+        /**
+         * @param radius Radius of the circle in KM
+         */
+        public static BoundingBox around(double lat, double lon, double radius)
+        {
+            double latSpan = radius / KM_PER_DEGREE;
+            double minLat = Math.max(-90, lat - latSpan);
+            double maxLat = Math.min(90, lat + latSpan);
+            // The circle is widest in longitude at its poleward edge
+            double cos = cosLatitude(Math.max(Math.abs(minLat), Math.abs(maxLat)));
+            if (cos <= 1e-9 || latSpan / cos >= 180) {
+                return new BoundingBox(minLat, maxLat, -180, 180, true);
+            }
+            double lonSpan = latSpan / cos;
+            double minLon = lon - lonSpan < -180 ? lon - lonSpan + 360 : lon - lonSpan;
+            double maxLon = lon + lonSpan > 180 ? lon + lonSpan - 360 : lon + lonSpan;
+            return new BoundingBox(minLat, maxLat, minLon, maxLon, false);
+        }
+
+        public boolean contains(double lat, double lon)
+        {
+            if (lat < minLat || lat > maxLat) {
+                return false;
+            }
+            if (allLongitudes) {
+                return true;
+            }
+            return minLon <= maxLon ? lon >= minLon && lon <= maxLon : lon >= minLon || lon <= maxLon;
+        }
     }
 }
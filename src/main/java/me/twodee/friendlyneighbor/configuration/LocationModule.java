@@ -5,19 +5,33 @@ import com.google.inject.Provides;
 import com.mongodb.ConnectionString;
 import com.mongodb.client.MongoClients;
 import lombok.extern.slf4j.Slf4j;
+import me.twodee.friendlyneighbor.component.FanoutExecutor;
 import me.twodee.friendlyneighbor.component.FnCoreConfig;
+import me.twodee.friendlyneighbor.component.GeoCellIndex;
+import me.twodee.friendlyneighbor.component.MetricRegistry;
 import me.twodee.friendlyneighbor.entity.Post;
 import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.repository.CachedLocationRepository;
+import me.twodee.friendlyneighbor.repository.CoalescingLocationRepository;
+import me.twodee.friendlyneighbor.repository.FanoutOutbox;
 import me.twodee.friendlyneighbor.repository.HybridPostRepository;
+import me.twodee.friendlyneighbor.repository.IndexedLocationRepository;
 import me.twodee.friendlyneighbor.repository.LocationRepository;
+import me.twodee.friendlyneighbor.repository.MemoryLocationRepository;
 import me.twodee.friendlyneighbor.repository.MongoLocationRepository;
+import me.twodee.friendlyneighbor.repository.PostCache;
 import me.twodee.friendlyneighbor.repository.PostRepository;
+import me.twodee.friendlyneighbor.repository.RedisLocationRepository;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.index.GeospatialIndex;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 
 import javax.inject.Singleton;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 
 @Slf4j
 public class LocationModule extends AbstractModule
@@ -32,7 +46,7 @@ public class LocationModule extends AbstractModule
     @Override
     protected void configure()
     {
-        bind(LocationRepository.class).to(MongoLocationRepository.class);
+        bind(FnCoreConfig.class).toInstance(config);
         bind(PostRepository.class).to(HybridPostRepository.class);
     }
 
@@ -47,7 +61,10 @@ public class LocationModule extends AbstractModule
             log.info("Connected to mongo server.");
             log.info("Creating indexes");
             mongoTemplate.indexOps(UserLocation.class).ensureIndex(new GeospatialIndex("position"));
-            mongoTemplate.indexOps(Post.class).ensureIndex(new GeospatialIndex("location.position"));
+            if (config.getPostRetention() <= 0) {
+                // With a retention window the posts are geo indexed along with their time instead
+                mongoTemplate.indexOps(Post.class).ensureIndex(new GeospatialIndex("location.position"));
+            }
             HybridPostRepository.initTextIndex(mongoTemplate);
             log.info("Created indexes");
             return mongoTemplate;
@@ -57,6 +74,106 @@ public class LocationModule extends AbstractModule
         }
     }
 
+    /**
+     * Picks the location store based on the location.store config, defaults to plain Mongo.
+     * The store is put behind a location cache unless location.cache.size is 0, and behind write coalescing
+     * if location.coalesce.flush_interval is set. On shutdown the coalescing layer flushes into the store
+     * before the store is closed.
+     */
+    @Provides
+    @Singleton
+    LocationRepository provideLocationRepository(MongoTemplate mongoTemplate, JedisPool jedisPool,
+                                                 MetricRegistry metrics)
+    {
+        LocationRepository backing = provideLocationStore(mongoTemplate, jedisPool);
+        LocationRepository store = backing;
+        if (config.getLocationCacheSize() > 0) {
+            store = new CachedLocationRepository(store, config.getLocationCacheSize(), config.getLocationCacheTtl(),
+                                                 metrics);
+        }
+        CoalescingLocationRepository coalescing = null;
+        if (config.getLocationCoalesceInterval() > 0) {
+            coalescing = new CoalescingLocationRepository(
+                    store, config.getLocationCoalesceDistance(), config.getLocationBulkBatchSize(), metrics);
+            coalescing.startFlushing(config.getLocationCoalesceInterval());
+            store = coalescing;
+        }
+        CoalescingLocationRepository flushed = coalescing;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (flushed != null) {
+                flushed.close();
+            }
+            if (backing instanceof Closeable) {
+                try {
+                    ((Closeable) backing).close();
+                } catch (IOException e) {
+                    log.error("Closing the location store failed", e);
+                }
+            }
+        }, "fncore-location-shutdown"));
+        return store;
+    }
+
+    private LocationRepository provideLocationStore(MongoTemplate mongoTemplate, JedisPool jedisPool)
+    {
+        if ("redis".equalsIgnoreCase(config.getLocationStore())) {
+            return new RedisLocationRepository(jedisPool, config.getRedisKeyspace());
+        }
+        if ("memory".equalsIgnoreCase(config.getLocationStore())) {
+            return provideMemoryLocationStore();
+        }
+        MongoLocationRepository mongoRepository = new MongoLocationRepository(mongoTemplate);
+        if ("indexed".equalsIgnoreCase(config.getLocationStore())) {
+            IndexedLocationRepository repository = new IndexedLocationRepository(
+                    mongoRepository, new GeoCellIndex(config.getLocationIndexCellSize()));
+            repository.load();
+            return repository;
+        }
+        return mongoRepository;
+    }
+
+    /**
+     * The store is closed, writing a final snapshot, by the shutdown hook of the location repository
+     */
+    private LocationRepository provideMemoryLocationStore()
+    {
+        MemoryLocationRepository repository = new MemoryLocationRepository(
+                Paths.get(config.getLocationMemoryDirectory()));
+        try {
+            repository.open();
+        } catch (IOException e) {
+            log.error("Restoring the in-memory location store failed!", e);
+            throw new UncheckedIOException(e);
+        }
+        repository.startSnapshots(config.getLocationMemorySnapshotInterval());
+        return repository;
+    }
+
+    /**
+     * Thread and queue sizes come from feed.fanout.threads and feed.fanout.queue_capacity, a full queue
+     * makes the caller run the task unless feed.fanout.caller_runs is false
+     */
+    @Provides
+    @Singleton
+    FanoutExecutor provideFanoutExecutor(MetricRegistry metrics)
+    {
+        int threads = config.getFeedFanoutThreads() > 0 ? config.getFeedFanoutThreads() :
+                FanoutExecutor.DEFAULT_THREADS;
+        int queueCapacity = config.getFeedFanoutQueueCapacity() > 0 ? config.getFeedFanoutQueueCapacity() :
+                FanoutExecutor.DEFAULT_QUEUE_CAPACITY;
+        FanoutExecutor executor = new FanoutExecutor(threads, queueCapacity, config.isFeedFanoutCallerRuns(),
+                                                     metrics);
+        Runtime.getRuntime().addShutdownHook(new Thread(executor::shutdown, "fncore-fanout-shutdown"));
+        return executor;
+    }
+
+    @Provides
+    @Singleton
+    FanoutOutbox provideFanoutOutbox(JedisPool jedisPool)
+    {
+        return new FanoutOutbox(jedisPool, config.getRedisKeyspace());
+    }
+
     // TODO: Add additional Jedis config, warm up at instantiation. Create a separate provider.
     // https://partners-intl.aliyun.com/help/doc-detail/98726.htm
     @Singleton
@@ -67,10 +184,29 @@ public class LocationModule extends AbstractModule
         return new JedisPool(poolConfig, config.getRedisHostName(), config.getRedisPort());
     }
 
+    /**
+     * Feeds are hydrated through a post cache unless post.cache.size is 0, with a Redis tier shared between
+     * processes if post.cache.redis is set. Posts are only read within the last post.retention days.
+     */
     @Provides
-    HybridPostRepository provideHybridPostRepository()
+    @Singleton
+    HybridPostRepository provideHybridPostRepository(MongoTemplate mongoTemplate, JedisPool jedisPool,
+                                                     MetricRegistry metrics)
     {
-        return new HybridPostRepository(provideMongoTemplate(), provideJedisPool(), config);
+        GeoCellIndex postIndex = config.isPostIndexEnabled() ?
+                new GeoCellIndex(config.getLocationIndexCellSize()) : null;
+        PostCache postCache = null;
+        if (config.getPostCacheSize() > 0) {
+            postCache = config.isPostCacheRedis() ?
+                    new PostCache(config.getPostCacheSize(), config.getPostCacheTtl(), jedisPool,
+                                  config.getRedisKeyspace(), mongoTemplate.getConverter(), metrics) :
+                    new PostCache(config.getPostCacheSize(), config.getPostCacheTtl(), metrics);
+        }
+        HybridPostRepository repository = new HybridPostRepository(mongoTemplate, jedisPool, config, postIndex,
+                                                                   postCache);
+        repository.ensureRetentionIndexes();
+        repository.loadPostIndex();
+        return repository;
     }
 
 }
@@ -0,0 +1,18 @@
+package me.twodee.friendlyneighbor.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A successful fanout along with how many of the eligible users the post reached and how many were left out
+ * by the audience cap
+ */
+@Getter
+@AllArgsConstructor
+@ToString
+public class FanoutResult extends SuccessResult
+{
+    private final int reached;
+    private final int skipped;
+}
@@ -1,29 +1,40 @@
 package me.twodee.friendlyneighbor.dto;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Errors keyed by the field or area they're about. The map is only created once the first error is added,
+ * a notification without errors costs nothing beyond itself.
+ */
 public class Notification
 {
-    Map<String, String> errors = new HashMap<>();
+    Map<String, String> errors;
 
     public void addError(String key, String message)
     {
+        if (errors == null) {
+            errors = new HashMap<>(4);
+        }
         errors.put(key, message);
     }
 
+    /**
+     * @return The errors, an immutable empty map if there are none
+     */
     public Map<String, String> getErrors()
     {
-        return errors;
+        return errors == null ? Collections.emptyMap() : errors;
     }
 
     public void setErrors(Map<String, String> errors)
     {
-        this.errors = errors;
+        this.errors = errors == null || errors.isEmpty() ? null : errors;
     }
 
     public boolean hasErrors()
     {
-        return !errors.isEmpty();
+        return errors != null && !errors.isEmpty();
     }
 }
@@ -0,0 +1,122 @@
+package me.twodee.friendlyneighbor.dto;
+
+import lombok.Getter;
+import me.twodee.friendlyneighbor.entity.Post;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * What changed in a user's feed since the last sync: the posts added, newest first, the ids of the posts
+ * removed and the horizon, the oldest post the feed still holds. The posts the client holds past the horizon
+ * fell off the feed and are dropped too. A reset delta holds the whole feed instead, the client throws away
+ * what it has. The posts are those of the timeline, the added ones may hold posts the client already has
+ * and the removed ones ids it never saw, so clients merge both by id.
+ * <p>
+ * Syncs are chained with an opaque token holding when it was handed out, where the user was then and the id
+ * of the newest post in the feed at that time. It holds nothing else of the feed, like where the posts are.
+ */
+@Getter
+public class PostDelta extends PostResults
+{
+    private List<String> removed = Collections.emptyList();
+    private boolean reset = false;
+    private String horizon = "";
+    private String syncToken = "";
+
+    public PostDelta(List<Post> posts, List<String> removed, boolean reset, String syncToken)
+    {
+        this(posts, removed, "", reset, syncToken);
+    }
+
+    /**
+     * @param horizon Id of the oldest post the feed holds, empty if it isn't known
+     */
+    public PostDelta(List<Post> posts, List<String> removed, String horizon, boolean reset, String syncToken)
+    {
+        super(posts);
+        this.removed = removed;
+        this.horizon = horizon;
+        this.reset = reset;
+        this.syncToken = syncToken;
+    }
+
+    public PostDelta(Notification notification)
+    {
+        setNotification(notification);
+    }
+
+    public static class Token
+    {
+        private final long issuedAt;
+        private final String area;
+        private final String anchor;
+
+        public Token(long issuedAt, String area)
+        {
+            this(issuedAt, area, null);
+        }
+
+        /**
+         * @param issuedAt Epoch milliseconds the token was handed out at
+         * @param area     Fingerprint of the location and radius of the user at that time
+         * @param anchor   Id of the post that was the newest in the feed at that time, null if there was none
+         */
+        public Token(long issuedAt, String area, String anchor)
+        {
+            this.issuedAt = issuedAt;
+            this.area = area;
+            this.anchor = anchor;
+        }
+
+        /**
+         * @return The fingerprint of the area, it changes whenever the location or radius do
+         */
+        public static String areaOf(double latitude, double longitude, double radius)
+        {
+            return Integer.toHexString(Objects.hash(latitude, longitude, radius));
+        }
+
+        /**
+         * @return The token or null if it's empty or malformed
+         */
+        public static Token decode(String encoded)
+        {
+            if (encoded == null || encoded.isEmpty()) {
+                return null;
+            }
+            try {
+                String decoded = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+                String[] parts = decoded.split(":", 3);
+                return new Token(Long.parseLong(parts[0]), parts[1], parts.length > 2 ? parts[2] : null);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        public String encode()
+        {
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString((issuedAt + ":" + area + (anchor == null ? "" : ":" + anchor))
+                                            .getBytes(StandardCharsets.UTF_8));
+        }
+
+        public long getIssuedAt()
+        {
+            return issuedAt;
+        }
+
+        public String getArea()
+        {
+            return area;
+        }
+
+        public String getAnchor()
+        {
+            return anchor;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package me.twodee.friendlyneighbor.dto;
+
+import lombok.Getter;
+import me.twodee.friendlyneighbor.entity.Post;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One page of a user's feed. Pages are chained with an opaque cursor holding the id and time of the last post
+ * served from the feed, the next page starts right after it wherever posts pushed onto the head of the feed
+ * meanwhile moved it to. The cursor also holds the position in the feed the next page started at and the
+ * feed's length when the cursor was handed out, to fall back on if the post is gone, and the id and time of
+ * the oldest post served so far, pulled posts included, for the pulled posts older than it to come with the
+ * next pages. It holds nothing else of the feed, like where the posts are.
+ */
+@Getter
+public class PostPage extends PostResults
+{
+    private String nextCursor = "";
+
+    public PostPage(List<Post> posts, String nextCursor)
+    {
+        super(posts);
+        this.nextCursor = nextCursor;
+    }
+
+    public PostPage(Notification notification)
+    {
+        setNotification(notification);
+    }
+
+    public static class Cursor
+    {
+        private final long offset;
+        private final long length;
+        private final String anchor;
+        private final long time;
+        private final String boundary;
+        private final long boundaryTime;
+
+        public Cursor(long offset, long length)
+        {
+            this(offset, length, null, -1);
+        }
+
+        public Cursor(long offset, long length, String anchor, long time)
+        {
+            this(offset, length, anchor, time, anchor, time);
+        }
+
+        /**
+         * @param anchor       Id of the last post served from the feed, null if there's none
+         * @param time         Time of that post as it's packed in the feed, -1 if it isn't known
+         * @param boundary     Id of the oldest post served so far, null if there's none
+         * @param boundaryTime Time of that post, packed like the feed's
+         */
+        public Cursor(long offset, long length, String anchor, long time, String boundary, long boundaryTime)
+        {
+            this.offset = offset;
+            this.length = length;
+            this.anchor = anchor;
+            this.time = anchor == null ? -1 : time;
+            this.boundary = boundary;
+            this.boundaryTime = boundary == null ? -1 : boundaryTime;
+        }
+
+        /**
+         * @return The cursor or null if it's empty or malformed
+         */
+        public static Cursor decode(String encoded)
+        {
+            if (encoded == null || encoded.isEmpty()) {
+                return null;
+            }
+            try {
+                String decoded = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+                String[] fields = decoded.split(":", -1);
+                long offset = Long.parseLong(fields[0]);
+                long length = Long.parseLong(fields[1]);
+                if (fields.length == 4) {
+                    return new Cursor(offset, length, fields[2], Long.parseLong(fields[3]));
+                }
+                if (fields.length == 6) {
+                    return new Cursor(offset, length, emptyToNull(fields[2]), Long.parseLong(fields[3]),
+                                      emptyToNull(fields[4]), Long.parseLong(fields[5]));
+                }
+                // Cursors holding something other than anchors fall back to the offset
+                return new Cursor(offset, length);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        public String encode()
+        {
+            String fields = offset + ":" + length;
+            if (boundary != null) {
+                fields += ":" + (anchor == null ? "" : anchor) + ":" + time + ":" + boundary + ":" + boundaryTime;
+            }
+            else if (anchor != null) {
+                fields += ":" + anchor + ":" + time;
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(fields.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public String getAnchor()
+        {
+            return anchor;
+        }
+
+        public long getTime()
+        {
+            return time;
+        }
+
+        public String getBoundary()
+        {
+            return boundary;
+        }
+
+        public long getBoundaryTime()
+        {
+            return boundaryTime;
+        }
+
+        private static String emptyToNull(String field)
+        {
+            return field.isEmpty() ? null : field;
+        }
+
+        /**
+         * @param currentLength Length of the feed now
+         * @return Where the next page starts in the feed as it is now
+         */
+        public long startIn(long currentLength)
+        {
+            return offset + Math.max(0, currentLength - length);
+        }
+    }
+}
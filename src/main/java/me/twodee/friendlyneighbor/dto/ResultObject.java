@@ -2,26 +2,35 @@ package me.twodee.friendlyneighbor.dto;
 
 import lombok.NoArgsConstructor;
 
+import java.util.Collections;
 import java.util.Map;
 
+/**
+ * Outcome of a service call. The notification is only created once it's asked for or an error is added, so
+ * a successful result is just the object itself. Prefer {@link #hasErrors()} and {@link #getErrors()} over
+ * going through {@link #getNotification()} when only reading.
+ */
 @NoArgsConstructor
 public class ResultObject
 {
-    protected Notification notification = new Notification();
+    protected Notification notification;
     public static String SOMETHING_WENT_WRONG = "Something went wrong internally";
 
     public ResultObject(Map<String, String> errors)
     {
-        notification.setErrors(errors);
+        getNotification().setErrors(errors);
     }
 
     public ResultObject(String errorKey, String errorMessage)
     {
-        notification.addError(errorKey, errorMessage);
+        getNotification().addError(errorKey, errorMessage);
     }
 
     public Notification getNotification()
     {
+        if (notification == null) {
+            notification = new Notification();
+        }
         return notification;
     }
 
@@ -32,6 +41,19 @@ public class ResultObject
 
     public void appendNotification(Notification notification)
     {
-        this.notification.getErrors().putAll(notification.getErrors());
+        notification.getErrors().forEach(getNotification()::addError);
     }
-}
\ No newline at end of file
+
+    public boolean hasErrors()
+    {
+        return notification != null && notification.hasErrors();
+    }
+
+    /**
+     * @return The errors, an immutable empty map if there are none
+     */
+    public Map<String, String> getErrors()
+    {
+        return notification == null ? Collections.emptyMap() : notification.getErrors();
+    }
+}
@@ -0,0 +1,155 @@
+package me.twodee.friendlyneighbor.dto;
+
+import me.twodee.friendlyneighbor.entity.UserLocation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * A page of nearby users, closest first, read lazily from the underlying store. Users are handed out one by
+ * one so they never have to be held in memory all at once. Has to be closed once done with.
+ * <p>
+ * Pages are chained with an opaque cursor holding the distance of the last user handed out and the ids of
+ * every user handed out at that distance. The stores don't agree on an order for users at the same distance,
+ * so those are told apart by id whatever order they come in.
+ */
+public class UserLocationStream extends ResultObject implements Iterator<UserLocation>, AutoCloseable
+{
+    private final Stream<UserLocation> source;
+    private final Iterator<UserLocation> iterator;
+    private final long limit;
+    private long handedOut = 0;
+    private UserLocation last;
+    private double lastDistance;
+    private final Set<String> handedOutAtLast = new HashSet<>();
+
+    public UserLocationStream(Notification notification)
+    {
+        this.source = Stream.empty();
+        this.iterator = Collections.emptyIterator();
+        this.limit = 0;
+        setNotification(notification);
+    }
+
+    /**
+     * @param source Users in ascending order of distance
+     * @param limit  Maximum number of users to hand out, 0 for no limit
+     * @param cursor Cursor of the previous page or null for the first page
+     */
+    public UserLocationStream(Stream<UserLocation> source, long limit, Cursor cursor)
+    {
+        this.source = source;
+        this.iterator = (cursor == null ? source : source.filter(cursor::isBefore)).iterator();
+        this.limit = limit;
+        if (cursor != null) {
+            lastDistance = cursor.getDistance();
+            handedOutAtLast.addAll(cursor.ids);
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return (limit == 0 || handedOut < limit) && iterator.hasNext();
+    }
+
+    @Override
+    public UserLocation next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        handedOut++;
+        last = iterator.next();
+        if (last.getDistance() != lastDistance) {
+            lastDistance = last.getDistance();
+            handedOutAtLast.clear();
+        }
+        handedOutAtLast.add(last.getId());
+        return last;
+    }
+
+    /**
+     * @return Cursor to continue after this page, or an empty string if the page wasn't cut short by the limit
+     */
+    public String nextCursor()
+    {
+        if (last == null || limit == 0 || handedOut < limit || !iterator.hasNext()) {
+            return "";
+        }
+        return new Cursor(lastDistance, handedOutAtLast).encode();
+    }
+
+    @Override
+    public void close()
+    {
+        source.close();
+    }
+
+    public static class Cursor
+    {
+        private static final String ID_SEPARATOR = "\n";
+
+        private final double distance;
+        private final Set<String> ids;
+
+        public Cursor(double distance, String id)
+        {
+            this(distance, Collections.singleton(id));
+        }
+
+        /**
+         * @param ids Every user handed out at the distance
+         */
+        public Cursor(double distance, Set<String> ids)
+        {
+            this.distance = distance;
+            this.ids = new HashSet<>(ids);
+        }
+
+        /**
+         * @return The cursor or null if it's empty or malformed
+         */
+        public static Cursor decode(String encoded)
+        {
+            if (encoded == null || encoded.isEmpty()) {
+                return null;
+            }
+            try {
+                String decoded = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+                int separator = decoded.indexOf(':');
+                return new Cursor(Double.parseDouble(decoded.substring(0, separator)),
+                                  new HashSet<>(Arrays.asList(decoded.substring(separator + 1).split(ID_SEPARATOR))));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        public String encode()
+        {
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString((distance + ":" + String.join(ID_SEPARATOR, ids)).getBytes(StandardCharsets.UTF_8));
+        }
+
+        public double getDistance()
+        {
+            return distance;
+        }
+
+        /**
+         * Users at the exact same distance are after the cursor unless they were already handed out
+         */
+        boolean isBefore(UserLocation location)
+        {
+            double other = location.getDistance();
+            return other > distance || (other == distance && !ids.contains(location.getId()));
+        }
+    }
+}
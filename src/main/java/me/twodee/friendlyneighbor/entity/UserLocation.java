@@ -2,6 +2,7 @@ package me.twodee.friendlyneighbor.entity;
 
 import lombok.*;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
 import org.springframework.data.mongodb.core.index.GeoSpatialIndexType;
 import org.springframework.data.mongodb.core.index.GeoSpatialIndexed;
 import org.springframework.data.mongodb.core.mapping.Document;
@@ -27,18 +28,50 @@ public class UserLocation
     private String id;
     @GeoSpatialIndexed(type = GeoSpatialIndexType.GEO_2DSPHERE)
     private double[] position;
-    private Number distance;
+    /**
+     * Distance in KM from whoever looked this location up, 0 unless this is a lookup result. Never stored, it
+     * only means something to the lookup that set it.
+     */
+    @Transient
+    private double distance;
     private double radius;
 
     public UserLocation(String id, Position position, double radius)
+    {
+        this(id, position.getLatitude(), position.getLongitude(), radius);
+    }
+
+    public UserLocation(String id, double latitude, double longitude, double radius)
     {
         this.id = id;
-        this.position = new double[]{ position.getLongitude(), position.getLatitude() };
+        this.position = new double[]{ longitude, latitude };
         this.radius = radius;
     }
 
+    /**
+     * @return Whether the coordinates are set, documents saved without them are read back with none
+     */
+    public boolean hasPosition()
+    {
+        return position != null;
+    }
+
+    /**
+     * @return A new Position every call, {@link #getLatitude()} and {@link #getLongitude()} read the
+     * coordinates without creating one
+     */
     public Position getPosition()
     {
         return new Position(position[1], position[0]);
     }
+
+    public double getLatitude()
+    {
+        return position[1];
+    }
+
+    public double getLongitude()
+    {
+        return position[0];
+    }
 }
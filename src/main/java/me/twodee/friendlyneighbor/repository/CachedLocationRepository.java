@@ -0,0 +1,159 @@
+package me.twodee.friendlyneighbor.repository;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import me.twodee.friendlyneighbor.component.MetricRegistry;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.exception.DbFailure;
+import me.twodee.friendlyneighbor.exception.InvalidUser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Write-through cache of user locations by id in front of another location store. Saves populate the
+ * cache, deletes invalidate it, and entries are evicted by size and age so changes made by other
+ * processes are picked up eventually.
+ * <p>
+ * The cache hands out copies, callers are free to modify what they get back.
+ */
+public class CachedLocationRepository implements LocationRepository
+{
+    private final LocationRepository repository;
+    private final Cache<String, UserLocation> cache;
+
+    /**
+     * @param repository The store behind the cache
+     * @param maxSize    Maximum number of cached locations
+     * @param ttlSeconds Seconds a location stays cached after it was written to the cache
+     * @param metrics    Registry the hit/miss counts are published to
+     */
+    public CachedLocationRepository(LocationRepository repository, long maxSize, long ttlSeconds,
+                                    MetricRegistry metrics)
+    {
+        this.repository = repository;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        metrics.gauge("location.cache.hits", () -> cache.stats().hitCount());
+        metrics.gauge("location.cache.misses", () -> cache.stats().missCount());
+        metrics.gauge("location.cache.evictions", () -> cache.stats().evictionCount());
+        metrics.gauge("location.cache.size", cache::size);
+    }
+
+    @Override
+    public UserLocation save(UserLocation userLocation)
+    {
+        UserLocation persisted = repository.save(userLocation);
+        cache.put(persisted.getId(), copy(persisted));
+        return persisted;
+    }
+
+    @Override
+    public Map<String, String> saveAll(List<UserLocation> userLocations)
+    {
+        Map<String, String> errors = repository.saveAll(userLocations);
+        for (UserLocation userLocation : userLocations) {
+            if (errors.containsKey(userLocation.getId())) {
+                cache.invalidate(userLocation.getId());
+            }
+            else {
+                cache.put(userLocation.getId(), copy(userLocation));
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public List<UserLocation> getUsersNearBy(String userId) throws InvalidUser, DbFailure
+    {
+        UserLocation userLocation = findById(userId);
+        if (userLocation == null) {
+            throw new InvalidUser("The user id supplied doesn't exist");
+        }
+        return repository.getUsersAround(userLocation);
+    }
+
+    @Override
+    public List<UserLocation> getUsersNearBy(UserLocation userLocation) throws InvalidUser, DbFailure
+    {
+        if (findById(userLocation.getId()) == null) {
+            throw new InvalidUser("The user id supplied doesn't exist");
+        }
+        return repository.getUsersAround(userLocation);
+    }
+
+    @Override
+    public List<UserLocation> getUsersAround(UserLocation userLocation) throws DbFailure
+    {
+        return repository.getUsersAround(userLocation);
+    }
+
+    @Override
+    public Stream<UserLocation> streamUsersAround(UserLocation userLocation, double minDistance) throws DbFailure
+    {
+        return repository.streamUsersAround(userLocation, minDistance);
+    }
+
+    @Override
+    public UserLocation findById(String id)
+    {
+        UserLocation cached = cache.getIfPresent(id);
+        if (cached != null) {
+            return copy(cached);
+        }
+        UserLocation location = repository.findById(id);
+        if (location != null) {
+            cache.put(id, copy(location));
+        }
+        return location;
+    }
+
+    /**
+     * Only the users missing from the cache are looked up in the store, in one call
+     */
+    @Override
+    public Map<String, UserLocation> findAllById(Collection<String> ids)
+    {
+        Map<String, UserLocation> locations = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String id : ids) {
+            UserLocation cached = cache.getIfPresent(id);
+            if (cached != null) {
+                locations.put(id, copy(cached));
+            }
+            else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            repository.findAllById(missing).forEach((id, location) -> {
+                cache.put(id, copy(location));
+                locations.put(id, location);
+            });
+        }
+        return locations;
+    }
+
+    @Override
+    public void deleteById(String id)
+    {
+        // Invalidate on both sides so a read racing with the delete can't put the location back
+        cache.invalidate(id);
+        repository.deleteById(id);
+        cache.invalidate(id);
+    }
+
+    private static UserLocation copy(UserLocation location)
+    {
+        return new UserLocation(location.getId(), location.getLatitude(), location.getLongitude(),
+                                location.getRadius());
+    }
+}
@@ -0,0 +1,241 @@
+package me.twodee.friendlyneighbor.repository;
+
+import lombok.extern.slf4j.Slf4j;
+import me.twodee.friendlyneighbor.component.MetricRegistry;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.exception.DbFailure;
+import me.twodee.friendlyneighbor.exception.InvalidUser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static me.twodee.friendlyneighbor.component.Util.haversine;
+
+/**
+ * Write-behind layer that coalesces location updates before they reach another location store. An update
+ * that moved less than the threshold from the user's last accepted location and kept the same radius is
+ * dropped. Everything else is held as the user's pending location, a newer update replacing an older one,
+ * and the pending locations are written in bulk by {@link #flush()}, usually on a timer.
+ * <p>
+ * A saved location is only durable once it has been flushed. Reads of a user with a pending location see
+ * the pending one.
+ */
+@Slf4j
+public class CoalescingLocationRepository implements LocationRepository
+{
+    private final LocationRepository repository;
+    private final double threshold;
+    private final int batchSize;
+    private final MetricRegistry metrics;
+    private final Map<String, UserLocation> pending = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;
+
+    /**
+     * @param repository The store the updates are flushed to
+     * @param threshold  Distance in KM a user has to move for an update with an unchanged radius to be kept
+     * @param batchSize  Maximum number of locations written in one bulk write
+     * @param metrics    Registry the dropped/flushed counts are published to
+     */
+    public CoalescingLocationRepository(LocationRepository repository, double threshold, int batchSize,
+                                        MetricRegistry metrics)
+    {
+        this.repository = repository;
+        this.threshold = threshold;
+        this.batchSize = batchSize > 0 ? batchSize : 500;
+        this.metrics = metrics;
+        metrics.gauge("location.coalesce.pending", pending::size);
+    }
+
+    /**
+     * Flushes the pending locations at a fixed interval until {@link #close()} is called
+     *
+     * @param intervalMillis Milliseconds between two flushes
+     */
+    public synchronized void startFlushing(long intervalMillis)
+    {
+        if (flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fncore-location-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the timer and writes out whatever is still pending
+     */
+    public void close()
+    {
+        synchronized (this) {
+            if (flusher != null) {
+                flusher.shutdown();
+                flusher = null;
+            }
+        }
+        flush();
+    }
+
+    @Override
+    public UserLocation save(UserLocation userLocation)
+    {
+        UserLocation accepted = pending.get(userLocation.getId());
+        if (accepted == null) {
+            accepted = repository.findById(userLocation.getId());
+        }
+        if (accepted != null && isNegligible(accepted, userLocation)) {
+            metrics.increment("location.coalesce.dropped");
+            return userLocation;
+        }
+        pending.put(userLocation.getId(), userLocation);
+        return userLocation;
+    }
+
+    /**
+     * Bulk saves skip the coalescing and go straight to the store, replacing any pending location of the
+     * same users
+     */
+    @Override
+    public synchronized Map<String, String> saveAll(List<UserLocation> userLocations)
+    {
+        userLocations.forEach(location -> pending.remove(location.getId()));
+        return repository.saveAll(userLocations);
+    }
+
+    /**
+     * Writes every pending location to the store. Locations that fail to be written are put back unless a
+     * newer update came in meanwhile.
+     */
+    public synchronized void flush()
+    {
+        List<UserLocation> batch = new ArrayList<>(Math.min(batchSize, pending.size()));
+        for (String id : pending.keySet()) {
+            UserLocation location = pending.remove(id);
+            if (location == null) {
+                continue;
+            }
+            batch.add(location);
+            if (batch.size() == batchSize) {
+                write(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    private void flushQuietly()
+    {
+        try {
+            flush();
+        } catch (Throwable e) {
+            log.error("Flushing pending locations failed", e);
+        }
+    }
+
+    private void write(List<UserLocation> batch)
+    {
+        Map<String, String> errors;
+        try {
+            errors = repository.saveAll(batch);
+        } catch (RuntimeException e) {
+            batch.forEach(location -> pending.putIfAbsent(location.getId(), location));
+            throw e;
+        }
+        for (UserLocation location : batch) {
+            if (errors.containsKey(location.getId())) {
+                log.warn("Flushing location of " + location.getId() + " failed: " + errors.get(location.getId()));
+                pending.putIfAbsent(location.getId(), location);
+            }
+        }
+        metrics.add("location.coalesce.flushed", batch.size() - errors.size());
+    }
+
+    private boolean isNegligible(UserLocation accepted, UserLocation update)
+    {
+        if (accepted.getRadius() != update.getRadius()) {
+            return false;
+        }
+        return haversine(accepted.getLatitude(), accepted.getLongitude(),
+                         update.getLatitude(), update.getLongitude()) < threshold;
+    }
+
+    @Override
+    public List<UserLocation> getUsersNearBy(String userId) throws InvalidUser, DbFailure
+    {
+        UserLocation userLocation = pending.get(userId);
+        if (userLocation == null) {
+            return repository.getUsersNearBy(userId);
+        }
+        return repository.getUsersAround(userLocation);
+    }
+
+    @Override
+    public List<UserLocation> getUsersNearBy(UserLocation userLocation) throws InvalidUser, DbFailure
+    {
+        if (pending.containsKey(userLocation.getId())) {
+            return repository.getUsersAround(userLocation);
+        }
+        return repository.getUsersNearBy(userLocation);
+    }
+
+    @Override
+    public List<UserLocation> getUsersAround(UserLocation userLocation) throws DbFailure
+    {
+        return repository.getUsersAround(userLocation);
+    }
+
+    @Override
+    public Stream<UserLocation> streamUsersAround(UserLocation userLocation, double minDistance) throws DbFailure
+    {
+        return repository.streamUsersAround(userLocation, minDistance);
+    }
+
+    @Override
+    public UserLocation findById(String id)
+    {
+        UserLocation userLocation = pending.get(id);
+        return userLocation != null ? userLocation : repository.findById(id);
+    }
+
+    @Override
+    public Map<String, UserLocation> findAllById(Collection<String> ids)
+    {
+        Map<String, UserLocation> locations = new HashMap<>();
+        List<String> stored = new ArrayList<>();
+        for (String id : ids) {
+            UserLocation userLocation = pending.get(id);
+            if (userLocation != null) {
+                locations.put(id, userLocation);
+            }
+            else {
+                stored.add(id);
+            }
+        }
+        if (!stored.isEmpty()) {
+            locations.putAll(repository.findAllById(stored));
+        }
+        return locations;
+    }
+
+    /**
+     * Waits for a running flush so a location drained before the delete isn't written back after it
+     */
+    @Override
+    public synchronized void deleteById(String id)
+    {
+        pending.remove(id);
+        repository.deleteById(id);
+    }
+}
@@ -0,0 +1,187 @@
+package me.twodee.friendlyneighbor.repository;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.StreamEntry;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.StreamPendingEntry;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable queue of posts waiting to be fanned out, kept in a Redis stream read through a consumer group. An
+ * entry stays pending until it's completed, so a worker dying halfway leaves it to be claimed again by
+ * another one: every post is fanned out at least once.
+ * <p>
+ * Completing a post also leaves a marker under its id for a day, which tells a redelivered entry of an
+ * already finished post apart from one that still has work left.
+ */
+public class FanoutOutbox
+{
+    private static final String GROUP = "fanout";
+    private static final String POST_ID = "postId";
+    private static final int DONE_TTL_SECONDS = (int) TimeUnit.DAYS.toSeconds(1);
+
+    private final JedisPool jedisPool;
+    private final String streamKey;
+    private final String doneNamespace;
+    private volatile boolean groupCreated = false;
+
+    public FanoutOutbox(JedisPool jedisPool, String keyspace)
+    {
+        this.jedisPool = jedisPool;
+        this.streamKey = keyspace + ".FANOUT_OUTBOX";
+        this.doneNamespace = keyspace + ".FANOUT_DONE:";
+    }
+
+    /**
+     * A post taken off the outbox along with how often it has been handed out so far, this time included
+     */
+    public static class Entry
+    {
+        private final StreamEntryID id;
+        private final String postId;
+        private final long deliveries;
+
+        public Entry(StreamEntryID id, String postId, long deliveries)
+        {
+            this.id = id;
+            this.postId = postId;
+            this.deliveries = deliveries;
+        }
+
+        public String getPostId()
+        {
+            return postId;
+        }
+
+        public long getDeliveries()
+        {
+            return deliveries;
+        }
+    }
+
+    public void append(String postId)
+    {
+        try (Jedis jedis = jedisPool.getResource()) {
+            ensureGroup(jedis);
+            jedis.xadd(streamKey, StreamEntryID.NEW_ENTRY, Collections.singletonMap(POST_ID, postId));
+        }
+    }
+
+    /**
+     * Takes posts nobody has been handed yet, waiting up to the given time for one to come in
+     *
+     * @param consumer    Name of the worker taking them
+     * @param count       Most posts taken at once
+     * @param blockMillis Milliseconds to wait if there are none
+     */
+    public List<Entry> take(String consumer, int count, long blockMillis)
+    {
+        try (Jedis jedis = jedisPool.getResource()) {
+            ensureGroup(jedis);
+            // Jedis takes the streams as generic varargs, an array of them can only be made raw
+            @SuppressWarnings("unchecked")
+            Map.Entry<String, StreamEntryID>[] from = new Map.Entry[]{
+                    new AbstractMap.SimpleImmutableEntry<>(streamKey, StreamEntryID.UNRECEIVED_ENTRY) };
+            List<Map.Entry<String, List<StreamEntry>>> streams = jedis.xreadGroup(
+                    GROUP, consumer, count, blockMillis, false, from);
+            if (streams == null || streams.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<Entry> entries = new ArrayList<>();
+            for (StreamEntry entry : streams.get(0).getValue()) {
+                entries.add(new Entry(entry.getID(), entry.getFields().get(POST_ID), 1));
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Takes over posts another worker was handed but hasn't completed for a while, usually because it died or
+     * the fanout failed
+     *
+     * @param consumer      Name of the worker taking them
+     * @param minIdleMillis How long a post has to have been left pending
+     * @param count         Most posts looked at
+     */
+    public List<Entry> reclaim(String consumer, long minIdleMillis, int count)
+    {
+        try (Jedis jedis = jedisPool.getResource()) {
+            ensureGroup(jedis);
+            List<StreamPendingEntry> pending = jedis.xpending(streamKey, GROUP, null, null, count, null);
+            Map<StreamEntryID, Long> deliveries = new HashMap<>();
+            for (StreamPendingEntry entry : pending) {
+                if (entry.getIdleTime() >= minIdleMillis) {
+                    deliveries.put(entry.getID(), entry.getDeliveredTimes());
+                }
+            }
+            if (deliveries.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<StreamEntry> claimed = jedis.xclaim(streamKey, GROUP, consumer, minIdleMillis, 0, 0, false,
+                                                     deliveries.keySet().toArray(new StreamEntryID[0]));
+            List<Entry> entries = new ArrayList<>(claimed.size());
+            for (StreamEntry entry : claimed) {
+                // The fields are gone if the entry was deleted meanwhile
+                if (entry != null && entry.getFields() != null) {
+                    entries.add(new Entry(entry.getID(), entry.getFields().get(POST_ID),
+                                          deliveries.get(entry.getID()) + 1));
+                }
+            }
+            return entries;
+        }
+    }
+
+    public boolean isDone(String postId)
+    {
+        try (Jedis jedis = jedisPool.getResource()) {
+            return jedis.exists(doneNamespace + postId);
+        }
+    }
+
+    /**
+     * Marks the post as fanned out and drops it from the outbox
+     */
+    public void complete(Entry entry)
+    {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.setex(doneNamespace + entry.postId, DONE_TTL_SECONDS, "1");
+            pipeline.xack(streamKey, GROUP, entry.id);
+            pipeline.xdel(streamKey, entry.id);
+            pipeline.sync();
+        }
+    }
+
+    /**
+     * Drops the post from the outbox without marking it as fanned out
+     */
+    public void discard(Entry entry)
+    {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.xack(streamKey, GROUP, entry.id);
+            pipeline.xdel(streamKey, entry.id);
+            pipeline.sync();
+        }
+    }
+
+    private void ensureGroup(Jedis jedis)
+    {
+        if (groupCreated) {
+            return;
+        }
+        try {
+            jedis.xgroupCreate(streamKey, GROUP, new StreamEntryID(), true);
+        } catch (JedisDataException e) {
+            if (!e.getMessage().startsWith("BUSYGROUP")) {
+                throw e;
+            }
+        }
+        groupCreated = true;
+    }
+}
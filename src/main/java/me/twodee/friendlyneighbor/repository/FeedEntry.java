@@ -0,0 +1,128 @@
+package me.twodee.friendlyneighbor.repository;
+
+import me.twodee.friendlyneighbor.entity.Post;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Format of the entries in the Redis feeds. An entry carries what a feed read needs to answer without
+ * going to Mongo:
+ * <pre>
+ *     postId:1:epochMillis:type:latitude:longitude:radius:authorId
+ * </pre>
+ * The time is taken as UTC and the type is the first letter of the post type, - if it has none. The author
+ * id comes last so it can hold colons, the post id can't.
+ * <p>
+ * Feeds written before entries were packed hold bare post ids, those are still read as such.
+ */
+final class FeedEntry
+{
+    private static final String VERSION = "1";
+    private static final String SEPARATOR = ":";
+    private static final int FIELDS = 8;
+
+    private FeedEntry()
+    {
+    }
+
+    /**
+     * @return The packed entry, the bare id if the post has no location or time to pack
+     */
+    static String pack(Post post)
+    {
+        UserLocation location = post.getLocation();
+        if (location == null || post.getTime() == null) {
+            return post.getId();
+        }
+        return post.getId() + SEPARATOR + VERSION
+                + SEPARATOR + timeOf(post)
+                + SEPARATOR + (post.getType() == null ? "-" : post.getType().name().substring(0, 1))
+                + SEPARATOR + location.getLatitude()
+                + SEPARATOR + location.getLongitude()
+                + SEPARATOR + location.getRadius()
+                + SEPARATOR + location.getId();
+    }
+
+    /**
+     * @return The post time in epoch milliseconds as it's packed, taken as UTC. Now if the post has no time.
+     */
+    static long timeOf(Post post)
+    {
+        if (post.getTime() == null) {
+            return packedTime(System.currentTimeMillis());
+        }
+        return post.getTime().toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    /**
+     * @return The instant in the clock post times are packed in: the local time taken as UTC
+     */
+    static long packedTime(long epochMillis)
+    {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault())
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    /**
+     * @return The post time packed in the entry in epoch milliseconds, -1 if the entry is a bare id or in a
+     * format this version doesn't know
+     */
+    static long timeOf(String entry)
+    {
+        String[] fields = entry.split(SEPARATOR, 4);
+        if (fields.length < 4 || !VERSION.equals(fields[1])) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fields[2]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static String idOf(String entry)
+    {
+        int end = entry.indexOf(SEPARATOR);
+        return end < 0 ? entry : entry.substring(0, end);
+    }
+
+    static boolean isPacked(String entry)
+    {
+        return entry.contains(SEPARATOR);
+    }
+
+    /**
+     * @return The post the entry describes, without its title, or null if the entry is a bare id or in a
+     * format this version doesn't know
+     */
+    static Post unpack(String entry)
+    {
+        String[] fields = entry.split(SEPARATOR, FIELDS);
+        if (fields.length < FIELDS || !VERSION.equals(fields[1])) {
+            return null;
+        }
+        try {
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(Long.parseLong(fields[2])),
+                                                         ZoneOffset.UTC);
+            UserLocation location = new UserLocation(fields[7], Double.parseDouble(fields[4]),
+                                                     Double.parseDouble(fields[5]), Double.parseDouble(fields[6]));
+            return new Post(fields[0], location, time, typeOf(fields[3]), null);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Post.PostType typeOf(String letter)
+    {
+        for (Post.PostType type : Post.PostType.values()) {
+            if (letter.length() == 1 && type.name().startsWith(letter)) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -2,22 +2,43 @@ package me.twodee.friendlyneighbor.repository;
 
 import lombok.extern.slf4j.Slf4j;
 import me.twodee.friendlyneighbor.component.FnCoreConfig;
+import me.twodee.friendlyneighbor.component.GeoCellIndex;
+import me.twodee.friendlyneighbor.dto.PostDelta;
+import me.twodee.friendlyneighbor.dto.PostPage;
 import me.twodee.friendlyneighbor.entity.Post;
 import me.twodee.friendlyneighbor.entity.UserLocation;
+import org.bson.Document;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.geo.*;
+import org.springframework.data.mongodb.UncategorizedMongoDbException;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.CompoundIndexDefinition;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
 import org.springframework.data.mongodb.core.index.TextIndexDefinition;
 import org.springframework.data.mongodb.core.query.*;
+import org.springframework.data.util.CloseableIterator;
+import redis.clients.jedis.GeoRadiusResponse;
+import redis.clients.jedis.GeoUnit;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
 import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.GeoRadiusParam;
 
 import javax.inject.Inject;
 import java.io.IOException;
-import java.util.List;
-import java.util.Properties;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static me.twodee.friendlyneighbor.component.Util.haversine;
@@ -32,9 +53,63 @@ public class HybridPostRepository implements PostRepository
     private final JedisPool jedisPool;
     private static final String DEFAULT_NAMESPACE = "FN_CORE";
     private static final String FEED_KEYSPACE = "FEED";
+    private static final String PULLED_KEYSPACE = "PULLED";
+    private static final String TOMBSTONE_KEYSPACE = "TOMBSTONES";
+    /**
+     * Name of the 2d index on the post location, created when there's no retention window
+     */
+    public static final String PLANAR_INDEX = "location.position_2d";
+    private static final int SYNC_SCAN_CHUNK = 64;
+    private static final int SYNC_SCAN_LIMIT = 1024;
+    private static final int PAGE_SCAN_WINDOW = 32;
+    private static final Comparator<Post> NEWEST_FIRST = Comparator
+            .comparingLong((Post post) -> FeedEntry.timeOf(post)).reversed()
+            .thenComparing(Post::getId);
+    private static final int HORIZON_CHUNK = 16;
+    private static final int HORIZON_READS = 3;
     private String feedNamespace = DEFAULT_NAMESPACE + "." + FEED_KEYSPACE;
     public static final long CACHE_EXPIRY_DEFAULT_DAYS = 10;
     private long expiryInDays = CACHE_EXPIRY_DEFAULT_DAYS;
+    public static final int FANOUT_BATCH_SIZE_DEFAULT = 500;
+    private int fanoutBatchSize = FANOUT_BATCH_SIZE_DEFAULT;
+    public static final long SYNC_OVERLAP_DEFAULT_MILLIS = 60000;
+    private long syncOverlap = SYNC_OVERLAP_DEFAULT_MILLIS;
+    private long fanoutLag = 0;
+    private long timelineMaxLength = 0;
+    private long retentionDays = 0;
+    private boolean retentionTtl = false;
+    private boolean retentionMigrate = false;
+    private GeoCellIndex postIndex;
+    private PostCache postCache;
+    private TimelineEncoding encoding = TimelineEncoding.LIST;
+
+    /**
+     * How the feeds are kept in Redis
+     */
+    public enum TimelineEncoding
+    {
+        /**
+         * Lists in push order, read by position only
+         */
+        LIST,
+        /**
+         * Sorted sets scored by post time, which can also be read and trimmed by time
+         */
+        SORTED_SET;
+
+        /**
+         * @return The encoding by its name in any case, {@link #LIST} if there's none by that name
+         */
+        public static TimelineEncoding from(String name)
+        {
+            for (TimelineEncoding encoding : values()) {
+                if (encoding.name().equalsIgnoreCase(name)) {
+                    return encoding;
+                }
+            }
+            return LIST;
+        }
+    }
 
     /**
      * @param mongoTemplate
@@ -54,9 +129,138 @@ public class HybridPostRepository implements PostRepository
         this.jedisPool = jedisPool;
         expiryInDays = config.getFeedCacheExpiry();
         feedNamespace = config.getRedisKeyspace() + "." + FEED_KEYSPACE;
+        if (config.getFeedFanoutBatchSize() > 0) {
+            fanoutBatchSize = config.getFeedFanoutBatchSize();
+        }
+        timelineMaxLength = config.getFeedTimelineMaxLength();
+        retentionDays = config.getPostRetention();
+        retentionTtl = config.isPostRetentionTtl();
+        retentionMigrate = config.isPostRetentionMigrate();
+        encoding = TimelineEncoding.from(config.getFeedTimelineEncoding());
+        if (config.getFeedSyncOverlap() > 0) {
+            syncOverlap = config.getFeedSyncOverlap();
+        }
+        if (config.isFeedFanoutAsync()) {
+            // A post waiting in the outbox is pushed at the latest on its last retry
+            fanoutLag = Math.max(0, config.getFeedOutboxRetryAfter()) * Math.max(0, config.getFeedOutboxMaxAttempts());
+        }
        // initIndexes(mongoTemplate);
     }
 
+    /**
+     * @param postIndex Coverage index over the posts' circles, answers which posts can see a user without
+     *                  a geo query. Call {@link #loadPostIndex()} before serving.
+     */
+    public HybridPostRepository(MongoTemplate mongoTemplate, JedisPool jedisPool, FnCoreConfig config,
+                                GeoCellIndex postIndex) {
+        this(mongoTemplate, jedisPool, config);
+        this.postIndex = postIndex;
+    }
+
+    /**
+     * @param postIndex Coverage index over the posts' circles, null to answer with geo queries
+     * @param postCache Cache the feeds are hydrated from before going to Mongo
+     */
+    public HybridPostRepository(MongoTemplate mongoTemplate, JedisPool jedisPool, FnCoreConfig config,
+                                GeoCellIndex postIndex, PostCache postCache) {
+        this(mongoTemplate, jedisPool, config, postIndex);
+        this.postCache = postCache;
+    }
+
+    /**
+     * (Re)builds the post coverage index from the posts collection, only the location fields are read
+     */
+    public void loadPostIndex() {
+        if (postIndex == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        postIndex.clear();
+        Query query = Query.query(withinRetention(new Criteria()));
+        query.fields().include("location.id").include("location.position").include("location.radius");
+        try (CloseableIterator<Post> posts = mongoTemplate.stream(query, Post.class)) {
+            posts.forEachRemaining(this::indexPost);
+        }
+        log.info("Indexed " + postIndex.size() + " posts in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Indexes the posts by location and time, so the geo query only walks the posts in the retention window.
+     * A 2d index on the location is only dropped if post.retention.migrate is set, $geoNear can't choose
+     * between it and the compound one so it has to go before the window is turned on. The posts past the
+     * window are also deleted by a TTL index on their time if post.retention.ttl is set. A TTL index left from
+     * an earlier retention is kept as it is, change it with collMod.
+     */
+    public void ensureRetentionIndexes() {
+        if (retentionDays <= 0) {
+            return;
+        }
+        IndexOperations indexes = mongoTemplate.indexOps(Post.class);
+        indexes.ensureIndex(new CompoundIndexDefinition(new Document("location.position", "2dsphere")
+                                                                .append("time", 1)).named("location_time"));
+        if (indexes.getIndexInfo().stream().anyMatch(index -> PLANAR_INDEX.equals(index.getName()))) {
+            if (retentionMigrate) {
+                indexes.dropIndex(PLANAR_INDEX);
+                log.info("Dropped the post index " + PLANAR_INDEX + " in favour of location_time");
+            }
+            else {
+                log.warn("The post index " + PLANAR_INDEX + " is still there next to location_time, geo reads "
+                                 + "can't pick one. Set post.retention.migrate to drop it.");
+            }
+        }
+        if (!retentionTtl) {
+            return;
+        }
+        try {
+            indexes.ensureIndex(new Index().on("time", Sort.Direction.ASC).named("time_ttl")
+                                        .expire(retentionDays, TimeUnit.DAYS));
+        } catch (UncategorizedMongoDbException e) {
+            log.warn("Couldn't create the post TTL index, is there one with another expiry? " + e.getMessage());
+        }
+    }
+
+    /**
+     * Narrows the criteria down to the posts in the retention window, if there's one
+     */
+    private Criteria withinRetention(Criteria criteria) {
+        if (retentionDays <= 0) {
+            return criteria;
+        }
+        return criteria.and("time").gte(LocalDateTime.now().minusDays(retentionDays));
+    }
+
+    /**
+     * @return Start of the retention window in epoch milliseconds the way post times are packed and scored,
+     * 0 if there's no window
+     */
+    private long retentionStart() {
+        if (retentionDays <= 0) {
+            return 0;
+        }
+        return LocalDateTime.now().minusDays(retentionDays).toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private boolean isRetained(Post post) {
+        return retentionDays <= 0 || post.getTime() == null
+                || !post.getTime().isBefore(LocalDateTime.now().minusDays(retentionDays));
+    }
+
+    private String getPulledKey(String suffix) {
+        return feedNamespace + "." + PULLED_KEYSPACE + suffix;
+    }
+
+    private String getTombstoneKey() {
+        return feedNamespace + "." + TOMBSTONE_KEYSPACE;
+    }
+
+    private void indexPost(Post post) {
+        UserLocation location = post.getLocation();
+        if (location != null && location.hasPosition()) {
+            postIndex.put(post.getId(), location.getId(), location.getLatitude(), location.getLongitude(),
+                          location.getRadius());
+        }
+    }
+
     public static void initTextIndex(MongoTemplate template) {
         TextIndexDefinition textIndex = new TextIndexDefinition.TextIndexDefinitionBuilder()
                 .onField("title", 2F)
@@ -67,19 +271,71 @@ public class HybridPostRepository implements PostRepository
 
     @Override
     public Post save(Post post) {
-        return mongoTemplate.save(post);
+        Post persisted = mongoTemplate.save(post);
+        if (postIndex != null) {
+            indexPost(persisted);
+        }
+        if (postCache != null) {
+            postCache.putAll(Collections.singletonList(persisted));
+        }
+        return persisted;
+    }
+
+    @Override
+    public Post findById(String id)
+    {
+        return mongoTemplate.findById(id, Post.class);
     }
 
+    /**
+     * Pushes the post onto the feeds in pipelined batches on a single connection, so a batch costs at most
+     * two round trips however many users it holds
+     */
     @Override
     public void forwardToUsers(List<UserLocation> userLocations, Post post) {
-        userLocations.parallelStream()
-                .forEach(location -> fanout(location, post));
+        if (userLocations.isEmpty()) {
+            return;
+        }
+        String toStore = FeedEntry.pack(post);
+        try (Jedis jedis = jedisPool.getResource()) {
+            for (int from = 0; from < userLocations.size(); from += fanoutBatchSize) {
+                List<UserLocation> batch = userLocations.subList(from, Math.min(from + fanoutBatchSize,
+                                                                                userLocations.size()));
+                if (encoding == TimelineEncoding.SORTED_SET) {
+                    fanoutSorted(jedis, batch, toStore, FeedEntry.timeOf(post));
+                }
+                else {
+                    fanout(jedis, batch, toStore);
+                }
+            }
+        }
     }
 
+    /**
+     * The post isn't looked for in the feeds it was pushed to, that would mean walking the whole audience.
+     * It's tombstoned instead and feed reads drop it from the feed they come across it in. Tombstones are
+     * kept as long as a feed lives without being read.
+     */
     @Override
     public void deleteById(String id)
     {
         mongoTemplate.remove(Query.query(Criteria.where("id").is(id)), Post.class);
+        if (postIndex != null) {
+            postIndex.remove(id);
+        }
+        if (postCache != null) {
+            postCache.invalidate(id);
+        }
+        long now = System.currentTimeMillis();
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.zadd(getTombstoneKey(), now, id);
+            pipeline.zremrangeByScore(getTombstoneKey(), 0, now - TimeUnit.DAYS.toMillis(expiryInDays));
+            pipeline.zrem(getPulledKey(""), id);
+            pipeline.hdel(getPulledKey("_RADIUS"), id);
+            pipeline.zrem(getPulledKey("_TIME"), id);
+            pipeline.sync();
+        }
     }
 
     /**
@@ -98,54 +354,530 @@ public class HybridPostRepository implements PostRepository
         }
     }
 
-    private String serializeForRedis(String postId)
+    /**
+     * Turns the feed entries into posts in feed order, entries of the same post after the first are left
+     * out. Packed entries are read as they are, only the posts of bare ids are fetched.
+     */
+    private List<Post> readEntries(List<String> entries)
     {
-        return postId;
+        return readEntries(Collections.singletonMap("", entries)).get("");
     }
 
-    private String deserializeIdFromRedis(String serializedVal)
+    /**
+     * Reads the entries of many feeds like {@link #readEntries(List)}, the posts of the bare ids in all of
+     * them are fetched in one go. A fetched post in more than one feed is copied into each, so every feed
+     * can be given its own distances.
+     */
+    private Map<String, List<Post>> readEntries(Map<String, List<String>> feeds)
     {
-        return serializedVal.split(":")[0];
-    }
+        Map<String, Map<String, Post>> read = new LinkedHashMap<>();
+        Set<String> bare = new LinkedHashSet<>();
+        for (Map.Entry<String, List<String>> feed : feeds.entrySet()) {
+            Map<String, Post> posts = new LinkedHashMap<>();
+            for (String entry : feed.getValue()) {
+                String id = FeedEntry.idOf(entry);
+                if (posts.containsKey(id)) {
+                    continue;
+                }
+                Post post = FeedEntry.unpack(entry);
+                posts.put(id, post);
+                if (post == null) {
+                    bare.add(id);
+                }
+            }
+            read.put(feed.getKey(), posts);
+        }
+        Map<String, Post> fetched = new HashMap<>();
+        if (!bare.isEmpty()) {
+            fetchPostsByPostIds(new ArrayList<>(bare)).forEach(post -> fetched.putIfAbsent(post.getId(), post));
+        }
 
+        Map<String, List<Post>> results = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Post>> feed : read.entrySet()) {
+            List<Post> posts = new ArrayList<>(feed.getValue().size());
+            feed.getValue().forEach((id, post) -> {
+                if (post != null) {
+                    if (isRetained(post)) {
+                        posts.add(post);
+                    }
+                }
+                else if (fetched.containsKey(id) && isRetained(fetched.get(id))) {
+                    posts.add(read.size() > 1 ? PostCache.copy(fetched.get(id)) : fetched.get(id));
+                }
+            });
+            results.put(feed.getKey(), posts);
+        }
+        return results;
+    }
 
     /**
-     * Fan-out to all users in the vicinity. We can optimize by using LPUSHX and hydrating on pull later
-     * If we happen to have a lot of users. For a few couple hundred, create their own timelines.
-     * Once we start running out of RAM, start evicting old feeds.
+     * Rewrites the feeds still holding bare post ids with packed entries. A feed that's written to while
+     * it's being migrated is tried again, and skipped after a few tries, it's read fine either way.
      *
-     * @param otherUserLocation
-     * @param post
+     * @return Number of feeds rewritten
      */
-    private void fanout(UserLocation otherUserLocation, Post post)
+    public long migrateFeedEntries()
     {
+        long migrated = 0;
         try (Jedis jedis = jedisPool.getResource()) {
-            String key = getKey(otherUserLocation.getId());
-            String toStore = serializeForRedis(post.getId());
+            ScanParams params = new ScanParams().match(feedNamespace + ":*").count(500);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> scan = jedis.scan(cursor, params);
+                for (String key : scan.getResult()) {
+                    if (migrateFeed(jedis, key)) {
+                        migrated++;
+                    }
+                }
+                cursor = scan.getCursor();
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        }
+        log.info("Migrated " + migrated + " feeds to packed entries");
+        return migrated;
+    }
+
+    private boolean migrateFeed(Jedis jedis, String key)
+    {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            jedis.watch(key);
+            List<String> entries;
             try {
-                // Create their feed, since we expect smaller numbers
-                // Expires after 30 days
-                if (!jedis.exists(key)) {
-                    putIntoList(jedis, key, toStore);
+                entries = readAll(jedis, key);
+            } catch (JedisDataException e) {
+                jedis.unwatch();
+                return false;
+            }
+            if (entries.stream().allMatch(FeedEntry::isPacked)) {
+                jedis.unwatch();
+                return false;
+            }
+            if (replaceFeed(jedis, key, readEntries(entries))) {
+                return true;
+            }
+        }
+        log.warn("Gave up migrating " + key + ", it kept changing");
+        return false;
+    }
+
+    /**
+     * Brings the user's feed in line with a new neighbourhood: the posts of the users no longer nearby are
+     * taken out and the posts of the users newly nearby merged in by time. Only the posts of the newly nearby
+     * users are read from Mongo. A feed that doesn't exist is left to be built on the next read, one that's
+     * written to meanwhile is tried again, and dropped after a few tries so the next read rebuilds it.
+     *
+     * @param joined Ids of the users nearby now that weren't before
+     * @param left   Ids of the users nearby before that aren't anymore
+     */
+    @Override
+    public void rematerialize(UserLocation userLocation, Collection<String> joined, Collection<String> left)
+    {
+        String key = getKey(userLocation.getId());
+        List<Post> joinedPosts = null;
+        try (Jedis jedis = jedisPool.getResource()) {
+            for (int attempt = 0; attempt < 3; attempt++) {
+                jedis.watch(key);
+                List<String> entries;
+                try {
+                    entries = readAll(jedis, key);
+                } catch (JedisDataException e) {
+                    jedis.unwatch();
+                    return;
                 }
-                else {
-                    // Append to the already existing list
-                    jedis.lpushx(key, toStore);
+                if (entries.isEmpty()) {
+                    jedis.unwatch();
+                    return;
+                }
+                if (joinedPosts == null) {
+                    joinedPosts = joined.isEmpty() ? Collections.emptyList()
+                                                   : fetchPostsByLocationIds(new ArrayList<>(joined));
+                }
+                Map<String, Post> posts = new LinkedHashMap<>();
+                for (Post post : readEntries(entries)) {
+                    if (post.getLocation() == null || !left.contains(post.getLocation().getId())) {
+                        posts.put(post.getId(), post);
+                    }
+                }
+                joinedPosts.forEach(post -> posts.putIfAbsent(post.getId(), post));
+                List<Post> merged = new ArrayList<>(posts.values());
+                merged.sort(Comparator.comparing(Post::getTime, Comparator.nullsLast(Comparator.reverseOrder())));
+                if (timelineMaxLength > 0 && merged.size() > timelineMaxLength) {
+                    merged = merged.subList(0, (int) timelineMaxLength);
+                }
+                if (replaceFeed(jedis, key, merged)) {
+                    return;
+                }
+            }
+            log.warn("Gave up rematerializing " + key + ", it kept changing");
+            jedis.del(key);
+        }
+    }
+
+    @Override
+    public void dropTimeline(String userId)
+    {
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.del(getKey(userId));
+        }
+    }
+
+    /**
+     * Replaces the watched feed with the posts, keeping its expiry
+     *
+     * @return Whether the feed was replaced, false if it changed since it was watched
+     */
+    private boolean replaceFeed(Jedis jedis, String key, List<Post> posts)
+    {
+        String[] packed = posts.stream().map(FeedEntry::pack).toArray(String[]::new);
+        long ttl = jedis.ttl(key);
+        Transaction transaction = jedis.multi();
+        transaction.del(key);
+        if (packed.length > 0) {
+            if (encoding == TimelineEncoding.SORTED_SET) {
+                transaction.zadd(key, scored(posts));
+            }
+            else {
+                transaction.rpush(key, packed);
+            }
+            if (ttl > 0) {
+                transaction.expire(key, (int) ttl);
+            }
+        }
+        return transaction.exec() != null;
+    }
+
+
+    /**
+     * Fan-out to a batch of users in the vicinity. Existing feeds are appended to with LPUSHX in one
+     * pipeline, the feeds that turned out missing are created with an expiry in a second one. For a few
+     * couple hundred, create their own timelines. Once we start running out of RAM, start evicting old feeds.
+     *
+     * @param jedis   Connection the batch is pipelined on
+     * @param batch   Users whose feeds the post goes to
+     * @param toStore Serialized post
+     */
+    private void fanout(Jedis jedis, List<UserLocation> batch, String toStore)
+    {
+        List<Response<Long>> appended = new ArrayList<>(batch.size());
+        Pipeline pipeline = jedis.pipelined();
+        for (UserLocation location : batch) {
+            appended.add(pipeline.lpushx(getKey(location.getId()), toStore));
+            trim(pipeline, getKey(location.getId()));
+        }
+        pipeline.sync();
+
+        Pipeline creation = null;
+        for (int i = 0; i < batch.size(); i++) {
+            String key = getKey(batch.get(i).getId());
+            boolean occupied = false;
+            try {
+                if (appended.get(i).get() > 0) {
+                    continue;
                 }
             } catch (JedisDataException e) {
                 // Someone occupied the list
                 // Claim it back
                 log.warn("Invalid type value has been occupying keyspace " + key);
-                jedis.del(key);
-                putIntoList(jedis, key, toStore);
+                occupied = true;
+            }
+            if (creation == null) {
+                creation = jedis.pipelined();
+            }
+            if (occupied) {
+                creation.del(key);
+            }
+            putIntoList(creation, key, toStore);
+        }
+        if (creation != null) {
+            creation.sync();
+        }
+    }
+
+    /**
+     * Fan-out to a batch of users whose feeds are sorted sets. ZADD creates a missing feed, so the TTLs are
+     * read back in the same pipeline to tell the feeds that were just created and still need an expiry.
+     *
+     * @param score Post time the entry is scored by, the same {@link #scored} rebuilt feeds get
+     */
+    private void fanoutSorted(Jedis jedis, List<UserLocation> batch, String toStore, double score)
+    {
+        List<Response<Long>> added = new ArrayList<>(batch.size());
+        List<Response<Long>> ttls = new ArrayList<>(batch.size());
+        Pipeline pipeline = jedis.pipelined();
+        for (UserLocation location : batch) {
+            String key = getKey(location.getId());
+            added.add(pipeline.zadd(key, score, toStore));
+            trim(pipeline, key);
+            ttls.add(pipeline.ttl(key));
+        }
+        pipeline.sync();
+
+        Pipeline creation = null;
+        for (int i = 0; i < batch.size(); i++) {
+            String key = getKey(batch.get(i).getId());
+            boolean occupied = false;
+            try {
+                added.get(i).get();
+                if (ttls.get(i).get() >= 0) {
+                    continue;
+                }
+            } catch (JedisDataException e) {
+                log.warn("Invalid type value has been occupying keyspace " + key);
+                occupied = true;
+            }
+            if (creation == null) {
+                creation = jedis.pipelined();
+            }
+            if (occupied) {
+                creation.del(key);
+                creation.zadd(key, score, toStore);
+            }
+            creation.expire(key, (int) TimeUnit.DAYS.toSeconds(expiryInDays));
+        }
+        if (creation != null) {
+            creation.sync();
+        }
+    }
+
+    /**
+     * The post is stored once in a geo set with its radius and time next to it, instead of on every feed.
+     * Entries older than the feed expiry are dropped on the way.
+     */
+    @Override
+    public void publishForPull(Post post)
+    {
+        UserLocation location = post.getLocation();
+        long now = System.currentTimeMillis();
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.geoadd(getPulledKey(""), location.getLongitude(), location.getLatitude(), post.getId());
+            pipeline.hset(getPulledKey("_RADIUS"), post.getId(), String.valueOf(location.getRadius()));
+            pipeline.zadd(getPulledKey("_TIME"), now, post.getId());
+            Response<Set<String>> expired = pipeline.zrangeByScore(
+                    getPulledKey("_TIME"), 0, now - TimeUnit.DAYS.toMillis(expiryInDays));
+            pipeline.sync();
+            if (!expired.get().isEmpty()) {
+                String[] ids = expired.get().toArray(new String[0]);
+                Pipeline cleanup = jedis.pipelined();
+                cleanup.zrem(getPulledKey(""), ids);
+                cleanup.hdel(getPulledKey("_RADIUS"), ids);
+                cleanup.zrem(getPulledKey("_TIME"), ids);
+                cleanup.sync();
+            }
+        }
+    }
+
+    /**
+     * @param since Epoch milliseconds, only the posts published for pull after it are looked for. 0 for all.
+     * @return Ids of the pulled posts within the user's radius whose own radius reaches the user
+     */
+    private List<String> findPulledPostIds(Jedis jedis, UserLocation userLocation, long since)
+    {
+        try {
+            List<GeoRadiusResponse> candidates = jedis.georadius(
+                    getPulledKey(""), userLocation.getLongitude(), userLocation.getLatitude(),
+                    userLocation.getRadius(), GeoUnit.KM, GeoRadiusParam.geoRadiusParam().withDist());
+            if (candidates.isEmpty()) {
+                return Collections.emptyList();
+            }
+            String[] ids = candidates.stream().map(GeoRadiusResponse::getMemberByString).toArray(String[]::new);
+            List<String> radii = jedis.hmget(getPulledKey("_RADIUS"), ids);
+            List<String> visible = new ArrayList<>(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                if (radii.get(i) != null && candidates.get(i).getDistance() <= Double.parseDouble(radii.get(i))) {
+                    visible.add(ids[i]);
+                }
+            }
+            if (since > 0 && !visible.isEmpty()) {
+                Set<String> recent = jedis.zrangeByScore(getPulledKey("_TIME"), "(" + since, "+inf");
+                visible.removeIf(id -> !recent.contains(id));
+            }
+            return visible;
+        } catch (JedisException e) {
+            log.warn("Reading pulled posts failed, serving the pushed feed alone", e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Merges the pulled posts the user can see into their pushed feed, newest first
+     */
+    private List<Post> mergePulled(List<Post> pushed, UserLocation userLocation, Jedis jedis)
+    {
+        return mergePulled(pushed, userLocation, jedis, 0);
+    }
+
+    /**
+     * @param since Epoch milliseconds, only the posts published for pull after it are merged. 0 for all.
+     */
+    private List<Post> mergePulled(List<Post> pushed, UserLocation userLocation, Jedis jedis, long since)
+    {
+        List<Post> pulled = findPulled(pushed, userLocation, jedis, since);
+        if (pulled.isEmpty()) {
+            return pushed;
+        }
+        List<Post> merged = new ArrayList<>(pushed);
+        merged.addAll(pulled);
+        merged.sort(Comparator.comparing(Post::getTime, Comparator.nullsLast(Comparator.reverseOrder())));
+        return merged;
+    }
+
+    /**
+     * @param pushed Posts from the pushed feed, pulled posts among them are left out
+     * @param since  Epoch milliseconds, only the posts published for pull after it are looked for. 0 for all.
+     * @return The pulled posts the user can see that aren't their own
+     */
+    private List<Post> findPulled(List<Post> pushed, UserLocation userLocation, Jedis jedis, long since)
+    {
+        Set<String> known = pushed.stream().map(Post::getId).collect(Collectors.toSet());
+        List<String> pulledIds = findPulledPostIds(jedis, userLocation, since).stream()
+                .filter(id -> !known.contains(id))
+                .collect(Collectors.toList());
+        if (pulledIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return fetchPostsByPostIds(pulledIds).stream()
+                .filter(post -> post.getLocation() == null || !userLocation.getId().equals(post.getLocation().getId()))
+                .filter(this::isRetained)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Leaves out the entries of deleted posts and of posts past the retention window, and removes them from
+     * the feed on the way so the next read doesn't come across them again
+     *
+     * @param key     The feed the entries were read from
+     * @param entries Entries as read from the feed
+     * @return The entries of posts that are still around, in feed order
+     */
+    private List<String> dropTombstoned(Jedis jedis, String key, List<String> entries)
+    {
+        if (entries.isEmpty()) {
+            return entries;
+        }
+        return dropTombstoned(jedis, Collections.singletonMap(key, entries)).get(key);
+    }
+
+    /**
+     * Drops the deleted and expired posts from many feeds like {@link #dropTombstoned(Jedis, String, List)},
+     * looking the entries of all of them up in one pipeline
+     *
+     * @param feeds Entries as read from the feeds, by feed key
+     * @return The entries of posts that are still around by feed key, in feed order
+     */
+    private Map<String, List<String>> dropTombstoned(Jedis jedis, Map<String, List<String>> feeds)
+    {
+        Pipeline lookup = jedis.pipelined();
+        Map<String, List<Response<Double>>> deletedAt = new HashMap<>();
+        for (Map.Entry<String, List<String>> feed : feeds.entrySet()) {
+            List<Response<Double>> scores = new ArrayList<>(feed.getValue().size());
+            for (String entry : feed.getValue()) {
+                scores.add(lookup.zscore(getTombstoneKey(), FeedEntry.idOf(entry)));
+            }
+            deletedAt.put(feed.getKey(), scores);
+        }
+        lookup.sync();
+
+        Map<String, List<String>> alive = new LinkedHashMap<>();
+        Pipeline cleanup = null;
+        long windowStart = retentionStart();
+        for (Map.Entry<String, List<String>> feed : feeds.entrySet()) {
+            String key = feed.getKey();
+            List<String> entries = feed.getValue();
+            List<String> kept = new ArrayList<>(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                long time = FeedEntry.timeOf(entries.get(i));
+                boolean expired = time >= 0 && time < windowStart;
+                if (!expired && deletedAt.get(key).get(i).get() == null) {
+                    kept.add(entries.get(i));
+                    continue;
+                }
+                if (cleanup == null) {
+                    cleanup = jedis.pipelined();
+                }
+                if (encoding == TimelineEncoding.SORTED_SET) {
+                    cleanup.zrem(key, entries.get(i));
+                }
+                else {
+                    cleanup.lrem(key, 0, entries.get(i));
+                }
+            }
+            alive.put(key, kept);
+        }
+        if (cleanup != null) {
+            cleanup.sync();
+        }
+        return alive;
+    }
+
+    /**
+     * Cuts the feed down to the newest posts, the oldest ones fall off the tail. Sorted set feeds also lose
+     * the posts past the retention window, list feeds lose them when they're read.
+     */
+    private void trim(Pipeline pipeline, String key)
+    {
+        if (encoding == TimelineEncoding.LIST) {
+            if (timelineMaxLength > 0) {
+                pipeline.ltrim(key, 0, timelineMaxLength - 1);
             }
+            return;
+        }
+        if (timelineMaxLength > 0) {
+            pipeline.zremrangeByRank(key, 0, -timelineMaxLength - 1);
+        }
+        if (retentionDays > 0) {
+            pipeline.zremrangeByScore(key, "-inf", "(" + retentionStart());
+        }
+    }
+
+    /**
+     * @return The whole feed, newest first
+     */
+    private List<String> readAll(Jedis jedis, String key)
+    {
+        return readRange(jedis, key, 0, -1);
+    }
+
+    /**
+     * @return The entries between the positions, both included, counted from the newest
+     */
+    private List<String> readRange(Jedis jedis, String key, long start, long end)
+    {
+        if (encoding == TimelineEncoding.SORTED_SET) {
+            return new ArrayList<>(jedis.zrevrange(key, start, end));
+        }
+        return jedis.lrange(key, start, end);
+    }
+
+    private Response<? extends Collection<String>> readAll(Pipeline pipeline, String key)
+    {
+        if (encoding == TimelineEncoding.SORTED_SET) {
+            return pipeline.zrevrange(key, 0, -1);
+        }
+        return pipeline.lrange(key, 0, -1);
+    }
+
+    private long length(Jedis jedis, String key)
+    {
+        return encoding == TimelineEncoding.SORTED_SET ? jedis.zcard(key) : jedis.llen(key);
+    }
+
+    /**
+     * @return The packed entries of the posts by their time
+     */
+    private static Map<String, Double> scored(List<Post> posts)
+    {
+        Map<String, Double> scores = new HashMap<>();
+        for (Post post : posts) {
+            scores.put(FeedEntry.pack(post), (double) FeedEntry.timeOf(post));
         }
+        return scores;
     }
 
-    private void putIntoList(Jedis jedis, String key, String value)
+    private void putIntoList(Pipeline pipeline, String key, String value)
     {
-        jedis.lpush(key, value);
-        jedis.expire(key, (int) TimeUnit.DAYS.toSeconds(expiryInDays));
+        // Create their feed, since we expect smaller numbers
+        pipeline.lpush(key, value);
+        pipeline.expire(key, (int) TimeUnit.DAYS.toSeconds(expiryInDays));
     }
 
     private String getKey(String id)
@@ -155,6 +887,12 @@ public class HybridPostRepository implements PostRepository
 
     @Override
     public List<Post> findAllForUser(UserLocation userLocation, List<UserLocation> nearbyUsers)
+    {
+        return findTimelineForUser(userLocation, () -> nearbyUsers);
+    }
+
+    @Override
+    public List<Post> findTimelineForUser(UserLocation userLocation, Supplier<List<UserLocation>> nearbyUsers)
     {
         try (Jedis jedis = jedisPool.getResource()) {
             String key = getKey(userLocation.getId());
@@ -165,21 +903,440 @@ public class HybridPostRepository implements PostRepository
                     // He's fresh, reset expiry
                     jedis.expire(key, (int) TimeUnit.DAYS.toSeconds(expiryInDays));
                     // Return the entire list, for now
-                    return processPostDistances(fetchPostsByPostIds(jedis.lrange(key, 0, -1)), userLocation);
+                    List<Post> pushed = readEntries(dropTombstoned(jedis, key, readAll(jedis, key)));
+                    return processPostDistances(mergePulled(pushed, userLocation, jedis), userLocation);
                 } catch (JedisDataException e) {
                     log.warn("Invalid type value has been occupying keyspace " + key);
                     jedis.del(key);
-                    return processPostDistances(fetchAndRehydrate(key, nearbyUsers, jedis), userLocation);
+                    List<Post> pushed = fetchAndRehydrate(key, nearbyUsers.get(), jedis);
+                    return processPostDistances(mergePulled(pushed, userLocation, jedis), userLocation);
                 }
             }
             else {
-                return processPostDistances(fetchAndRehydrate(key, nearbyUsers, jedis), userLocation);
+                List<Post> pushed = fetchAndRehydrate(key, nearbyUsers.get(), jedis);
+                return processPostDistances(mergePulled(pushed, userLocation, jedis), userLocation);
+            }
+        }
+    }
+
+    /**
+     * The feeds are read in one pipeline and their deleted posts looked up in another. The posts of bare
+     * entries are fetched together for all the feeds. Missing feeds are rebuilt one by one, and the pulled
+     * posts are merged into each feed on its own.
+     */
+    @Override
+    public Map<String, List<Post>> findTimelinesForUsers(List<UserLocation> userLocations,
+                                                         Function<UserLocation, List<UserLocation>> nearbyUsers)
+    {
+        Map<String, List<Post>> timelines = new LinkedHashMap<>();
+        try (Jedis jedis = jedisPool.getResource()) {
+            List<Response<? extends Collection<String>>> reads = new ArrayList<>(userLocations.size());
+            Pipeline pipeline = jedis.pipelined();
+            for (UserLocation userLocation : userLocations) {
+                String key = getKey(userLocation.getId());
+                reads.add(readAll(pipeline, key));
+                pipeline.expire(key, (int) TimeUnit.DAYS.toSeconds(expiryInDays));
+            }
+            pipeline.sync();
+
+            Map<String, List<String>> entries = new LinkedHashMap<>();
+            for (int i = 0; i < userLocations.size(); i++) {
+                String key = getKey(userLocations.get(i).getId());
+                try {
+                    Collection<String> read = reads.get(i).get();
+                    if (!read.isEmpty()) {
+                        entries.put(key, new ArrayList<>(read));
+                    }
+                } catch (JedisDataException e) {
+                    log.warn("Invalid type value has been occupying keyspace " + key);
+                    jedis.del(key);
+                }
+            }
+            Map<String, List<Post>> pushed = entries.isEmpty() ? Collections.emptyMap()
+                                                               : readEntries(dropTombstoned(jedis, entries));
+
+            for (UserLocation userLocation : userLocations) {
+                String key = getKey(userLocation.getId());
+                List<Post> posts = pushed.containsKey(key) ? pushed.get(key)
+                                                           : fetchAndRehydrate(key, nearbyUsers.apply(userLocation),
+                                                                               jedis);
+                timelines.put(userLocation.getId(),
+                              processPostDistances(mergePulled(posts, userLocation, jedis), userLocation));
+            }
+        }
+        return timelines;
+    }
+
+    /**
+     * Sorted set feeds are read by score, only the entries newer than the time are read. List feeds are read
+     * whole and filtered.
+     */
+    @Override
+    public List<Post> findTimelineSince(UserLocation userLocation, Supplier<List<UserLocation>> nearbyUsers,
+                                        LocalDateTime since)
+    {
+        if (encoding == TimelineEncoding.SORTED_SET) {
+            try (Jedis jedis = jedisPool.getResource()) {
+                String key = getKey(userLocation.getId());
+                try {
+                    if (jedis.exists(key)) {
+                        jedis.expire(key, (int) TimeUnit.DAYS.toSeconds(expiryInDays));
+                        Set<String> entries = jedis.zrevrangeByScore(
+                                key, "+inf", "(" + since.toInstant(ZoneOffset.UTC).toEpochMilli());
+                        List<Post> pushed = readEntries(dropTombstoned(jedis, key, new ArrayList<>(entries)));
+                        return processPostDistances(newerThan(mergePulled(pushed, userLocation, jedis), since),
+                                                    userLocation);
+                    }
+                } catch (JedisDataException e) {
+                    log.warn("Invalid type value has been occupying keyspace " + key);
+                    jedis.del(key);
+                }
             }
         }
+        return newerThan(findTimelineForUser(userLocation, nearbyUsers), since);
+    }
+
+    /**
+     * List feeds answer with the entries pushed on top of the post that was the newest when the token was
+     * handed out, however late the fanout of their post ran. Sorted set feeds are scored by post time, they
+     * answer with the posts newer than the token, reaching back as long as the outbox may hold a post back
+     * on top of the sync overlap. Pulled posts go by the time they were published for pull. The posts removed
+     * are the tombstones laid meanwhile, the horizon tells the client which of its posts fell off the tail of
+     * the feed to trimming or the retention window.
+     * <p>
+     * A token handed out before the user's location or radius changed, before the oldest tombstones kept, or
+     * whose post is no longer among the newest of the list, is answered with the whole feed.
+     */
+    @Override
+    public PostDelta findDeltaForUser(UserLocation userLocation, Supplier<List<UserLocation>> nearbyUsers,
+                                      String token)
+    {
+        long now = System.currentTimeMillis();
+        String area = PostDelta.Token.areaOf(userLocation.getLatitude(), userLocation.getLongitude(),
+                                             userLocation.getRadius());
+        PostDelta.Token last = PostDelta.Token.decode(token);
+        if (last != null && last.getArea().equals(area)
+                && last.getIssuedAt() >= now - TimeUnit.DAYS.toMillis(expiryInDays)) {
+            PostDelta delta = findDeltaSince(userLocation, last, now);
+            if (delta != null) {
+                return delta;
+            }
+        }
+        // Taken before the feed is read, the posts pushed in between are sent again rather than missed
+        String head = findHead(getKey(userLocation.getId()));
+        return new PostDelta(findTimelineForUser(userLocation, nearbyUsers), Collections.emptyList(), "", true,
+                             new PostDelta.Token(now, area, head).encode());
+    }
+
+    /**
+     * @return The delta since the token, null if the feed can't tell and has to be sent whole
+     */
+    private PostDelta findDeltaSince(UserLocation userLocation, PostDelta.Token last, long now)
+    {
+        long from = Math.min(last.getIssuedAt(), now) - syncOverlap;
+        String key = getKey(userLocation.getId());
+        try (Jedis jedis = jedisPool.getResource()) {
+            try {
+                if (!jedis.exists(key)) {
+                    return null;
+                }
+                jedis.expire(key, (int) TimeUnit.DAYS.toSeconds(expiryInDays));
+                List<String> entries;
+                if (encoding == TimelineEncoding.SORTED_SET) {
+                    entries = new ArrayList<>(jedis.zrevrangeByScore(
+                            key, "+inf", "(" + FeedEntry.packedTime(from - fanoutLag)));
+                }
+                else {
+                    entries = readPushedOnTop(jedis, key, last.getAnchor());
+                    if (entries == null) {
+                        return null;
+                    }
+                }
+                List<String> alive = dropTombstoned(jedis, key, entries);
+                String anchor = null;
+                if (encoding == TimelineEncoding.LIST) {
+                    anchor = alive.isEmpty() ? last.getAnchor() : FeedEntry.idOf(alive.get(0));
+                }
+
+                Set<String> removed = new LinkedHashSet<>(
+                        jedis.zrangeByScore(getTombstoneKey(), "(" + from, "+inf"));
+                String horizon = findHorizon(jedis, key, removed);
+                List<Post> added = mergePulled(readEntries(alive), userLocation, jedis, from);
+                return new PostDelta(processPostDistances(added, userLocation), new ArrayList<>(removed), horizon,
+                                     false, new PostDelta.Token(now, last.getArea(), anchor).encode());
+            } catch (JedisDataException e) {
+                log.warn("Invalid type value has been occupying keyspace " + key);
+                jedis.del(key);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return Id of the newest post of a list feed, for the next sync to go on from. Null for sorted set
+     * feeds, which go on by time, and for missing feeds.
+     */
+    private String findHead(String key)
+    {
+        if (encoding == TimelineEncoding.SORTED_SET) {
+            return null;
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            String head = jedis.lindex(key, 0);
+            return head == null ? null : FeedEntry.idOf(head);
+        } catch (JedisDataException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the list from its head until the anchor's post turns up
+     *
+     * @param anchor Id of the post the last sync saw as the newest, null if the feed had none then
+     * @return The entries pushed on top of the anchor, newest first. Null if the anchor isn't among the newest
+     * entries of the feed anymore.
+     */
+    private List<String> readPushedOnTop(Jedis jedis, String key, String anchor)
+    {
+        if (anchor == null) {
+            return readAll(jedis, key);
+        }
+        // Posts pushed between two reads move the entries down, those read twice are kept once
+        Set<String> above = new LinkedHashSet<>();
+        for (long start = 0; start < SYNC_SCAN_LIMIT; start += SYNC_SCAN_CHUNK) {
+            List<String> chunk = jedis.lrange(key, start, start + SYNC_SCAN_CHUNK - 1);
+            for (String entry : chunk) {
+                if (anchor.equals(FeedEntry.idOf(entry))) {
+                    return new ArrayList<>(above);
+                }
+                above.add(entry);
+            }
+            if (chunk.size() < SYNC_SCAN_CHUNK) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the feed from its tail for the oldest post still in it. The deleted and expired posts come
+     * across on the way are removed from the feed and their ids added to the removed ones.
+     *
+     * @return Id of the oldest post the feed holds, empty if none was found within a few reads
+     */
+    private String findHorizon(Jedis jedis, String key, Collection<String> removed)
+    {
+        for (int read = 0; read < HORIZON_READS; read++) {
+            List<String> tail = readTail(jedis, key, HORIZON_CHUNK);
+            if (tail.isEmpty()) {
+                return "";
+            }
+            List<String> alive = dropTombstoned(jedis, key, tail);
+            for (String entry : tail) {
+                if (!alive.contains(entry)) {
+                    removed.add(FeedEntry.idOf(entry));
+                }
+            }
+            if (!alive.isEmpty()) {
+                return FeedEntry.idOf(alive.get(0));
+            }
+        }
+        return "";
+    }
+
+    /**
+     * @return The oldest entries of the feed, oldest first
+     */
+    private List<String> readTail(Jedis jedis, String key, int count)
+    {
+        if (encoding == TimelineEncoding.SORTED_SET) {
+            return new ArrayList<>(jedis.zrange(key, 0, count - 1));
+        }
+        List<String> tail = new ArrayList<>(jedis.lrange(key, -count, -1));
+        Collections.reverse(tail);
+        return tail;
+    }
+
+    private static List<Post> newerThan(List<Post> posts, LocalDateTime since)
+    {
+        return posts.stream()
+                .filter(post -> post.getTime() != null && post.getTime().isAfter(since))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Only the posts on the page are fetched from Mongo. The next page resumes after the last post served,
+     * wherever the posts pushed meanwhile moved it to: it's looked up by its time in sorted sets and around
+     * where it's expected to be in lists.
+     * <p>
+     * Pulled posts are merged into every page by time: a page gets the ones older than the oldest post
+     * earlier pages served, as far as its own oldest pushed post, and all that are left once the pushed feed
+     * ends. The page is still cut at the page size, the pulled posts that don't fit come with the next one.
+     */
+    @Override
+    public PostPage findPageForUser(UserLocation userLocation, Supplier<List<UserLocation>> nearbyUsers,
+                                    int pageSize, String cursor)
+    {
+        PostPage.Cursor after = PostPage.Cursor.decode(cursor);
+        try (Jedis jedis = jedisPool.getResource()) {
+            String key = getKey(userLocation.getId());
+            long length;
+            try {
+                length = length(jedis, key);
+            } catch (JedisDataException e) {
+                log.warn("Invalid type value has been occupying keyspace " + key);
+                jedis.del(key);
+                length = 0;
+            }
+
+            List<Post> page;
+            List<String> served;
+            long start;
+            boolean ended;
+            if (length == 0) {
+                List<Post> rebuilt = fetchAndRehydrate(key, nearbyUsers.get(), jedis);
+                List<String> entries = rebuilt.stream().map(FeedEntry::pack).collect(Collectors.toList());
+                length = rebuilt.size();
+                start = after == null ? 0 : Math.min(resumeAt(entries, after, length), length);
+                int end = (int) Math.min(start + pageSize, length);
+                page = new ArrayList<>(rebuilt.subList((int) start, end));
+                served = new ArrayList<>(entries.subList((int) start, end));
+                ended = end == length;
+            }
+            else {
+                jedis.expire(key, (int) TimeUnit.DAYS.toSeconds(expiryInDays));
+                start = after == null ? 0 : resumeAt(jedis, key, after, length);
+                List<String> entries = readRange(jedis, key, start, start + pageSize - 1);
+                ended = entries.size() < pageSize;
+                served = dropTombstoned(jedis, key, entries);
+                // The dropped entries were all on this page, the rest of the feed moved up by as many
+                length -= entries.size() - served.size();
+                page = readEntries(served);
+            }
+
+            Post oldestPushed = page.stream().max(NEWEST_FIRST).orElse(null);
+            boolean pushedEnded = ended;
+            List<Post> pulled = findPulled(page, userLocation, jedis, 0).stream()
+                    .filter(post -> after == null || after.getBoundary() == null
+                            || isOlder(post, after.getBoundaryTime(), after.getBoundary()))
+                    .filter(post -> pushedEnded
+                            || oldestPushed != null && !isOlder(post, FeedEntry.timeOf(oldestPushed),
+                                                                oldestPushed.getId()))
+                    .collect(Collectors.toList());
+            Set<String> cut = Collections.emptySet();
+            boolean pulledLeft = false;
+            if (!pulled.isEmpty()) {
+                page = new ArrayList<>(page);
+                page.addAll(pulled);
+                page.sort(NEWEST_FIRST);
+                if (page.size() > pageSize) {
+                    Set<String> left = page.subList(pageSize, page.size()).stream()
+                            .map(Post::getId)
+                            .collect(Collectors.toSet());
+                    page = new ArrayList<>(page.subList(0, pageSize));
+                    pulledLeft = pulled.stream().anyMatch(post -> left.contains(post.getId()));
+                    cut = left;
+                }
+            }
+            // The page goes up to the first entry whose post didn't make the cut
+            int last = served.size() - 1;
+            for (int i = 0; i < served.size(); i++) {
+                if (cut.contains(FeedEntry.idOf(served.get(i)))) {
+                    last = i - 1;
+                    break;
+                }
+            }
+            long next = start + last + 1;
+            String anchor = after == null ? null : after.getAnchor();
+            long time = after == null ? -1 : after.getTime();
+            if (last >= 0) {
+                anchor = FeedEntry.idOf(served.get(last));
+                time = FeedEntry.timeOf(served.get(last));
+            }
+            // The oldest post served so far, the pulled posts up to it are on this page or an earlier one
+            String boundary = after == null ? null : after.getBoundary();
+            long boundaryTime = after == null ? -1 : after.getBoundaryTime();
+            Post oldest = page.isEmpty() ? null : page.stream().max(NEWEST_FIRST).get();
+            if (oldest != null && (boundary == null || isOlder(oldest, boundaryTime, boundary))) {
+                boundary = oldest.getId();
+                boundaryTime = FeedEntry.timeOf(oldest);
+            }
+            boolean more = next < length && !(ended && last == served.size() - 1) || pulledLeft;
+            String nextCursor = more
+                    ? new PostPage.Cursor(next, length, anchor, time, boundary, boundaryTime).encode()
+                    : "";
+            return new PostPage(processPostDistances(page, userLocation), nextCursor);
+        }
+    }
+
+    /**
+     * @return Whether the post comes after the one of the time and id in a feed read newest first
+     */
+    private static boolean isOlder(Post post, long time, String id)
+    {
+        long postTime = FeedEntry.timeOf(post);
+        return postTime < time || postTime == time && post.getId().compareTo(id) > 0;
+    }
+
+    /**
+     * @return Where the page after the cursor starts in the feed as it is now. Sorted sets are counted down
+     * to the time of the last post served, which still holds if the post is gone. Lists are looked through
+     * around where the post is expected to be, if it isn't there it falls back to the offset.
+     */
+    private long resumeAt(Jedis jedis, String key, PostPage.Cursor after, long length)
+    {
+        String anchor = after.getAnchor();
+        long expected = after.startIn(length);
+        if (anchor == null) {
+            return expected;
+        }
+        if (encoding == TimelineEncoding.SORTED_SET) {
+            if (after.getTime() < 0) {
+                // Entries without a time are bare ids, the anchor is the entry itself
+                Long rank = jedis.zrevrank(key, anchor);
+                return rank == null ? expected : rank + 1;
+            }
+            long newer = jedis.zcount(key, "(" + after.getTime(), "+inf");
+            Set<String> ties = jedis.zrevrangeByScore(key, after.getTime(), after.getTime());
+            long position = newer;
+            for (String entry : ties) {
+                position++;
+                if (anchor.equals(FeedEntry.idOf(entry))) {
+                    return position;
+                }
+            }
+            return position;
+        }
+        long from = Math.max(0, expected - PAGE_SCAN_WINDOW);
+        List<String> around = jedis.lrange(key, from, expected + PAGE_SCAN_WINDOW - 1);
+        for (int i = 0; i < around.size(); i++) {
+            if (anchor.equals(FeedEntry.idOf(around.get(i)))) {
+                return from + i + 1;
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * @return Where the page after the cursor starts in a feed just rebuilt from the entries
+     */
+    private static long resumeAt(List<String> entries, PostPage.Cursor after, long length)
+    {
+        if (after.getAnchor() != null) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (after.getAnchor().equals(FeedEntry.idOf(entries.get(i)))) {
+                    return i + 1;
+                }
+            }
+        }
+        return after.startIn(length);
     }
 
     @Override
     public List<Post> findAllForUser(UserLocation currentUserLocation) {
+        if (postIndex != null) {
+            return findVisibleInIndex(currentUserLocation);
+        }
         GeoResults<Post> geoResults = mongoTemplate.query(Post.class)
                 .as(Post.class)
                 .near(createNearQuery(currentUserLocation.getPosition(), currentUserLocation.getRadius()))
@@ -190,6 +1347,38 @@ public class HybridPostRepository implements PostRepository
                 .collect(Collectors.toList());
     }
 
+    /**
+     * The index already applies both radii, so only the posts that end up in the feed are fetched
+     */
+    private List<Post> findVisibleInIndex(UserLocation currentUserLocation) {
+        List<UserLocation> visible = postIndex.findNearby(currentUserLocation.getLatitude(),
+                                                          currentUserLocation.getLongitude(),
+                                                          currentUserLocation.getRadius(),
+                                                          currentUserLocation.getId());
+        if (visible.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<String> ids = visible.stream().map(UserLocation::getId).collect(Collectors.toList());
+        Map<String, Post> posts = mongoTemplate.find(Query.query(withinRetention(Criteria.where("id").in(ids))),
+                                                     Post.class)
+                .stream()
+                .collect(Collectors.toMap(Post::getId, Function.identity()));
+
+        List<Post> results = new ArrayList<>(posts.size());
+        for (UserLocation match : visible) {
+            Post post = posts.get(match.getId());
+            if (post != null) {
+                post.getLocation().setDistance(match.getDistance());
+                results.add(post);
+            }
+            else {
+                // Deleted or past the retention window
+                postIndex.remove(match.getId());
+            }
+        }
+        return results;
+    }
+
     private boolean filterIneligibleResults(GeoResult<Post> result, String exclude) {
         return (result.getDistance().in(Metrics.KILOMETERS).getValue() <= result.getContent().getLocation().getRadius())
                 && (!result.getContent().getLocation().getId().equals(exclude));
@@ -205,7 +1394,12 @@ public class HybridPostRepository implements PostRepository
         Point location = new Point(position.getLongitude(), position.getLatitude());
         Distance distance = new Distance(radius, Metrics.KILOMETERS);
 
-        return NearQuery.near(location).maxDistance(distance);
+        NearQuery query = NearQuery.near(location).maxDistance(distance);
+        if (retentionDays <= 0) {
+            return query;
+        }
+        // Served by the 2dsphere location_time index, which needs a spherical query
+        return query.spherical(true).query(Query.query(withinRetention(new Criteria())));
 
     }
 
@@ -229,37 +1423,69 @@ public class HybridPostRepository implements PostRepository
                 .map(UserLocation::getId)
                 .collect(Collectors.toList());
         List<Post> results = fetchPostsByLocationIds(ids);
+        if (timelineMaxLength > 0 && results.size() > timelineMaxLength) {
+            results = new ArrayList<>(results.subList(0, (int) timelineMaxLength));
+        }
+        if (results.isEmpty()) {
+            return results;
+        }
         // Hydrate the feed of the user
         // Attach at the end of the array, thus preserving order
-        results.forEach(post -> jedis.rpush(key, post.getId()));
+        Pipeline pipeline = jedis.pipelined();
+        if (encoding == TimelineEncoding.SORTED_SET) {
+            pipeline.zadd(key, scored(results));
+        }
+        else {
+            pipeline.rpush(key, results.stream().map(FeedEntry::pack).toArray(String[]::new));
+        }
+        pipeline.expire(key, (int) TimeUnit.DAYS.toSeconds(expiryInDays));
+        pipeline.sync();
         return results;
     }
 
     private void updateDistanceAndPosition(UserLocation currentUserLocation, Post post)
     {
-        UserLocation.Position postPosition = post.getLocation().getPosition();
-        UserLocation.Position currentUserPosition = currentUserLocation.getPosition();
-        post.getLocation().setDistance(haversine(postPosition.getLatitude(),
-                                                 postPosition.getLongitude(),
-                                                 currentUserPosition.getLatitude(),
-                                                 currentUserPosition.getLongitude()));
+        post.getLocation().setDistance(haversine(post.getLocation().getLatitude(),
+                                                 post.getLocation().getLongitude(),
+                                                 currentUserLocation.getLatitude(),
+                                                 currentUserLocation.getLongitude()));
         post.getLocation().setPosition(null);
     }
 
-
-    private List<Post> fetchPostsByPostIds(List<String> postIdsAndDistance)
+    /**
+     * Newest first. Only the posts missing from the post cache are looked up in Mongo, and cached after.
+     */
+    private List<Post> fetchPostsByPostIds(List<String> ids)
     {
-        List<String> postIds = postIdsAndDistance.stream()
-                .map(this::deserializeIdFromRedis)
+        List<String> postIds = ids.stream()
+                .distinct()
                 .collect(Collectors.toList());
+        if (postCache == null) {
+            return findPostsByIds(postIds);
+        }
+
+        Map<String, Post> cached = postCache.getAll(postIds);
+        List<Post> posts = new ArrayList<>(cached.values());
+        if (cached.size() < postIds.size()) {
+            List<Post> fetched = findPostsByIds(postIds.stream()
+                                                        .filter(id -> !cached.containsKey(id))
+                                                        .collect(Collectors.toList()));
+            postCache.putAll(fetched);
+            posts.addAll(fetched);
+        }
+        posts.sort(Comparator.comparing(Post::getTime, Comparator.nullsLast(Comparator.reverseOrder())));
+        return posts;
+    }
 
+    private List<Post> findPostsByIds(List<String> postIds)
+    {
         Query query = Query.query(Criteria.where("id").in(postIds)).with(Sort.by(Sort.Direction.DESC, "time"));
 
         return mongoTemplate.find(query, Post.class);
     }
 
     private List<Post> fetchPostsByLocationIds(List<String> locations) {
-        Query query = Query.query(Criteria.where("location.id").in(locations)).with(
+        Query query = Query.query(withinRetention(Criteria.where("location.id").in(locations))).with(
                 Sort.by(Sort.Direction.DESC, "time"));
 
         return mongoTemplate.find(query, Post.class);
@@ -270,7 +1496,7 @@ public class HybridPostRepository implements PostRepository
 
         TextQuery query = TextQuery.queryText(new TextCriteria().matching(term).diacriticSensitive(false)).includeScore(
                 "score").sortByScore();
-        query.addCriteria(Criteria.where("location.id").in(locations).and("type").nin(type)).with(
+        query.addCriteria(withinRetention(Criteria.where("location.id").in(locations).and("type").nin(type))).with(
                 Sort.by(Sort.Direction.DESC, "time"));
         System.out.println(query.toString());
         return mongoTemplate.find(query, Post.class);
@@ -0,0 +1,122 @@
+package me.twodee.friendlyneighbor.repository;
+
+import lombok.extern.slf4j.Slf4j;
+import me.twodee.friendlyneighbor.component.GeoCellIndex;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.exception.DbFailure;
+import me.twodee.friendlyneighbor.exception.InvalidUser;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * IndexedLocationRepository answers neighbor lookups out of an in-process {@link GeoCellIndex} while Mongo
+ * remains the durable store. The index is bulk loaded from the location collection at startup and every
+ * write goes to Mongo first and then to the index.
+ * <p>
+ * Writes made by other processes directly to the collection are not seen until the next {@link #load()}.
+ */
+@Slf4j
+public class IndexedLocationRepository implements LocationRepository
+{
+    private final MongoLocationRepository store;
+    private final GeoCellIndex index;
+
+    public IndexedLocationRepository(MongoLocationRepository store, GeoCellIndex index)
+    {
+        this.store = store;
+        this.index = index;
+    }
+
+    /**
+     * (Re)builds the index from the durable store
+     */
+    public void load()
+    {
+        long start = System.currentTimeMillis();
+        index.clear();
+        store.forEachLocation(index::put);
+        log.info("Indexed " + index.size() + " user locations in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    @Override
+    public UserLocation save(UserLocation userLocation)
+    {
+        UserLocation persisted = store.save(userLocation);
+        index.put(persisted);
+        return persisted;
+    }
+
+    @Override
+    public Map<String, String> saveAll(List<UserLocation> userLocations)
+    {
+        Map<String, String> errors = store.saveAll(userLocations);
+        userLocations.stream()
+                .filter(location -> !errors.containsKey(location.getId()))
+                .forEach(index::put);
+        return errors;
+    }
+
+    @Override
+    public List<UserLocation> getUsersNearBy(String userId) throws InvalidUser, DbFailure
+    {
+        UserLocation userLocation = index.get(userId);
+        if (userLocation == null) {
+            throw new InvalidUser("The user id supplied doesn't exist");
+        }
+        return index.findNearby(userLocation.getLatitude(), userLocation.getLongitude(), userLocation.getRadius(),
+                                userId);
+    }
+
+    @Override
+    public List<UserLocation> getUsersNearBy(UserLocation userLocation) throws InvalidUser, DbFailure
+    {
+        if (!index.contains(userLocation.getId())) {
+            throw new InvalidUser("The user id supplied doesn't exist");
+        }
+        return getUsersAround(userLocation);
+    }
+
+    @Override
+    public List<UserLocation> getUsersAround(UserLocation userLocation)
+    {
+        return index.findNearby(userLocation.getLatitude(), userLocation.getLongitude(), userLocation.getRadius(),
+                                userLocation.getId());
+    }
+
+    @Override
+    public Stream<UserLocation> streamUsersAround(UserLocation userLocation, double minDistance)
+    {
+        return getUsersAround(userLocation).stream()
+                .filter(location -> location.getDistance() >= minDistance);
+    }
+
+    @Override
+    public UserLocation findById(String id)
+    {
+        return index.get(id);
+    }
+
+    @Override
+    public Map<String, UserLocation> findAllById(Collection<String> ids)
+    {
+        Map<String, UserLocation> locations = new HashMap<>();
+        for (String id : ids) {
+            UserLocation location = index.get(id);
+            if (location != null) {
+                locations.put(id, location);
+            }
+        }
+        return locations;
+    }
+
+    @Override
+    public void deleteById(String id)
+    {
+        store.deleteById(id);
+        index.remove(id);
+    }
+}
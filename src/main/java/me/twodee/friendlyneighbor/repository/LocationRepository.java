@@ -4,7 +4,10 @@ import me.twodee.friendlyneighbor.entity.UserLocation;
 import me.twodee.friendlyneighbor.exception.DbFailure;
 import me.twodee.friendlyneighbor.exception.InvalidUser;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 public interface LocationRepository
 {
@@ -15,6 +18,14 @@ public interface LocationRepository
      */
     UserLocation save(UserLocation userLocation);
 
+    /**
+     * Saves many users' location data in one go, a failure for one user doesn't stop the others
+     *
+     * @param userLocations User data with location/radius information in KM, one entry per user
+     * @return Error messages keyed by the id of the users that couldn't be saved, empty if all were saved
+     */
+    Map<String, String> saveAll(List<UserLocation> userLocations);
+
     /**
      * Look up users who are near a given user who is already registered
      *
@@ -31,6 +42,24 @@ public interface LocationRepository
      */
     List<UserLocation> getUsersNearBy(UserLocation userLocation) throws InvalidUser, DbFailure;
 
+    /**
+     * Look up users who are near a given location without checking that the user is registered
+     *
+     * @param userLocation A user location object, the user is left out of the results
+     * @return A list of users with their distance
+     */
+    List<UserLocation> getUsersAround(UserLocation userLocation) throws DbFailure;
+
+    /**
+     * Lazily look up users near a given location, closest first, without checking that the user is registered.
+     * The stream may hold a database cursor and has to be closed.
+     *
+     * @param userLocation A user location object, the user is left out of the results
+     * @param minDistance  Users closer than this (in KM) are skipped
+     * @return Users with their distance in ascending order of distance
+     */
+    Stream<UserLocation> streamUsersAround(UserLocation userLocation, double minDistance) throws DbFailure;
+
     /**
      * Get a single user's location details
      *
@@ -39,6 +68,14 @@ public interface LocationRepository
      */
     UserLocation findById(String id);
 
+    /**
+     * Get many users' location details in one go
+     *
+     * @param ids User ID strings
+     * @return Location details by user ID, users that don't exist are left out
+     */
+    Map<String, UserLocation> findAllById(Collection<String> ids);
+
     /**
      * Delete a user location based on their id
      *
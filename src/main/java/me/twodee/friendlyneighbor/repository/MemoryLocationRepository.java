@@ -0,0 +1,531 @@
+package me.twodee.friendlyneighbor.repository;
+
+import lombok.extern.slf4j.Slf4j;
+import me.twodee.friendlyneighbor.component.Util;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.exception.InvalidUser;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import static me.twodee.friendlyneighbor.component.Util.cosLatitude;
+import static me.twodee.friendlyneighbor.component.Util.haversine;
+
+/**
+ * MemoryLocationRepository keeps every user location in the JVM, in parallel primitive arrays indexed by a
+ * slot number each user id is mapped to. Positions and radii are stored as floats, about a meter of
+ * precision. Nearby lookups are a scan over the arrays, skipping everything outside the searcher's bounding
+ * box before measuring distances with cosines of latitudes computed once on write.
+ * <p>
+ * Every change is appended to a write-ahead log before it's applied. Periodically the whole state is
+ * written to a memory-mapped snapshot and the log is started over. On {@link #open()} the snapshot is
+ * loaded and the logs written after it are replayed. The log is flushed to the OS on every write, so
+ * changes survive the process dying but not necessarily the machine losing power between snapshots.
+ */
+@Slf4j
+public class MemoryLocationRepository implements LocationRepository, Closeable
+{
+    private static final int SNAPSHOT_MAGIC = 0x464E4C53;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final byte LOG_PUT = 1;
+    private static final byte LOG_DELETE = 2;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final Path rotatedLogFile;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private String[] ids = new String[INITIAL_CAPACITY];
+    private float[] latitudes = new float[INITIAL_CAPACITY];
+    private float[] longitudes = new float[INITIAL_CAPACITY];
+    private float[] radii = new float[INITIAL_CAPACITY];
+    private float[] cosLatitudes = new float[INITIAL_CAPACITY];
+    private int used = 0;
+
+    private FileChannel writeAheadLog;
+    private boolean logFailed = false;
+    private ScheduledExecutorService snapshotter;
+
+    /**
+     * @param directory Directory holding the snapshot and the write-ahead log, created if missing
+     */
+    public MemoryLocationRepository(Path directory)
+    {
+        this.snapshotFile = directory.resolve("locations.snapshot");
+        this.logFile = directory.resolve("locations.wal");
+        this.rotatedLogFile = directory.resolve("locations.wal.old");
+    }
+
+    /**
+     * Restores the state from disk and opens the write-ahead log, has to be called before anything else
+     */
+    public void open() throws IOException
+    {
+        lock.writeLock().lock();
+        try {
+            long start = System.currentTimeMillis();
+            Files.createDirectories(logFile.getParent());
+            if (Files.exists(snapshotFile)) {
+                readSnapshot();
+            }
+            // A log is only rotated away once a snapshot holding its changes is in place, replaying it
+            // again is harmless since every record sets an absolute state
+            if (Files.exists(rotatedLogFile)) {
+                replay(rotatedLogFile);
+            }
+            if (Files.exists(logFile)) {
+                replay(logFile);
+            }
+            writeAheadLog = openLog();
+            log.info("Restored " + slots.size() + " user locations in " + (System.currentTimeMillis() - start) + "ms");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot at a fixed interval until {@link #close()} is called
+     *
+     * @param intervalSeconds Seconds between two snapshots
+     */
+    public synchronized void startSnapshots(long intervalSeconds)
+    {
+        if (snapshotter != null || intervalSeconds <= 0) {
+            return;
+        }
+        snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fncore-location-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (Throwable e) {
+                log.error("Writing the location snapshot failed", e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes the current state to the snapshot file and starts a new write-ahead log. Writers are only
+     * blocked while the arrays are copied, not while the snapshot is written.
+     */
+    public synchronized void snapshot() throws IOException
+    {
+        String[] idsCopy;
+        float[] latitudesCopy;
+        float[] longitudesCopy;
+        float[] radiiCopy;
+        int count;
+        boolean failedLog;
+        lock.writeLock().lock();
+        try {
+            count = used;
+            idsCopy = Arrays.copyOf(ids, count);
+            latitudesCopy = Arrays.copyOf(latitudes, count);
+            longitudesCopy = Arrays.copyOf(longitudes, count);
+            radiiCopy = Arrays.copyOf(radii, count);
+            writeAheadLog.close();
+            rotateLog();
+            writeAheadLog = openLog();
+            failedLog = logFailed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        byte[][] encodedIds = new byte[count][];
+        int live = 0;
+        long size = 3 * Integer.BYTES;
+        for (int slot = 0; slot < count; slot++) {
+            if (idsCopy[slot] != null) {
+                encodedIds[slot] = idsCopy[slot].getBytes(StandardCharsets.UTF_8);
+                size += 3 * Float.BYTES + Short.BYTES + encodedIds[slot].length;
+                live++;
+            }
+        }
+
+        Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(live);
+            for (int slot = 0; slot < count; slot++) {
+                if (encodedIds[slot] != null) {
+                    buffer.putFloat(latitudesCopy[slot]).putFloat(longitudesCopy[slot]).putFloat(radiiCopy[slot]);
+                    buffer.putShort((short) encodedIds[slot].length).put(encodedIds[slot]);
+                }
+            }
+            buffer.force();
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(rotatedLogFile);
+        if (failedLog) {
+            lock.writeLock().lock();
+            try {
+                // What the failed log held is in the snapshot now, and it's gone
+                logFailed = false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        log.info("Snapshot of " + live + " user locations written");
+    }
+
+    /**
+     * Stops the periodic snapshots, writes a final one and closes the log
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (this) {
+            if (snapshotter != null) {
+                snapshotter.shutdown();
+                snapshotter = null;
+            }
+        }
+        snapshot();
+        lock.writeLock().lock();
+        try {
+            writeAheadLog.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void readSnapshot() throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unknown snapshot format in " + snapshotFile);
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                float latitude = buffer.getFloat();
+                float longitude = buffer.getFloat();
+                float radius = buffer.getFloat();
+                byte[] id = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(id);
+                put(new String(id, StandardCharsets.UTF_8), latitude, longitude, radius);
+            }
+        }
+    }
+
+    /**
+     * Applies every complete record of a log, a record torn by a crash at the end is cut off
+     */
+    private void replay(Path file) throws IOException
+    {
+        long valid = 0;
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                byte op = in.readByte();
+                byte[] id = new byte[in.readUnsignedShort()];
+                in.readFully(id);
+                if (op == LOG_PUT) {
+                    float latitude = in.readFloat();
+                    float longitude = in.readFloat();
+                    float radius = in.readFloat();
+                    put(new String(id, StandardCharsets.UTF_8), latitude, longitude, radius);
+                    valid += 3 * Float.BYTES;
+                }
+                else if (op == LOG_DELETE) {
+                    remove(new String(id, StandardCharsets.UTF_8));
+                }
+                else {
+                    log.warn("Unknown record in " + file + " at " + valid + ", ignoring the rest");
+                    break;
+                }
+                valid += 1 + Short.BYTES + id.length;
+                records++;
+            }
+        } catch (EOFException e) {
+            // End of the log or a torn record
+        }
+        if (valid < Files.size(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        log.info("Replayed " + records + " records from " + file.getFileName());
+    }
+
+    /**
+     * Moves the current log out of the way. If an earlier snapshot failed its rotated log is still around
+     * and not covered by any snapshot, so the current log is appended to it instead.
+     */
+    private void rotateLog() throws IOException
+    {
+        if (!Files.exists(rotatedLogFile)) {
+            Files.move(logFile, rotatedLogFile);
+            return;
+        }
+        try (OutputStream out = Files.newOutputStream(rotatedLogFile, StandardOpenOption.APPEND)) {
+            Files.copy(logFile, out);
+        }
+        Files.delete(logFile);
+    }
+
+    private FileChannel openLog() throws IOException
+    {
+        FileChannel channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+
+    /**
+     * Appends the records to the log in one write. If the write fails the log is cut back to where it was, a
+     * record torn halfway would make a replay drop every record after it. If even that fails, nothing more is
+     * written to the log until a snapshot has replaced it.
+     */
+    private void append(byte[] records) throws IOException
+    {
+        if (logFailed) {
+            throw new IOException("The location log is unusable after an earlier failure");
+        }
+        long position = writeAheadLog.position();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            while (buffer.hasRemaining()) {
+                writeAheadLog.write(buffer);
+            }
+        } catch (IOException e) {
+            try {
+                writeAheadLog.truncate(position);
+                writeAheadLog.position(position);
+            } catch (IOException truncation) {
+                logFailed = true;
+                e.addSuppressed(truncation);
+            }
+            throw e;
+        }
+    }
+
+    private static void logPut(DataOutputStream out, UserLocation userLocation) throws IOException
+    {
+        byte[] id = userLocation.getId().getBytes(StandardCharsets.UTF_8);
+        out.writeByte(LOG_PUT);
+        out.writeShort(id.length);
+        out.write(id);
+        out.writeFloat((float) userLocation.getLatitude());
+        out.writeFloat((float) userLocation.getLongitude());
+        out.writeFloat((float) userLocation.getRadius());
+    }
+
+    private void put(String id, float latitude, float longitude, float radius)
+    {
+        Integer slot = slots.get(id);
+        if (slot == null) {
+            slot = freeSlots.isEmpty() ? allocate() : freeSlots.pop();
+            slots.put(id, slot);
+            ids[slot] = id;
+        }
+        latitudes[slot] = latitude;
+        longitudes[slot] = longitude;
+        radii[slot] = radius;
+        cosLatitudes[slot] = (float) cosLatitude(latitude);
+    }
+
+    private int allocate()
+    {
+        if (used == ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            radii = Arrays.copyOf(radii, capacity);
+            cosLatitudes = Arrays.copyOf(cosLatitudes, capacity);
+        }
+        return used++;
+    }
+
+    private void remove(String id)
+    {
+        Integer slot = slots.remove(id);
+        if (slot != null) {
+            ids[slot] = null;
+            freeSlots.push(slot);
+        }
+    }
+
+    @Override
+    public UserLocation save(UserLocation userLocation)
+    {
+        String error = saveAll(Collections.singletonList(userLocation)).get(userLocation.getId());
+        if (error != null) {
+            throw new UncheckedIOException(new IOException(error));
+        }
+        return userLocation;
+    }
+
+    /**
+     * The batch is logged in one write, if that fails none of it is applied nor left in the log
+     */
+    @Override
+    public Map<String, String> saveAll(List<UserLocation> userLocations)
+    {
+        Map<String, String> errors = new HashMap<>();
+        lock.writeLock().lock();
+        try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(records);
+            for (UserLocation userLocation : userLocations) {
+                logPut(out, userLocation);
+            }
+            append(records.toByteArray());
+            for (UserLocation userLocation : userLocations) {
+                put(userLocation.getId(), (float) userLocation.getLatitude(), (float) userLocation.getLongitude(),
+                    (float) userLocation.getRadius());
+            }
+        } catch (IOException e) {
+            log.error("Writing to the location log failed", e);
+            userLocations.forEach(userLocation -> errors.put(userLocation.getId(), e.getMessage()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return errors;
+    }
+
+    @Override
+    public List<UserLocation> getUsersNearBy(String userId) throws InvalidUser
+    {
+        UserLocation userLocation = findById(userId);
+        if (userLocation == null) {
+            throw new InvalidUser("The user id supplied doesn't exist");
+        }
+        return getUsersAround(userLocation);
+    }
+
+    @Override
+    public List<UserLocation> getUsersNearBy(UserLocation userLocation) throws InvalidUser
+    {
+        if (findById(userLocation.getId()) == null) {
+            throw new InvalidUser("The user id supplied doesn't exist");
+        }
+        return getUsersAround(userLocation);
+    }
+
+    @Override
+    public List<UserLocation> getUsersAround(UserLocation userLocation)
+    {
+        double latitude = userLocation.getLatitude();
+        double longitude = userLocation.getLongitude();
+        double radius = userLocation.getRadius();
+        double cosLatitude = cosLatitude(latitude);
+        Util.BoundingBox box = Util.BoundingBox.around(latitude, longitude, radius);
+
+        List<UserLocation> results = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < used; slot++) {
+                if (ids[slot] == null || !box.contains(latitudes[slot], longitudes[slot])) {
+                    continue;
+                }
+                double distance = haversine(latitude, longitude, cosLatitude,
+                                            latitudes[slot], longitudes[slot], cosLatitudes[slot]);
+                if (distance <= radius && distance <= radii[slot] && !ids[slot].equals(userLocation.getId())) {
+                    results.add(toUserLocation(slot));
+                    results.get(results.size() - 1).setDistance(distance);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        results.sort(Comparator.comparingDouble(location -> location.getDistance()));
+        return results;
+    }
+
+    @Override
+    public Stream<UserLocation> streamUsersAround(UserLocation userLocation, double minDistance)
+    {
+        return getUsersAround(userLocation).stream()
+                .filter(location -> location.getDistance() >= minDistance);
+    }
+
+    @Override
+    public UserLocation findById(String id)
+    {
+        lock.readLock().lock();
+        try {
+            Integer slot = slots.get(id);
+            return slot == null ? null : toUserLocation(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, UserLocation> findAllById(Collection<String> ids)
+    {
+        Map<String, UserLocation> locations = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (String id : ids) {
+                Integer slot = slots.get(id);
+                if (slot != null) {
+                    locations.put(id, toUserLocation(slot));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return locations;
+    }
+
+    @Override
+    public void deleteById(String id)
+    {
+        byte[] encoded = id.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            if (!slots.containsKey(id)) {
+                return;
+            }
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(LOG_DELETE);
+            out.writeShort(encoded.length);
+            out.write(encoded);
+            append(record.toByteArray());
+            remove(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size()
+    {
+        lock.readLock().lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private UserLocation toUserLocation(int slot)
+    {
+        return new UserLocation(ids[slot], latitudes[slot], longitudes[slot], radii[slot]);
+    }
+}
@@ -1,26 +1,46 @@
 package me.twodee.friendlyneighbor.repository;
 
+import com.mongodb.bulk.BulkWriteError;
 import lombok.extern.slf4j.Slf4j;
 import me.twodee.friendlyneighbor.entity.UserLocation;
 import me.twodee.friendlyneighbor.exception.DbFailure;
 import me.twodee.friendlyneighbor.exception.InvalidUser;
 import org.springframework.data.geo.*;
+import org.springframework.data.mongodb.BulkOperationException;
 import org.springframework.data.mongodb.UncategorizedMongoDbException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.index.GeospatialIndex;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.NearQuery;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.data.util.StreamUtils;
 
 import javax.inject.Inject;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static me.twodee.friendlyneighbor.component.Util.EARTH_RADIUS_KM;
+import static me.twodee.friendlyneighbor.component.Util.haversine;
 
 @Slf4j
 public class MongoLocationRepository implements LocationRepository
 {
     private final MongoTemplate template;
+    private volatile boolean indexEnsured = false;
     private static final int MONGO_INDEX_NOT_FOUND = 27;
+    /**
+     * Kilometres over the same earth radius as {@link me.twodee.friendlyneighbor.component.Util#haversine},
+     * Spring's own take the equatorial one
+     */
+    private static final Metric KILOMETERS = new CustomMetric(EARTH_RADIUS_KM, "km");
 
     @Inject
     public MongoLocationRepository(MongoTemplate template)
@@ -31,10 +51,45 @@ public class MongoLocationRepository implements LocationRepository
     @Override
     public UserLocation save(UserLocation userLocation)
     {
-        template.indexOps(UserLocation.class).ensureIndex(new GeospatialIndex("position"));
+        ensureIndex();
         return template.save(userLocation);
     }
 
+    @Override
+    public Map<String, String> saveAll(List<UserLocation> userLocations)
+    {
+        Map<String, String> errors = new HashMap<>();
+        if (userLocations.isEmpty()) {
+            return errors;
+        }
+        ensureIndex();
+        BulkOperations operations = template.bulkOps(BulkOperations.BulkMode.UNORDERED, UserLocation.class);
+        for (UserLocation userLocation : userLocations) {
+            operations.replaceOne(Query.query(Criteria.where("id").is(userLocation.getId())), userLocation,
+                                  FindAndReplaceOptions.options().upsert());
+        }
+        try {
+            operations.execute();
+        } catch (BulkOperationException e) {
+            for (BulkWriteError error : e.getErrors()) {
+                errors.put(userLocations.get(error.getIndex()).getId(), error.getMessage());
+            }
+            log.warn(errors.size() + " of " + userLocations.size() + " locations failed in bulk save");
+        }
+        return errors;
+    }
+
+    /**
+     * The index only has to be created once, it's not worth a round trip on every write
+     */
+    private void ensureIndex()
+    {
+        if (!indexEnsured) {
+            template.indexOps(UserLocation.class).ensureIndex(new GeospatialIndex("position"));
+            indexEnsured = true;
+        }
+    }
+
     @Override
     public List<UserLocation> getUsersNearBy(String userId) throws InvalidUser, DbFailure
     {
@@ -52,21 +107,71 @@ public class MongoLocationRepository implements LocationRepository
         if (template.findById(userLocation.getId(), UserLocation.class) == null) {
             throw new InvalidUser("The user id supplied doesn't exist");
         }
+        return getUsersAround(userLocation);
+    }
+
+    @Override
+    public List<UserLocation> getUsersAround(UserLocation userLocation) throws DbFailure
+    {
         return getUsersInGivenLocation(userLocation.getPosition(), userLocation.getRadius(), userLocation.getId());
     }
 
+    @Override
+    public Stream<UserLocation> streamUsersAround(UserLocation userLocation, double minDistance) throws DbFailure
+    {
+        double latitude = userLocation.getLatitude();
+        double longitude = userLocation.getLongitude();
+        Point point = new Point(longitude, latitude);
+        // $nearSphere on legacy coordinate pairs takes its distances in radians
+        Query query = Query.query(Criteria.where("position")
+                                          .nearSphere(point)
+                                          .minDistance(minDistance / EARTH_RADIUS_KM)
+                                          .maxDistance(userLocation.getRadius() / EARTH_RADIUS_KM));
+        try {
+            CloseableIterator<UserLocation> cursor = template.stream(query, UserLocation.class);
+            return StreamUtils.createStreamFromIterator(cursor)
+                    .filter(candidate -> !candidate.getId().equals(userLocation.getId()))
+                    .peek(candidate -> candidate.setDistance(
+                            haversine(latitude, longitude,
+                                      candidate.getLatitude(), candidate.getLongitude())))
+                    .filter(candidate -> candidate.getDistance() <= candidate.getRadius());
+        } catch (UncategorizedMongoDbException e) {
+            log.error("Severe DB failure, did you drop a collection? ", e);
+            throw new DbFailure(e);
+        }
+    }
+
     @Override
     public UserLocation findById(String id)
     {
         return template.findById(id, UserLocation.class);
     }
 
+    @Override
+    public Map<String, UserLocation> findAllById(Collection<String> ids)
+    {
+        return template.find(Query.query(Criteria.where("id").in(ids)), UserLocation.class).stream()
+                .collect(Collectors.toMap(UserLocation::getId, location -> location));
+    }
+
     @Override
     public void deleteById(String id)
     {
         template.remove(Query.query(Criteria.where("id").is(id)), UserLocation.class);
     }
 
+    /**
+     * Walks over every stored location with a cursor, without loading the whole collection at once
+     *
+     * @param consumer Called for every location in the collection
+     */
+    public void forEachLocation(Consumer<UserLocation> consumer)
+    {
+        try (CloseableIterator<UserLocation> iterator = template.stream(new Query(), UserLocation.class)) {
+            iterator.forEachRemaining(consumer);
+        }
+    }
+
     private List<UserLocation> getUsersInGivenLocation(UserLocation.Position position, double radius, String exclude) throws DbFailure
     {
         try {
@@ -88,21 +193,21 @@ public class MongoLocationRepository implements LocationRepository
 
     private boolean filterIneligibleResults(GeoResult<UserLocation> result, String exclude)
     {
-        return (result.getDistance().in(Metrics.KILOMETERS).getValue() <= result.getContent().getRadius())
+        return (result.getDistance().in(KILOMETERS).getValue() <= result.getContent().getRadius())
                 && (!result.getContent().getId().equals(exclude));
     }
 
     private UserLocation setDistanceInGeoResult(GeoResult<UserLocation> locationGeoResult)
     {
         UserLocation location = locationGeoResult.getContent();
-        location.setDistance(locationGeoResult.getDistance().in(Metrics.KILOMETERS).getValue());
+        location.setDistance(locationGeoResult.getDistance().in(KILOMETERS).getValue());
         return location;
     }
 
     private NearQuery createNearQuery(UserLocation.Position position, double radius) throws DbFailure
     {
         Point location = new Point(position.getLongitude(), position.getLatitude());
-        Distance distance = new Distance(radius, Metrics.KILOMETERS);
+        Distance distance = new Distance(radius, KILOMETERS);
 
         return NearQuery.near(location).maxDistance(distance);
 
@@ -0,0 +1,159 @@
+package me.twodee.friendlyneighbor.repository;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.extern.slf4j.Slf4j;
+import me.twodee.friendlyneighbor.component.MetricRegistry;
+import me.twodee.friendlyneighbor.entity.Post;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of posts by id for hydrating feeds, posts don't change once saved so an entry only has to go when
+ * the post is deleted. Lookups go to a local cache evicted by size and age first and, when one is given, to
+ * a Redis tier shared by every process next. Posts found in Redis are kept locally too.
+ * <p>
+ * The cache hands out copies, callers are free to modify what they get back. A failing Redis tier counts as
+ * a miss.
+ */
+@Slf4j
+public class PostCache
+{
+    private final Cache<String, Post> cache;
+    private final JedisPool jedisPool;
+    private final String redisNamespace;
+    private final MongoConverter converter;
+    private final int ttlSeconds;
+    private final MetricRegistry metrics;
+
+    /**
+     * @param maxSize    Maximum number of posts cached locally
+     * @param ttlSeconds Seconds a post stays cached after it was written to the cache
+     * @param metrics    Registry the hit/miss counts are published to
+     */
+    public PostCache(long maxSize, long ttlSeconds, MetricRegistry metrics)
+    {
+        this(maxSize, ttlSeconds, null, null, null, metrics);
+    }
+
+    /**
+     * @param jedisPool Pool of the Redis tier, null to cache locally only
+     * @param keyspace  Keyspace the Redis entries are kept under
+     * @param converter Converter the posts are stored in Redis with, the same way they're stored in Mongo
+     */
+    public PostCache(long maxSize, long ttlSeconds, JedisPool jedisPool, String keyspace, MongoConverter converter,
+                     MetricRegistry metrics)
+    {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.jedisPool = jedisPool;
+        this.redisNamespace = keyspace + ".POST:";
+        this.converter = converter;
+        this.ttlSeconds = (int) ttlSeconds;
+        this.metrics = metrics;
+        metrics.gauge("post.cache.evictions", () -> cache.stats().evictionCount());
+        metrics.gauge("post.cache.size", cache::size);
+    }
+
+    /**
+     * @return The cached posts by id, ids that aren't cached are left out
+     */
+    public Map<String, Post> getAll(Collection<String> ids)
+    {
+        Map<String, Post> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String id : ids) {
+            Post post = cache.getIfPresent(id);
+            if (post != null) {
+                found.put(id, copy(post));
+            }
+            else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty() && jedisPool != null) {
+            for (Post post : getAllFromRedis(missing)) {
+                cache.put(post.getId(), post);
+                found.put(post.getId(), copy(post));
+            }
+        }
+        metrics.add("post.cache.hits", found.size());
+        metrics.add("post.cache.misses", ids.size() - found.size());
+        return found;
+    }
+
+    public void putAll(Collection<Post> posts)
+    {
+        if (posts.isEmpty()) {
+            return;
+        }
+        for (Post post : posts) {
+            cache.put(post.getId(), copy(post));
+        }
+        if (jedisPool == null) {
+            return;
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (Post post : posts) {
+                Document document = new Document();
+                converter.write(post, document);
+                pipeline.setex(redisNamespace + post.getId(), ttlSeconds, document.toJson());
+            }
+            pipeline.sync();
+        } catch (JedisException e) {
+            log.warn("Caching " + posts.size() + " posts in Redis failed", e);
+        }
+    }
+
+    public void invalidate(String id)
+    {
+        cache.invalidate(id);
+        if (jedisPool == null) {
+            return;
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.del(redisNamespace + id);
+        }
+    }
+
+    private List<Post> getAllFromRedis(List<String> ids)
+    {
+        List<String> values;
+        try (Jedis jedis = jedisPool.getResource()) {
+            values = jedis.mget(ids.stream().map(id -> redisNamespace + id).toArray(String[]::new));
+        } catch (JedisException e) {
+            log.warn("Reading cached posts from Redis failed", e);
+            return Collections.emptyList();
+        }
+        List<Post> posts = new ArrayList<>(values.size());
+        for (String value : values) {
+            if (value != null) {
+                posts.add(converter.read(Post.class, Document.parse(value)));
+            }
+        }
+        metrics.add("post.cache.redis_hits", posts.size());
+        return posts;
+    }
+
+    static Post copy(Post post)
+    {
+        UserLocation location = post.getLocation();
+        if (location != null) {
+            location = new UserLocation(location.getId(), location.getLatitude(), location.getLongitude(),
+                                        location.getRadius());
+        }
+        return new Post(post.getId(), location, post.getTime(), post.getType(), post.getTitle());
+    }
+}
@@ -1,25 +1,95 @@
 package me.twodee.friendlyneighbor.repository;
 
+import me.twodee.friendlyneighbor.dto.PostDelta;
+import me.twodee.friendlyneighbor.dto.PostPage;
 import me.twodee.friendlyneighbor.entity.Post;
 import me.twodee.friendlyneighbor.entity.UserLocation;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public interface PostRepository {
     Post save(Post post);
 
+    Post findById(String id);
+
     void forwardToUsers(List<UserLocation> userLocations, Post post);
 
+    /**
+     * Records a post with too large an audience to push once, readers pull it in when their feed is fetched
+     */
+    void publishForPull(Post post);
+
     /**
      * @param currentUserLocation
      * @param nearbyUsers
      * @return
-     * @deprecated
+     * @deprecated Use {@link #findTimelineForUser(UserLocation, Supplier)}
      */
     List<Post> findAllForUser(UserLocation currentUserLocation, List<UserLocation> nearbyUsers);
 
     List<Post> findAllForUser(UserLocation currentUserLocation);
 
+    /**
+     * Reads the user's whole feed from their timeline
+     *
+     * @param nearbyUsers Only asked for when the timeline has to be rebuilt from the posts of the users nearby
+     */
+    List<Post> findTimelineForUser(UserLocation currentUserLocation, Supplier<List<UserLocation>> nearbyUsers);
+
+    /**
+     * Reads the whole feeds of many users at once
+     *
+     * @param nearbyUsers Asked for the users nearby only for the users whose timeline has to be rebuilt
+     * @return The feed per user id
+     */
+    Map<String, List<Post>> findTimelinesForUsers(List<UserLocation> currentUserLocations,
+                                                  Function<UserLocation, List<UserLocation>> nearbyUsers);
+
+    /**
+     * Reads the posts in the user's timeline newer than the given time, newest first
+     *
+     * @param nearbyUsers Only asked for when the timeline has to be rebuilt from the posts of the users nearby
+     */
+    List<Post> findTimelineSince(UserLocation currentUserLocation, Supplier<List<UserLocation>> nearbyUsers,
+                                 LocalDateTime since);
+
+    /**
+     * Reads one page of the user's feed, newest first
+     *
+     * @param nearbyUsers Only asked for when the feed has to be rebuilt from the posts of the users nearby
+     * @param pageSize    Maximum number of posts on the page
+     * @param cursor      Cursor returned with the previous page, empty for the first page
+     */
+    PostPage findPageForUser(UserLocation currentUserLocation, Supplier<List<UserLocation>> nearbyUsers,
+                             int pageSize, String cursor);
+
+    /**
+     * Reads what changed in the user's feed since the last sync, the whole feed if there was none
+     *
+     * @param nearbyUsers Only asked for when the feed has to be rebuilt from the posts of the users nearby
+     * @param token       Sync token returned with the previous delta, empty for the first sync
+     */
+    PostDelta findDeltaForUser(UserLocation currentUserLocation, Supplier<List<UserLocation>> nearbyUsers,
+                               String token);
+
+    /**
+     * Updates the user's feed after they moved, without rebuilding it from scratch
+     *
+     * @param joined Ids of the users nearby now that weren't before
+     * @param left   Ids of the users nearby before that aren't anymore
+     */
+    void rematerialize(UserLocation currentUserLocation, Collection<String> joined, Collection<String> left);
+
+    /**
+     * Drops the user's feed, it's rebuilt on the next read
+     */
+    void dropTimeline(String userId);
+
     List<Post> fetchMatchingNearbyPosts(UserLocation currentUserLocation, List<UserLocation> nearbyUsers, Post post);
 
     void deleteById(String id);
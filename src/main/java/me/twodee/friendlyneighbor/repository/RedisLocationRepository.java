@@ -0,0 +1,200 @@
+package me.twodee.friendlyneighbor.repository;
+
+import lombok.extern.slf4j.Slf4j;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.exception.DbFailure;
+import me.twodee.friendlyneighbor.exception.InvalidUser;
+import redis.clients.jedis.GeoCoordinate;
+import redis.clients.jedis.GeoRadiusResponse;
+import redis.clients.jedis.GeoUnit;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.GeoRadiusParam;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * RedisLocationRepository keeps user locations entirely in Redis. Positions live in a GEO set and the
+ * radius of every user in a hash next to it, both keyed by user id. Nearby lookups are a GEORADIUS around
+ * the searcher followed by one HMGET for the radii of the candidates to apply the mutual visibility rule.
+ * <p>
+ * Redis GEO sets can't hold latitudes beyond roughly ±85.05 degrees, saving such a location fails.
+ */
+@Slf4j
+public class RedisLocationRepository implements LocationRepository
+{
+    private static final String LOCATION_KEYSPACE = "LOCATION";
+    private static final String RADIUS_KEYSPACE = "LOCATION_RADIUS";
+
+    private final JedisPool jedisPool;
+    private final String positionKey;
+    private final String radiusKey;
+
+    /**
+     * @param jedisPool Pool of connections to the Redis server holding the locations
+     * @param keyspace  Prefix of the keys used, usually the redis.keyspace config
+     */
+    public RedisLocationRepository(JedisPool jedisPool, String keyspace)
+    {
+        this.jedisPool = jedisPool;
+        this.positionKey = keyspace + "." + LOCATION_KEYSPACE;
+        this.radiusKey = keyspace + "." + RADIUS_KEYSPACE;
+    }
+
+    @Override
+    public UserLocation save(UserLocation userLocation)
+    {
+        String error = saveAll(Collections.singletonList(userLocation)).get(userLocation.getId());
+        if (error != null) {
+            throw new JedisDataException(error);
+        }
+        return userLocation;
+    }
+
+    @Override
+    public Map<String, String> saveAll(List<UserLocation> userLocations)
+    {
+        Map<String, String> errors = new HashMap<>();
+        if (userLocations.isEmpty()) {
+            return errors;
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Long>> responses = new ArrayList<>(userLocations.size());
+            for (UserLocation userLocation : userLocations) {
+                responses.add(pipeline.geoadd(positionKey, userLocation.getLongitude(), userLocation.getLatitude(),
+                                              userLocation.getId()));
+                pipeline.hset(radiusKey, userLocation.getId(), String.valueOf(userLocation.getRadius()));
+            }
+            pipeline.sync();
+            for (int i = 0; i < responses.size(); i++) {
+                try {
+                    responses.get(i).get();
+                } catch (JedisDataException e) {
+                    errors.put(userLocations.get(i).getId(), e.getMessage());
+                }
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public List<UserLocation> getUsersNearBy(String userId) throws InvalidUser, DbFailure
+    {
+        UserLocation userLocation = findById(userId);
+        if (userLocation == null) {
+            throw new InvalidUser("The user id supplied doesn't exist");
+        }
+        return getUsersAround(userLocation);
+    }
+
+    @Override
+    public List<UserLocation> getUsersNearBy(UserLocation userLocation) throws InvalidUser, DbFailure
+    {
+        if (findById(userLocation.getId()) == null) {
+            throw new InvalidUser("The user id supplied doesn't exist");
+        }
+        return getUsersAround(userLocation);
+    }
+
+    @Override
+    public List<UserLocation> getUsersAround(UserLocation userLocation) throws DbFailure
+    {
+        try (Jedis jedis = jedisPool.getResource()) {
+            List<GeoRadiusResponse> candidates = jedis.georadius(
+                    positionKey, userLocation.getLongitude(), userLocation.getLatitude(), userLocation.getRadius(),
+                    GeoUnit.KM, GeoRadiusParam.geoRadiusParam().withCoord().withDist().sortAscending());
+            candidates.removeIf(candidate -> candidate.getMemberByString().equals(userLocation.getId()));
+            if (candidates.isEmpty()) {
+                return new ArrayList<>();
+            }
+
+            String[] ids = candidates.stream().map(GeoRadiusResponse::getMemberByString).toArray(String[]::new);
+            List<String> radii = jedis.hmget(radiusKey, ids);
+
+            List<UserLocation> results = new ArrayList<>(candidates.size());
+            for (int i = 0; i < candidates.size(); i++) {
+                if (radii.get(i) == null) {
+                    continue;
+                }
+                GeoRadiusResponse candidate = candidates.get(i);
+                double radius = Double.parseDouble(radii.get(i));
+                if (candidate.getDistance() <= radius) {
+                    GeoCoordinate coordinate = candidate.getCoordinate();
+                    UserLocation location = new UserLocation(ids[i], coordinate.getLatitude(),
+                                                             coordinate.getLongitude(), radius);
+                    location.setDistance(candidate.getDistance());
+                    results.add(location);
+                }
+            }
+            return results;
+        } catch (JedisException e) {
+            log.error("Looking up users around " + userLocation.getId() + " failed", e);
+            throw new DbFailure(e);
+        }
+    }
+
+    @Override
+    public Stream<UserLocation> streamUsersAround(UserLocation userLocation, double minDistance) throws DbFailure
+    {
+        return getUsersAround(userLocation).stream()
+                .filter(location -> location.getDistance() >= minDistance);
+    }
+
+    @Override
+    public UserLocation findById(String id)
+    {
+        return findAllById(Collections.singletonList(id)).get(id);
+    }
+
+    /**
+     * The positions and radii of all the users are read in one pipeline
+     */
+    @Override
+    public Map<String, UserLocation> findAllById(Collection<String> ids)
+    {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            Map<String, Response<List<GeoCoordinate>>> coordinates = new HashMap<>();
+            Map<String, Response<String>> radii = new HashMap<>();
+            for (String id : ids) {
+                coordinates.put(id, pipeline.geopos(positionKey, id));
+                radii.put(id, pipeline.hget(radiusKey, id));
+            }
+            pipeline.sync();
+
+            Map<String, UserLocation> locations = new HashMap<>();
+            for (String id : coordinates.keySet()) {
+                List<GeoCoordinate> found = coordinates.get(id).get();
+                GeoCoordinate coordinate = found.isEmpty() ? null : found.get(0);
+                String radius = radii.get(id).get();
+                if (coordinate != null && radius != null) {
+                    locations.put(id, new UserLocation(id, coordinate.getLatitude(), coordinate.getLongitude(),
+                                                       Double.parseDouble(radius)));
+                }
+            }
+            return locations;
+        }
+    }
+
+    @Override
+    public void deleteById(String id)
+    {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.zrem(positionKey, id);
+            pipeline.hdel(radiusKey, id);
+            pipeline.sync();
+        }
+    }
+}
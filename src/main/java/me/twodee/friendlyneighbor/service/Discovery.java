@@ -4,6 +4,7 @@ import lombok.extern.java.Log;
 import me.twodee.friendlyneighbor.dto.Notification;
 import me.twodee.friendlyneighbor.dto.ResultObject;
 import me.twodee.friendlyneighbor.dto.UserLocationResult;
+import me.twodee.friendlyneighbor.dto.UserLocationStream;
 import me.twodee.friendlyneighbor.dto.UserLocationsResult;
 import me.twodee.friendlyneighbor.entity.UserLocation;
 import me.twodee.friendlyneighbor.exception.DbFailure;
@@ -11,7 +12,7 @@ import me.twodee.friendlyneighbor.exception.InvalidUser;
 import me.twodee.friendlyneighbor.repository.LocationRepository;
 
 import javax.inject.Inject;
-import java.util.Arrays;
+import java.util.*;
 
 @Log
 public class Discovery
@@ -34,6 +35,36 @@ public class Discovery
         }
     }
 
+    /**
+     * Saves a batch of user locations in one write
+     *
+     * @param locations Locations to save, if a user appears more than once the last location wins
+     * @return The outcome for every user in the batch, keyed by user id
+     */
+    public Map<String, ResultObject> saveUserLocations(List<UserLocation> locations)
+    {
+        Map<String, UserLocation> latest = new LinkedHashMap<>();
+        locations.forEach(location -> latest.put(location.getId(), location));
+
+        Map<String, ResultObject> results = new HashMap<>();
+        try {
+            Map<String, String> errors = repository.saveAll(new ArrayList<>(latest.values()));
+            for (String id : latest.keySet()) {
+                if (errors.containsKey(id)) {
+                    log.warning("Saving location of " + id + " failed: " + errors.get(id));
+                    results.put(id, new ResultObject("internal", ResultObject.SOMETHING_WENT_WRONG));
+                }
+                else {
+                    results.put(id, new ResultObject());
+                }
+            }
+        } catch (Throwable e) {
+            ResultObject failure = somethingWentWrong(e);
+            latest.keySet().forEach(id -> results.put(id, failure));
+        }
+        return results;
+    }
+
     public ResultObject deleteUserLocation(String id)
     {
         try {
@@ -63,6 +94,48 @@ public class Discovery
         }
     }
 
+    /**
+     * Streams a page of the users near a registered user, closest first
+     *
+     * @param requestingUid The user looking up nearby users
+     * @param limit         Maximum number of users on the page, 0 for no limit
+     * @param cursor        Cursor returned with the previous page, empty for the first page
+     */
+    public UserLocationStream streamNearbyUsersByUserId(String requestingUid, long limit, String cursor)
+    {
+        UserLocation location = repository.findById(requestingUid);
+        if (location == null) {
+            return new UserLocationStream(invalidUserNotification());
+        }
+        return streamNearbyUsers(location, limit, cursor);
+    }
+
+    /**
+     * Streams a page of the users near a given location, closest first
+     *
+     * @param location Location and radius to search in, the id has to belong to a registered user
+     * @param limit    Maximum number of users on the page, 0 for no limit
+     * @param cursor   Cursor returned with the previous page, empty for the first page
+     */
+    public UserLocationStream streamNearbyUsersByLocation(UserLocation location, long limit, String cursor)
+    {
+        if (repository.findById(location.getId()) == null) {
+            return new UserLocationStream(invalidUserNotification());
+        }
+        return streamNearbyUsers(location, limit, cursor);
+    }
+
+    private UserLocationStream streamNearbyUsers(UserLocation location, long limit, String cursor)
+    {
+        UserLocationStream.Cursor after = UserLocationStream.Cursor.decode(cursor);
+        try {
+            double minDistance = after == null ? 0 : after.getDistance();
+            return new UserLocationStream(repository.streamUsersAround(location, minDistance), limit, after);
+        } catch (DbFailure e) {
+            return new UserLocationStream(buildErrorDTO(e).getNotification());
+        }
+    }
+
     public UserLocationResult getUserLocation(String userId)
     {
         UserLocation location = repository.findById(userId);
@@ -74,6 +147,28 @@ public class Discovery
         return new UserLocationResult(location);
     }
 
+    /**
+     * Looks up the users' locations in one call to the repository
+     *
+     * @return The result per user id, in the order the ids were given
+     */
+    public Map<String, UserLocationResult> getUserLocations(List<String> userIds)
+    {
+        Map<String, UserLocation> locations = repository.findAllById(userIds);
+        Map<String, UserLocationResult> results = new LinkedHashMap<>();
+        for (String userId : userIds) {
+            UserLocation location = locations.get(userId);
+            if (location != null) {
+                results.put(userId, new UserLocationResult(location));
+                continue;
+            }
+            UserLocationResult result = new UserLocationResult();
+            result.setNotification(invalidUserNotification());
+            results.put(userId, result);
+        }
+        return results;
+    }
+
     private Notification invalidUserNotification()
     {
         Notification note = new Notification();
@@ -0,0 +1,170 @@
+package me.twodee.friendlyneighbor.service;
+
+import lombok.extern.slf4j.Slf4j;
+import me.twodee.friendlyneighbor.component.FnCoreConfig;
+import me.twodee.friendlyneighbor.component.MetricRegistry;
+import me.twodee.friendlyneighbor.dto.ResultObject;
+import me.twodee.friendlyneighbor.repository.FanoutOutbox;
+
+import javax.inject.Inject;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads fanning out the posts queued in the {@link FanoutOutbox}. A post is only completed once its fanout
+ * went through, one that failed is left pending and taken up again after the retry delay, by this or
+ * another process. A post that keeps failing is dropped after the configured number of attempts.
+ * <p>
+ * Redelivered posts that were already fanned out are completed without being pushed again.
+ */
+@Slf4j
+public class FanoutWorker
+{
+    static final int BATCH_SIZE = 16;
+    static final long BLOCK_MILLIS = 1000;
+
+    private final FanoutOutbox outbox;
+    private final Feed feed;
+    private final MetricRegistry metrics;
+    private final int workers;
+    private final int maxAttempts;
+    private final long retryAfter;
+    private final String consumerPrefix;
+    private ExecutorService pool;
+    private volatile boolean running = false;
+
+    /**
+     * @param workers     Number of threads taking posts off the outbox
+     * @param maxAttempts Most times a post is handed out before it's dropped
+     * @param retryAfter  Milliseconds a failed or abandoned post is left pending before it's taken up again
+     */
+    public FanoutWorker(FanoutOutbox outbox, Feed feed, MetricRegistry metrics, int workers, int maxAttempts,
+                        long retryAfter)
+    {
+        this.outbox = outbox;
+        this.feed = feed;
+        this.metrics = metrics;
+        this.workers = workers > 0 ? workers : 2;
+        this.maxAttempts = maxAttempts > 0 ? maxAttempts : 5;
+        this.retryAfter = retryAfter > 0 ? retryAfter : 30000;
+        this.consumerPrefix = "fncore-" + Long.toHexString(System.nanoTime()) + "-";
+    }
+
+    @Inject
+    public FanoutWorker(FanoutOutbox outbox, Feed feed, MetricRegistry metrics, FnCoreConfig config)
+    {
+        this(outbox, feed, metrics, config.getFeedOutboxWorkers(), config.getFeedOutboxMaxAttempts(),
+             config.getFeedOutboxRetryAfter());
+    }
+
+    public synchronized void start()
+    {
+        if (running) {
+            return;
+        }
+        running = true;
+        AtomicInteger count = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "fncore-outbox-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < workers; i++) {
+            String consumer = consumerPrefix + i;
+            pool.execute(() -> {
+                while (running) {
+                    try {
+                        poll(consumer);
+                    } catch (RuntimeException e) {
+                        log.error("Reading the fanout outbox failed", e);
+                        pause();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops taking posts and waits for the ones being fanned out. Posts taken but not completed stay pending.
+     */
+    public synchronized void close()
+    {
+        if (!running) {
+            return;
+        }
+        running = false;
+        pool.shutdown();
+        try {
+            pool.awaitTermination(BLOCK_MILLIS * 5, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fans out the posts left pending past the retry delay, then whatever new posts came in
+     *
+     * @param consumer Name the posts are taken under
+     */
+    void poll(String consumer)
+    {
+        List<FanoutOutbox.Entry> stale = outbox.reclaim(consumer, retryAfter, BATCH_SIZE);
+        if (!stale.isEmpty()) {
+            metrics.add("feed.outbox.retried", stale.size());
+            stale.forEach(this::process);
+        }
+        outbox.take(consumer, BATCH_SIZE, BLOCK_MILLIS).forEach(this::process);
+    }
+
+    void process(FanoutOutbox.Entry entry)
+    {
+        if (outbox.isDone(entry.getPostId())) {
+            outbox.complete(entry);
+            return;
+        }
+        ResultObject result;
+        try {
+            result = feed.deliverQueued(entry.getPostId());
+        } catch (RuntimeException e) {
+            log.warn("Fanout of post {} failed on attempt {}", entry.getPostId(), entry.getDeliveries(), e);
+            giveUpIfExhausted(entry);
+            return;
+        }
+        if (result.getErrors().containsKey("fanout")) {
+            // The fanout executor was full, worth another try once it has drained
+            giveUpIfExhausted(entry);
+            return;
+        }
+        if (result.hasErrors()) {
+            // A missing post or user won't turn up on a retry
+            log.warn("Dropped post {} from the outbox: {}", entry.getPostId(), result.getErrors());
+            metrics.increment("feed.outbox.dropped");
+            outbox.discard(entry);
+            return;
+        }
+        outbox.complete(entry);
+        metrics.increment("feed.outbox.delivered");
+    }
+
+    private void giveUpIfExhausted(FanoutOutbox.Entry entry)
+    {
+        if (entry.getDeliveries() >= maxAttempts) {
+            log.error("Gave up on fanning out post {} after {} attempts", entry.getPostId(), entry.getDeliveries());
+            metrics.increment("feed.outbox.dropped");
+            outbox.discard(entry);
+        }
+    }
+
+    private void pause()
+    {
+        try {
+            Thread.sleep(BLOCK_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
@@ -1,37 +1,153 @@
 package me.twodee.friendlyneighbor.service;
 
 import lombok.extern.java.Log;
+import me.twodee.friendlyneighbor.component.FanoutExecutor;
+import me.twodee.friendlyneighbor.component.FanoutPolicy;
+import me.twodee.friendlyneighbor.component.FnCoreConfig;
+import me.twodee.friendlyneighbor.component.MetricRegistry;
 import me.twodee.friendlyneighbor.dto.*;
 import me.twodee.friendlyneighbor.entity.Post;
 import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.repository.FanoutOutbox;
 import me.twodee.friendlyneighbor.repository.PostRepository;
 
 import javax.inject.Inject;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
+import static me.twodee.friendlyneighbor.component.Util.haversine;
+
 @Log
 public class Feed {
+    static final String FANOUT_BUSY = "Too many posts are being forwarded right now, try again later";
+    static final String POST_MISSING = "The post doesn't exist";
     private final Discovery discovery;
     private final PostRepository repository;
-    private Notifier notifier;
+    private final Notifier notifier;
+    private final FanoutPolicy fanoutPolicy;
+    private final FanoutExecutor executor;
+    private final MetricRegistry metrics;
+    private final FanoutOutbox outbox;
+    private final ReadStrategy readStrategy;
+    private final double rematerializeDistance;
+
+    /**
+     * Where {@link #fetchRequestsForUser(String)} reads the feed from
+     */
+    public enum ReadStrategy {
+        /**
+         * The user's timeline in Redis, which fanout writes to
+         */
+        TIMELINE,
+        /**
+         * A geo query over the posts in Mongo
+         */
+        GEO,
+        /**
+         * The timeline, falling back to the geo query when reading it fails or it's empty. Unlike the geo query
+         * the timeline doesn't hold every post's own radius against the reader, so the two can answer
+         * differently.
+         */
+        TIMELINE_FALLBACK;
+
+        /**
+         * @return The strategy by its name in any case, {@link #GEO} with a warning if there's none by that name
+         */
+        public static ReadStrategy from(String name) {
+            for (ReadStrategy strategy : values()) {
+                if (strategy.name().equalsIgnoreCase(name)) {
+                    return strategy;
+                }
+            }
+            if (name != null && !name.isEmpty()) {
+                log.warning("Unknown feed.read.strategy '" + name + "', reading feeds with the geo query");
+            }
+            return GEO;
+        }
+    }
 
     Feed(Discovery discovery, PostRepository repository) {
-        this.discovery = discovery;
-        this.repository = repository;
+        this(discovery, repository, null);
     }
 
-    @Inject
     Feed(Discovery discovery, PostRepository repository, Notifier notifier) {
+        this(discovery, repository, notifier, FanoutPolicy.unbounded(), new MetricRegistry());
+    }
+
+    Feed(Discovery discovery, PostRepository repository, Notifier notifier, FanoutPolicy fanoutPolicy,
+         MetricRegistry metrics) {
+        this(discovery, repository, notifier, fanoutPolicy, SharedExecutor.INSTANCE, metrics);
+    }
+
+    /**
+     * The executor of the feeds built without one, shared so building them doesn't leave a pool behind each time
+     */
+    private static final class SharedExecutor {
+        private static final FanoutExecutor INSTANCE = new FanoutExecutor(
+                FanoutExecutor.DEFAULT_THREADS, FanoutExecutor.DEFAULT_QUEUE_CAPACITY, true, new MetricRegistry());
+    }
+
+    Feed(Discovery discovery, PostRepository repository, Notifier notifier, FanoutPolicy fanoutPolicy,
+         FanoutExecutor executor, MetricRegistry metrics) {
+        this(discovery, repository, notifier, fanoutPolicy, executor, metrics, null);
+    }
+
+    /**
+     * @param outbox Where posts are queued to be fanned out by a {@link FanoutWorker}, null to fan them out
+     *               before the call returns
+     */
+    Feed(Discovery discovery, PostRepository repository, Notifier notifier, FanoutPolicy fanoutPolicy,
+         FanoutExecutor executor, MetricRegistry metrics, FanoutOutbox outbox) {
+        this(discovery, repository, notifier, fanoutPolicy, executor, metrics, outbox, ReadStrategy.GEO);
+    }
+
+    Feed(Discovery discovery, PostRepository repository, Notifier notifier, FanoutPolicy fanoutPolicy,
+         FanoutExecutor executor, MetricRegistry metrics, FanoutOutbox outbox, ReadStrategy readStrategy) {
+        this(discovery, repository, notifier, fanoutPolicy, executor, metrics, outbox, readStrategy, 0);
+    }
+
+    /**
+     * @param rematerializeDistance Kilometres a user has to move for their timeline to be brought in line
+     *                              with their new neighbourhood, 0 to leave it until it expires
+     */
+    Feed(Discovery discovery, PostRepository repository, Notifier notifier, FanoutPolicy fanoutPolicy,
+         FanoutExecutor executor, MetricRegistry metrics, FanoutOutbox outbox, ReadStrategy readStrategy,
+         double rematerializeDistance) {
         this.discovery = discovery;
         this.repository = repository;
         this.notifier = notifier;
+        this.fanoutPolicy = fanoutPolicy;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.outbox = outbox;
+        this.readStrategy = readStrategy;
+        this.rematerializeDistance = rematerializeDistance;
+    }
+
+    @Inject
+    Feed(Discovery discovery, PostRepository repository, Notifier notifier, FnCoreConfig config,
+         FanoutExecutor executor, MetricRegistry metrics, FanoutOutbox outbox) {
+        this(discovery, repository, notifier,
+             new FanoutPolicy(config.getFeedFanoutMaxAudience(), config.getFeedPullThreshold()), executor, metrics,
+             config.isFeedFanoutAsync() ? outbox : null, ReadStrategy.from(config.getFeedReadStrategy()),
+             config.getFeedRematerializeDistance());
+        if (config.getFeedFanoutMaxAudience() > 0 && !fanoutPolicy.capsBeforePulling()) {
+            log.warning("feed.fanout.max_audience isn't below feed.pull.threshold, posts are pulled before the " +
+                                "audience cap is ever reached");
+        }
     }
 
     public ResultObject fanoutToNearbyUsers(PostData data, UserLocation userLocation) {
-        if (userLocation.getRadius() == 0 || userLocation.getPosition().getLatitude() == 0 || userLocation.getPosition().getLongitude() == 0) {
+        if (userLocation.getRadius() == 0 || userLocation.getLatitude() == 0 || userLocation.getLongitude() == 0) {
             return new ResultObject("location", "Location coordinates and/or radius haven't been set.");
         }
         Post persistedPost = savePost(userLocation, data);
@@ -40,8 +156,8 @@ public class Feed {
 
     public ResultObject fanoutToNearbyUsers(PostData data, String userId) {
         UserLocationResult result = discovery.getUserLocation(userId);
-        if (result.getNotification().hasErrors()) {
-            return new ResultObject(result.getNotification().getErrors());
+        if (result.hasErrors()) {
+            return new ResultObject(result.getErrors());
         }
         UserLocation currentUserLocation = result.userLocation;
         Post persistedPost = savePost(currentUserLocation, data);
@@ -49,7 +165,7 @@ public class Feed {
     }
 
     public ResultObject pushRequestToNearbyUsers(String postId, UserLocation currentUserLocation) {
-        if (currentUserLocation.getRadius() == 0 || currentUserLocation.getPosition().getLatitude() == 0 || currentUserLocation.getPosition().getLongitude() == 0) {
+        if (currentUserLocation.getRadius() == 0 || currentUserLocation.getLatitude() == 0 || currentUserLocation.getLongitude() == 0) {
             return new ResultObject("location", "Location coordinates and/or radius haven't been set.");
         }
         return saveAndPush(currentUserLocation, new Post(postId, currentUserLocation, LocalDateTime.now()));
@@ -58,8 +174,8 @@ public class Feed {
     public ResultObject pushRequestToNearbyUsers(String postId, String userId)
     {
         UserLocationResult result = discovery.getUserLocation(userId);
-        if (result.getNotification().hasErrors()) {
-            return new ResultObject(result.getNotification().getErrors());
+        if (result.hasErrors()) {
+            return new ResultObject(result.getErrors());
         }
         UserLocation currentUserLocation = result.userLocation;
         return saveAndPush(currentUserLocation, new Post(postId, currentUserLocation, LocalDateTime.now()));
@@ -68,13 +184,198 @@ public class Feed {
     public PostResults fetchRequestsForUser(String userId)
     {
         UserLocationResult locationResult = discovery.getUserLocation(userId);
-        if (locationResult.getNotification().hasErrors()) {
+        if (locationResult.hasErrors()) {
             PostResults results = new PostResults();
             results.setNotification(locationResult.getNotification());
             return results;
         }
 
-        return new PostResults(repository.findAllForUser(locationResult.userLocation));
+        return new PostResults(readFeed(locationResult.userLocation));
+    }
+
+    /**
+     * Reads the feeds of many users at once. Their locations are looked up together and, unless the read
+     * strategy is {@link ReadStrategy#GEO}, their timelines are read together too. Under
+     * {@link ReadStrategy#TIMELINE_FALLBACK} the users whose timeline came back empty get the geo query.
+     *
+     * @return The feed per user id, in the order the ids were given
+     */
+    public Map<String, PostResults> fetchRequestsForUsers(List<String> userIds) {
+        Map<String, PostResults> results = new LinkedHashMap<>();
+        List<UserLocation> found = new ArrayList<>();
+        discovery.getUserLocations(userIds).forEach((userId, locationResult) -> {
+            if (locationResult.hasErrors()) {
+                PostResults missing = new PostResults();
+                missing.setNotification(locationResult.getNotification());
+                results.put(userId, missing);
+            }
+            else {
+                found.add(locationResult.userLocation);
+                results.put(userId, null);
+            }
+        });
+        if (!found.isEmpty()) {
+            metrics.add("feed.read.batch.users", found.size());
+            readFeeds(found).forEach((userId, posts) -> results.put(userId, new PostResults(posts)));
+        }
+        return results;
+    }
+
+    private Map<String, List<Post>> readFeeds(List<UserLocation> userLocations) {
+        Map<String, List<Post>> feeds = new HashMap<>();
+        if (readStrategy == ReadStrategy.GEO) {
+            userLocations.forEach(userLocation -> feeds.put(userLocation.getId(), readFeed(userLocation)));
+            return feeds;
+        }
+        try {
+            feeds.putAll(metrics.time("feed.read.timeline_batch",
+                                      () -> repository.findTimelinesForUsers(userLocations, this::nearbyUsersOf)));
+        } catch (RuntimeException e) {
+            if (readStrategy == ReadStrategy.TIMELINE) {
+                throw e;
+            }
+            log.warning("Reading the timelines of " + userLocations.size() + " users failed, falling back to the " +
+                                "geo query: " + e.getMessage());
+        }
+        if (readStrategy == ReadStrategy.TIMELINE) {
+            return feeds;
+        }
+        for (UserLocation userLocation : userLocations) {
+            List<Post> posts = feeds.get(userLocation.getId());
+            if (posts == null || posts.isEmpty()) {
+                metrics.increment("feed.read.fallback");
+                feeds.put(userLocation.getId(),
+                          metrics.time("feed.read.geo", () -> repository.findAllForUser(userLocation)));
+            }
+        }
+        return feeds;
+    }
+
+    /**
+     * Reads the feed the way the read strategy says, timing every read under feed.read.timeline or
+     * feed.read.geo and counting the reads that fell back under feed.read.fallback
+     */
+    private List<Post> readFeed(UserLocation userLocation) {
+        if (readStrategy == ReadStrategy.GEO) {
+            return metrics.time("feed.read.geo", () -> repository.findAllForUser(userLocation));
+        }
+        if (readStrategy == ReadStrategy.TIMELINE) {
+            return metrics.time("feed.read.timeline", () -> readTimeline(userLocation));
+        }
+        try {
+            List<Post> posts = metrics.time("feed.read.timeline", () -> readTimeline(userLocation));
+            if (!posts.isEmpty()) {
+                return posts;
+            }
+        } catch (RuntimeException e) {
+            log.warning("Reading the timeline of " + userLocation.getId() + " failed, falling back to the geo " +
+                                "query: " + e.getMessage());
+        }
+        metrics.increment("feed.read.fallback");
+        return metrics.time("feed.read.geo", () -> repository.findAllForUser(userLocation));
+    }
+
+    private List<Post> readTimeline(UserLocation userLocation) {
+        return repository.findTimelineForUser(userLocation, () -> nearbyUsersOf(userLocation));
+    }
+
+    private List<UserLocation> nearbyUsersOf(UserLocation userLocation) {
+        UserLocationsResult usersNearby = discovery.lookupNearbyUsersByLocation(userLocation);
+        return usersNearby.hasErrors() ? Collections.emptyList() : usersNearby.getUserLocations();
+    }
+
+    /**
+     * Reads one page of the user's feed. The users nearby are only looked up when the feed has to be rebuilt.
+     *
+     * @param pageSize Maximum number of posts on the page
+     * @param cursor   Cursor returned with the previous page, empty for the first page
+     */
+    public PostPage fetchRequestPageForUser(String userId, int pageSize, String cursor)
+    {
+        UserLocationResult locationResult = discovery.getUserLocation(userId);
+        if (locationResult.hasErrors()) {
+            return new PostPage(locationResult.getNotification());
+        }
+        UserLocation userLocation = locationResult.userLocation;
+        return repository.findPageForUser(userLocation, () -> nearbyUsersOf(userLocation), pageSize, cursor);
+    }
+
+    /**
+     * Reads what changed in the user's feed since their last sync, from the timeline whatever the read
+     * strategy. The users nearby are only looked up when the feed has to be rebuilt.
+     *
+     * @param token Sync token returned with the previous delta, empty for the first sync
+     */
+    public PostDelta fetchRequestDeltaForUser(String userId, String token)
+    {
+        UserLocationResult locationResult = discovery.getUserLocation(userId);
+        if (locationResult.hasErrors()) {
+            return new PostDelta(locationResult.getNotification());
+        }
+        UserLocation userLocation = locationResult.userLocation;
+        PostDelta delta = metrics.time("feed.read.delta", () -> repository.findDeltaForUser(
+                userLocation, () -> nearbyUsersOf(userLocation), token));
+        metrics.increment(delta.isReset() ? "feed.read.delta.reset" : "feed.read.delta.incremental");
+        return delta;
+    }
+
+    /**
+     * Brings the user's timeline in line with their new neighbourhood in the background, once they moved
+     * at least the rematerialization distance or changed their radius. Only the posts of the users that came
+     * into or went out of reach are added or taken out. If the fanout executor is full the timeline is
+     * dropped instead, to be rebuilt on the next read.
+     *
+     * @param previous Where the user was before the location was saved
+     * @param current  The location just saved
+     */
+    public void refreshAfterMove(UserLocation previous, UserLocation current) {
+        if (rematerializeDistance <= 0 || !movedSignificantly(previous, current)) {
+            return;
+        }
+        try {
+            executor.run(() -> metrics.time("feed.rematerialize", () -> rematerialize(previous, current)))
+                    .whenComplete((ignored, e) -> {
+                        if (e != null) {
+                            log.warning("Rematerializing the timeline of " + current.getId() + " failed: " +
+                                                e.getMessage());
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            log.warning("Dropped the timeline of " + current.getId() + ", the fanout queue is full");
+            metrics.increment("feed.rematerialize.dropped");
+            repository.dropTimeline(current.getId());
+        }
+    }
+
+    /**
+     * @return Whether timelines are brought in line after a move, callers need the previous location only then
+     */
+    public boolean isRematerializing() {
+        return rematerializeDistance > 0;
+    }
+
+    private boolean movedSignificantly(UserLocation previous, UserLocation current) {
+        return previous.getRadius() != current.getRadius()
+                || haversine(previous.getLatitude(), previous.getLongitude(), current.getLatitude(),
+                             current.getLongitude()) >= rematerializeDistance;
+    }
+
+    private Void rematerialize(UserLocation previous, UserLocation current) {
+        Set<String> before = idsOf(nearbyUsersOf(previous));
+        Set<String> after = idsOf(nearbyUsersOf(current));
+        Set<String> joined = new HashSet<>(after);
+        joined.removeAll(before);
+        Set<String> left = new HashSet<>(before);
+        left.removeAll(after);
+        if (!joined.isEmpty() || !left.isEmpty()) {
+            repository.rematerialize(current, joined, left);
+        }
+        metrics.increment("feed.rematerialize.count");
+        return null;
+    }
+
+    private static Set<String> idsOf(List<UserLocation> users) {
+        return users.stream().map(UserLocation::getId).collect(Collectors.toSet());
     }
 
     public ResultObject saveNotificationRecipient(String id, String token) {
@@ -87,14 +388,36 @@ public class Feed {
         return new SuccessResult();
     }
 
+    /**
+     * Fans out a post taken off the outbox. Posts saved with a title also get the recommendations sent, like
+     * {@link #fanoutToNearbyUsers(PostData, String)} does when fanning out right away.
+     */
+    public ResultObject deliverQueued(String postId) {
+        Post post = repository.findById(postId);
+        if (post == null) {
+            return new ResultObject("post", POST_MISSING);
+        }
+        UserLocationsResult usersNearby = discovery.lookupNearbyUsersByLocation(post.getLocation());
+        if (usersNearby.hasErrors()) {
+            return new ResultObject(usersNearby.getErrors());
+        }
+        ResultObject result = deliver(usersNearby.getUserLocations(), post);
+        if (!result.hasErrors() && post.getTitle() != null) {
+            notifyUsersWithSimilarPosts(fanoutPolicy.select(usersNearby.getUserLocations()), post);
+        }
+        return result;
+    }
+
     private ResultObject saveAndPush(UserLocation currentUserLocation, Post post) {
         Post persistedPost = repository.save(post);
+        if (outbox != null) {
+            return enqueue(persistedPost);
+        }
         UserLocationsResult usersNearby = discovery.lookupNearbyUsersByLocation(currentUserLocation);
-        if (usersNearby.getNotification().hasErrors()) {
-            return new ResultObject(usersNearby.getNotification().getErrors());
+        if (usersNearby.hasErrors()) {
+            return new ResultObject(usersNearby.getErrors());
         }
-        repository.forwardToUsers(usersNearby.getUserLocations(), persistedPost);
-        return new SuccessResult();
+        return deliver(usersNearby.getUserLocations(), persistedPost);
     }
 
     private Post savePost(UserLocation currentUserLocation, PostData postData) {
@@ -105,16 +428,62 @@ public class Feed {
     }
 
     private ResultObject fanout(Post post) {
+        if (outbox != null) {
+            return enqueue(post);
+        }
         UserLocationsResult usersNearby = discovery.lookupNearbyUsersByLocation(post.getLocation());
-        if (usersNearby.getNotification().hasErrors()) {
-            return new ResultObject(usersNearby.getNotification().getErrors());
+        if (usersNearby.hasErrors()) {
+            return new ResultObject(usersNearby.getErrors());
         }
-        repository.forwardToUsers(usersNearby.getUserLocations(), post);
-        CompletableFuture.runAsync(() -> notifyUsersWithSimilarPosts(usersNearby.getUserLocations(), post));
+        ResultObject result = deliver(usersNearby.getUserLocations(), post);
+        try {
+            executor.run(() -> notifyUsersWithSimilarPosts(fanoutPolicy.select(usersNearby.getUserLocations()),
+                                                           post));
+        } catch (RejectedExecutionException e) {
+            log.warning("Skipped recommendations for post " + post.getId() + ", the fanout queue is full");
+        }
+
+        return result;
+    }
 
+    private ResultObject enqueue(Post post) {
+        outbox.append(post.getId());
+        metrics.increment("feed.outbox.queued");
         return new SuccessResult();
     }
 
+    /**
+     * Pushes the post to the nearest users within the cap, or records it once for pulling when the audience
+     * is past the pull threshold, in which case everyone nearby still sees it. The push runs on the calling
+     * thread, which waits for it anyway, the fanout executor only bounds how many pushes hit Redis at once.
+     */
+    private ResultObject deliver(List<UserLocation> usersNearby, Post post) {
+        if (fanoutPolicy.shouldPull(usersNearby.size())) {
+            repository.publishForPull(post);
+            metrics.increment("feed.fanout.pulled");
+            return new FanoutResult(usersNearby.size(), 0);
+        }
+        List<UserLocation> audience = selectAudience(usersNearby, post);
+        try {
+            executor.runInline(() -> repository.forwardToUsers(audience, post));
+        } catch (RejectedExecutionException e) {
+            return new ResultObject("fanout", FANOUT_BUSY);
+        }
+        return new FanoutResult(audience.size(), usersNearby.size() - audience.size());
+    }
+
+    private List<UserLocation> selectAudience(List<UserLocation> usersNearby, Post post) {
+        List<UserLocation> audience = fanoutPolicy.select(usersNearby);
+        int skipped = usersNearby.size() - audience.size();
+        metrics.add("feed.fanout.reached", audience.size());
+        if (skipped > 0) {
+            metrics.add("feed.fanout.skipped", skipped);
+            log.fine("Post " + post.getId() + " capped to the nearest " + audience.size() + " of " +
+                             usersNearby.size() + " users");
+        }
+        return audience;
+    }
+
     private void notifyUsersWithSimilarPosts(List<UserLocation> usersNearby, Post post) {
         List<Post> posts = repository.fetchMatchingNearbyPosts(post.getLocation(), usersNearby, post);
         notifier.sendPostRecommendation(posts.stream().map(p -> p.getLocation().getId()).collect(Collectors.toList()));
@@ -2,10 +2,18 @@ package me.twodee.friendlyneighbor;
 
 import io.grpc.ManagedChannel;
 import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import me.twodee.friendlyneighbor.dto.FanoutResult;
 import me.twodee.friendlyneighbor.dto.Notification;
+import me.twodee.friendlyneighbor.dto.PostDelta;
+import me.twodee.friendlyneighbor.dto.PostPage;
+import me.twodee.friendlyneighbor.dto.PostData;
+import me.twodee.friendlyneighbor.dto.PostResults;
 import me.twodee.friendlyneighbor.dto.ResultObject;
 import me.twodee.friendlyneighbor.dto.UserLocationResult;
+import me.twodee.friendlyneighbor.dto.UserLocationStream;
 import me.twodee.friendlyneighbor.dto.UserLocationsResult;
+import me.twodee.friendlyneighbor.entity.Post;
 import me.twodee.friendlyneighbor.entity.UserLocation;
 import me.twodee.friendlyneighbor.service.Discovery;
 import me.twodee.friendlyneighbor.service.Feed;
@@ -17,16 +25,32 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class FnCoreHandlerTest
@@ -82,6 +106,7 @@ class FnCoreHandlerTest
     @Test
     void testSuccessfulSaveUser()
     {
+        when(discovery.getUserLocation(any())).thenReturn(new UserLocationResult());
         when(discovery.saveUserLocation(any())).thenReturn(new ResultObject());
 
         FnCoreGenerated.Result result = fnCoreHandler.saveUserLocation(
@@ -89,9 +114,58 @@ class FnCoreHandlerTest
         assertTrue(result.getSuccess());
     }
 
+    @Test
+    void savingMovedUserRefreshesTheirFeed()
+    {
+        UserLocation previous = new UserLocation("u1", 22.50, 88.34, 2);
+        when(feed.isRematerializing()).thenReturn(true);
+        when(discovery.getUserLocation("u1")).thenReturn(new UserLocationResult(previous));
+        when(discovery.saveUserLocation(any())).thenReturn(new ResultObject());
+
+        FnCoreGenerated.Result result = fnCoreHandler.saveUserLocation(
+                FnCoreGenerated.RegistrationRequest.newBuilder()
+                        .setUserId("u1")
+                        .setLocation(FnCoreGenerated.Location.newBuilder().setLatitude(22.60).setLongitude(88.34))
+                        .setRadius(2)
+                        .build());
+
+        assertTrue(result.getSuccess());
+        verify(feed).refreshAfterMove(eq(previous), argThat(location -> location.getLatitude() == 22.60));
+    }
+
+    @Test
+    void savingNewUserDoesNotRefreshFeed()
+    {
+        Notification note = new Notification();
+        note.addError("id", "missing");
+        UserLocationResult missing = new UserLocationResult();
+        missing.setNotification(note);
+        when(feed.isRematerializing()).thenReturn(true);
+        when(discovery.getUserLocation(any())).thenReturn(missing);
+        when(discovery.saveUserLocation(any())).thenReturn(new ResultObject());
+
+        fnCoreHandler.saveUserLocation(FnCoreGenerated.RegistrationRequest.newBuilder().setUserId("u1").build());
+
+        verify(feed, never()).refreshAfterMove(any(), any());
+    }
+
+    @Test
+    void savingWithoutRematerializationSkipsPreviousLocation()
+    {
+        when(discovery.saveUserLocation(any())).thenReturn(new ResultObject());
+
+        FnCoreGenerated.Result result = fnCoreHandler.saveUserLocation(
+                FnCoreGenerated.RegistrationRequest.newBuilder().setUserId("u1").build());
+
+        assertTrue(result.getSuccess());
+        verify(discovery, never()).getUserLocation(any());
+        verify(feed, never()).refreshAfterMove(any(), any());
+    }
+
     @Test
     void testFailedSaveUser()
     {
+        when(discovery.getUserLocation(any())).thenReturn(new UserLocationResult());
         when(discovery.saveUserLocation(any())).thenReturn(
                 new ResultObject("internal", ResultObject.SOMETHING_WENT_WRONG));
 
@@ -245,8 +319,247 @@ class FnCoreHandlerTest
         assertTrue(result.getMetaResult().containsErrors("id"));
     }
 
+    private List<UserLocation> nearbyUsers(int count)
+    {
+        List<UserLocation> users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            UserLocation location = new UserLocation("u" + i, new UserLocation.Position(10, 10), 10);
+            location.setDistance(i);
+            users.add(location);
+        }
+        return users;
+    }
+
+    @Test
+    void streamUsersInChunks()
+    {
+        when(discovery.streamNearbyUsersByLocation(any(), anyLong(), any())).thenReturn(
+                new UserLocationStream(nearbyUsers(5).stream(), 0, null));
+
+        Iterator<FnCoreGenerated.NearbyUsersChunk> chunks = fnCoreHandler.streamUsersInCircleByLocation(
+                FnCoreGenerated.NearbyUsersPageRequest.newBuilder().setChunkSize(2).build());
+
+        List<FnCoreGenerated.NearbyUsersChunk> received = new ArrayList<>();
+        chunks.forEachRemaining(received::add);
+        assertThat(received.size(), equalTo(3));
+        assertTrue(received.get(0).getMetaResult().getSuccess());
+        Assertions.assertThat(received.get(0).getUserList()).extracting("userId").containsExactly("u0", "u1");
+        Assertions.assertThat(received.get(2).getUserList()).extracting("userId").containsExactly("u4");
+        assertThat(received.get(2).getNextCursor(), equalTo(""));
+    }
+
+    @Test
+    void streamUsersPageCarriesCursor()
+    {
+        when(discovery.streamNearbyUsersByUserId(any(), anyLong(), any())).thenReturn(
+                new UserLocationStream(nearbyUsers(5).stream(), 3, null));
+
+        Iterator<FnCoreGenerated.NearbyUsersChunk> chunks = fnCoreHandler.streamUsersInCircleById(
+                FnCoreGenerated.NearbyUsersPageRequest.newBuilder().setLimit(3).build());
+
+        FnCoreGenerated.NearbyUsersChunk chunk = chunks.next();
+        assertFalse(chunks.hasNext());
+        Assertions.assertThat(chunk.getUserList()).extracting("userId").containsExactly("u0", "u1", "u2");
+        assertFalse(chunk.getNextCursor().isEmpty());
+    }
+
+    @Test
+    void streamUsersEmpty()
+    {
+        when(discovery.streamNearbyUsersByUserId(any(), anyLong(), any())).thenReturn(
+                new UserLocationStream(new ArrayList<UserLocation>().stream(), 0, null));
+
+        Iterator<FnCoreGenerated.NearbyUsersChunk> chunks = fnCoreHandler.streamUsersInCircleById(
+                FnCoreGenerated.NearbyUsersPageRequest.newBuilder().build());
+
+        FnCoreGenerated.NearbyUsersChunk chunk = chunks.next();
+        assertFalse(chunks.hasNext());
+        assertTrue(chunk.getMetaResult().getSuccess());
+        assertThat(chunk.getUserCount(), equalTo(0));
+    }
+
+    @Test
+    void streamUsersFailure()
+    {
+        Notification note = new Notification();
+        note.addError("userId", "err");
+        when(discovery.streamNearbyUsersByUserId(any(), anyLong(), any())).thenReturn(new UserLocationStream(note));
+
+        Iterator<FnCoreGenerated.NearbyUsersChunk> chunks = fnCoreHandler.streamUsersInCircleById(
+                FnCoreGenerated.NearbyUsersPageRequest.newBuilder().build());
+
+        FnCoreGenerated.NearbyUsersChunk chunk = chunks.next();
+        assertFalse(chunks.hasNext());
+        assertFalse(chunk.getMetaResult().getSuccess());
+        assertTrue(chunk.getMetaResult().containsErrors("userId"));
+    }
+
+    @Test
+    void bulkSaveReportsPerUser() throws InterruptedException, ExecutionException, TimeoutException
+    {
+        when(discovery.saveUserLocations(any())).thenAnswer(invocation -> {
+            List<UserLocation> batch = invocation.getArgument(0);
+            Map<String, ResultObject> results = new HashMap<>();
+            batch.forEach(location -> results.put(location.getId(), location.getId().equals("bad")
+                    ? new ResultObject("internal", ResultObject.SOMETHING_WENT_WRONG)
+                    : new ResultObject()));
+            return results;
+        });
+        CompletableFuture<FnCoreGenerated.BulkSaveResult> response = new CompletableFuture<>();
+        StreamObserver<FnCoreGenerated.RegistrationRequest> requests = FnCoreGrpc.newStub(channel).saveUserLocations(
+                new StreamObserver<FnCoreGenerated.BulkSaveResult>()
+                {
+                    @Override
+                    public void onNext(FnCoreGenerated.BulkSaveResult value)
+                    {
+                        response.complete(value);
+                    }
+
+                    @Override
+                    public void onError(Throwable t)
+                    {
+                        response.completeExceptionally(t);
+                    }
+
+                    @Override
+                    public void onCompleted()
+                    {
+                    }
+                });
+
+        for (String id : new String[]{ "a", "bad", "c" }) {
+            requests.onNext(FnCoreGenerated.RegistrationRequest.newBuilder().setUserId(id).setRadius(10).build());
+        }
+        requests.onCompleted();
+
+        FnCoreGenerated.BulkSaveResult result = response.get(5, TimeUnit.SECONDS);
+        assertTrue(result.getMetaResult().getSuccess());
+        assertThat(result.getResultsCount(), equalTo(3));
+        assertTrue(result.getResultsOrThrow("a").getSuccess());
+        assertFalse(result.getResultsOrThrow("bad").getSuccess());
+        verify(discovery, times(1)).saveUserLocations(any());
+    }
+
     public void shutdown() throws InterruptedException
     {
         channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
     }
-}
\ No newline at end of file
+
+    @Test
+    void forwardRequestReportsReachedAndSkippedUsers()
+    {
+        when(feed.fanoutToNearbyUsers(any(PostData.class), anyString())).thenReturn(new FanoutResult(500, 120));
+
+        FnCoreGenerated.Result result = fnCoreHandler.forwardRequestNearbyDefaultLocation(
+                FnCoreGenerated.PostData.newBuilder().setPostId("p1").setUserId("abc").build());
+
+        assertTrue(result.getSuccess());
+        assertThat(result.getReached(), equalTo(500));
+        assertThat(result.getSkipped(), equalTo(120));
+    }
+
+    @Test
+    void fetchRequestsPageCarriesCursor()
+    {
+        Post post = new Post("p1", new UserLocation("x", 0, 0, 5), LocalDateTime.now());
+        post.getLocation().setDistance(1.5);
+        when(feed.fetchRequestPageForUser(anyString(), anyInt(), anyString()))
+                .thenReturn(new PostPage(Collections.singletonList(post), "next"));
+
+        FnCoreGenerated.RequestsNearbyPage page = fnCoreHandler.fetchRequestsNearbyPage(
+                FnCoreGenerated.RequestsNearbyPageRequest.newBuilder().setUserId("abc").build());
+
+        assertTrue(page.getMetaResult().getSuccess());
+        assertThat(page.getRequests(0).getPostId(), equalTo("p1"));
+        assertThat(page.getNextCursor(), equalTo("next"));
+        verify(feed).fetchRequestPageForUser("abc", 20, "");
+    }
+
+    @Test
+    void fetchRequestsPageFailed()
+    {
+        Notification notification = new Notification();
+        notification.addError("id", "Invalid user");
+        when(feed.fetchRequestPageForUser(anyString(), anyInt(), anyString())).thenReturn(new PostPage(notification));
+
+        FnCoreGenerated.RequestsNearbyPage page = fnCoreHandler.fetchRequestsNearbyPage(
+                FnCoreGenerated.RequestsNearbyPageRequest.newBuilder().setUserId("abc").setPageSize(5000).build());
+
+        assertFalse(page.getMetaResult().getSuccess());
+        verify(feed).fetchRequestPageForUser("abc", 500, "");
+    }
+
+    @Test
+    void fetchRequestsDeltaCarriesChangesAndToken()
+    {
+        Post post = new Post("p1", new UserLocation("x", 0, 0, 5), LocalDateTime.now());
+        post.getLocation().setDistance(1.5);
+        when(feed.fetchRequestDeltaForUser(anyString(), anyString()))
+                .thenReturn(new PostDelta(Collections.singletonList(post), Collections.singletonList("p0"), "p-9",
+                                          false, "next"));
+
+        FnCoreGenerated.RequestsNearbyDelta delta = fnCoreHandler.fetchRequestsNearbyDelta(
+                FnCoreGenerated.RequestsNearbyDeltaRequest.newBuilder().setUserId("abc").setSyncToken("last")
+                        .build());
+
+        assertTrue(delta.getMetaResult().getSuccess());
+        assertThat(delta.getAdded(0).getPostId(), equalTo("p1"));
+        assertThat(delta.getRemovedList(), equalTo(Collections.singletonList("p0")));
+        assertThat(delta.getHorizon(), equalTo("p-9"));
+        assertFalse(delta.getReset());
+        assertThat(delta.getSyncToken(), equalTo("next"));
+        verify(feed).fetchRequestDeltaForUser("abc", "last");
+    }
+
+    @Test
+    void fetchRequestsDeltaFailed()
+    {
+        Notification notification = new Notification();
+        notification.addError("id", "Invalid user");
+        when(feed.fetchRequestDeltaForUser(anyString(), anyString())).thenReturn(new PostDelta(notification));
+
+        FnCoreGenerated.RequestsNearbyDelta delta = fnCoreHandler.fetchRequestsNearbyDelta(
+                FnCoreGenerated.RequestsNearbyDeltaRequest.newBuilder().setUserId("abc").build());
+
+        assertFalse(delta.getMetaResult().getSuccess());
+        assertThat(delta.getSyncToken(), equalTo(""));
+    }
+
+    @Test
+    void fetchRequestsBatchHoldsFeedPerUser()
+    {
+        Post post = new Post("p1", new UserLocation("x", 0, 0, 5), LocalDateTime.now());
+        post.getLocation().setDistance(1.5);
+        Notification notification = new Notification();
+        notification.addError("userId", "The supplied User ID doesn't exist");
+        PostResults missing = new PostResults();
+        missing.setNotification(notification);
+        Map<String, PostResults> feeds = new HashMap<>();
+        feeds.put("abc", new PostResults(Collections.singletonList(post)));
+        feeds.put("gone", missing);
+        when(feed.fetchRequestsForUsers(Arrays.asList("abc", "gone"))).thenReturn(feeds);
+
+        FnCoreGenerated.RequestsNearbyBatch batch = fnCoreHandler.fetchRequestsNearbyBatch(
+                FnCoreGenerated.UserIdentifiers.newBuilder().addUserIds("abc").addUserIds("gone").addUserIds("abc")
+                        .build());
+
+        assertTrue(batch.getMetaResult().getSuccess());
+        assertThat(batch.getFeedsOrThrow("abc").getRequests(0).getPostId(), equalTo("p1"));
+        assertFalse(batch.getFeedsOrThrow("gone").getMetaResult().getSuccess());
+    }
+
+    @Test
+    void fetchRequestsBatchRejectsTooManyUsers()
+    {
+        FnCoreGenerated.UserIdentifiers.Builder request = FnCoreGenerated.UserIdentifiers.newBuilder();
+        for (int i = 0; i <= 100; i++) {
+            request.addUserIds("user" + i);
+        }
+
+        FnCoreGenerated.RequestsNearbyBatch batch = fnCoreHandler.fetchRequestsNearbyBatch(request.build());
+
+        assertFalse(batch.getMetaResult().getSuccess());
+        assertTrue(batch.getMetaResult().getErrorsMap().containsKey("userIds"));
+        verify(feed, never()).fetchRequestsForUsers(any());
+    }
+}
@@ -82,7 +82,7 @@ class GeoSearchTest
 
         res.getMappedResults().forEach(System.out::println);
 
-        assertThat(Math.abs(res.getMappedResults().get(0).getDistance().doubleValue() -
+        assertThat(Math.abs(res.getMappedResults().get(0).getDistance() -
                                     haversine(22.623806, 88.414486, 22.507449, 88.329317)),
                    lessThan(1.0));
     }
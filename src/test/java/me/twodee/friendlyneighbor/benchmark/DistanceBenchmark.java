@@ -0,0 +1,97 @@
+package me.twodee.friendlyneighbor.benchmark;
+
+import me.twodee.friendlyneighbor.component.Util;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measuring one point against a batch of candidates spread over a region around it, the way an in-memory
+ * lookup does
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark
+{
+    private static final double LATITUDE = 19.076;
+    private static final double LONGITUDE = 72.8777;
+    private static final double RADIUS = 10;
+
+    @Param({ "1000", "100000" })
+    int candidates;
+
+    /**
+     * Degrees around the center the candidates are spread over, about 55 and 550 KM
+     */
+    @Param({ "0.5", "5" })
+    double spread;
+
+    private double[] latitudes;
+    private double[] longitudes;
+    private double[] cosLatitudes;
+    private double[] distances;
+    private int[] hits;
+
+    @Setup
+    public void setUp()
+    {
+        Random random = new Random(42);
+        latitudes = new double[candidates];
+        longitudes = new double[candidates];
+        cosLatitudes = new double[candidates];
+        distances = new double[candidates];
+        hits = new int[candidates];
+        for (int i = 0; i < candidates; i++) {
+            latitudes[i] = LATITUDE + (random.nextDouble() - 0.5) * 2 * spread;
+            longitudes[i] = LONGITUDE + (random.nextDouble() - 0.5) * 2 * spread;
+            cosLatitudes[i] = Util.cosLatitude(latitudes[i]);
+        }
+    }
+
+    @Benchmark
+    public void haversine(Blackhole blackhole)
+    {
+        for (int i = 0; i < candidates; i++) {
+            blackhole.consume(Util.haversine(LATITUDE, LONGITUDE, latitudes[i], longitudes[i]));
+        }
+    }
+
+    @Benchmark
+    public double[] batchHaversine()
+    {
+        Util.haversine(LATITUDE, LONGITUDE, latitudes, longitudes, cosLatitudes, candidates, distances);
+        return distances;
+    }
+
+    @Benchmark
+    public double[] batchEquirectangular()
+    {
+        Util.equirectangular(LATITUDE, LONGITUDE, latitudes, longitudes, candidates, distances);
+        return distances;
+    }
+
+    @Benchmark
+    public int haversineWithinRadius()
+    {
+        int found = 0;
+        for (int i = 0; i < candidates; i++) {
+            if (Util.haversine(LATITUDE, LONGITUDE, latitudes[i], longitudes[i]) <= RADIUS) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int boundingBoxWithinRadius()
+    {
+        return Util.within(LATITUDE, LONGITUDE, RADIUS, latitudes, longitudes, cosLatitudes, candidates,
+                           hits, distances);
+    }
+}
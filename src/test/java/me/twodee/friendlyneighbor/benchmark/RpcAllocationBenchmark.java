@@ -0,0 +1,318 @@
+package me.twodee.friendlyneighbor.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import io.grpc.stub.StreamObserver;
+import me.twodee.friendlyneighbor.FnCoreGenerated;
+import me.twodee.friendlyneighbor.FnCoreHandler;
+import me.twodee.friendlyneighbor.component.FanoutExecutor;
+import me.twodee.friendlyneighbor.component.FnCoreConfig;
+import me.twodee.friendlyneighbor.component.MetricRegistry;
+import me.twodee.friendlyneighbor.dto.PostDelta;
+import me.twodee.friendlyneighbor.dto.PostPage;
+import me.twodee.friendlyneighbor.entity.Post;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.repository.FanoutOutbox;
+import me.twodee.friendlyneighbor.repository.LocationRepository;
+import me.twodee.friendlyneighbor.repository.PostRepository;
+import me.twodee.friendlyneighbor.service.Notifier;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The hot RPCs against stores that answer from memory, so what's left is the handler, service and DTO
+ * overhead. Meant to be run with {@code -prof gc}, which the bench profile passes, to compare the bytes
+ * allocated per call. The root logger is raised to INFO, the handler's debug lines would otherwise be
+ * all that gets measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RpcAllocationBenchmark
+{
+    private static final int NEARBY_USERS = 20;
+
+    private FnCoreHandler handler;
+    private FnCoreGenerated.RegistrationRequest registration;
+    private FnCoreGenerated.UserIdentifier user;
+
+    @Setup
+    public void setUp()
+    {
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.INFO);
+
+        List<UserLocation> nearby = new ArrayList<>(NEARBY_USERS);
+        List<Post> posts = new ArrayList<>(NEARBY_USERS);
+        for (int i = 0; i < NEARBY_USERS; i++) {
+            UserLocation location = new UserLocation("user" + i, 19.076 + i * 0.001, 72.8777, 10);
+            location.setDistance(i * 0.1);
+            nearby.add(location);
+            posts.add(new Post("post" + i, location, LocalDateTime.now()));
+        }
+        UserLocation self = new UserLocation("self", 19.076, 72.8777, 10);
+
+        handler = Guice.createInjector(new AbstractModule()
+        {
+            @Override
+            protected void configure()
+            {
+                bind(LocationRepository.class).toInstance(new FixedLocationRepository(self, nearby));
+                bind(PostRepository.class).toInstance(new FixedPostRepository(posts));
+                bind(Notifier.class).toInstance(new Notifier(null, null));
+                bind(FnCoreConfig.class).toInstance(FnCoreConfig.builder().build());
+                bind(FanoutExecutor.class).toInstance(new FanoutExecutor(1, 16, true, new MetricRegistry()));
+                bind(FanoutOutbox.class).toInstance(new FanoutOutbox(null, "BENCH"));
+            }
+        }).getInstance(FnCoreHandler.class);
+
+        registration = FnCoreGenerated.RegistrationRequest.newBuilder()
+                .setUserId("self")
+                .setLocation(FnCoreGenerated.Location.newBuilder().setLatitude(19.076).setLongitude(72.8777))
+                .setRadius(10)
+                .build();
+        user = FnCoreGenerated.UserIdentifier.newBuilder().setUserId("self").build();
+    }
+
+    @Benchmark
+    public void saveUserLocation(Blackhole blackhole)
+    {
+        handler.saveUserLocation(registration, new Sink<>(blackhole));
+    }
+
+    @Benchmark
+    public void getUserLocation(Blackhole blackhole)
+    {
+        handler.getUserLocation(user, new Sink<>(blackhole));
+    }
+
+    @Benchmark
+    public void deleteUserLocation(Blackhole blackhole)
+    {
+        handler.deleteUserLocation(user, new Sink<>(blackhole));
+    }
+
+    @Benchmark
+    public void findUsersInCircleById(Blackhole blackhole)
+    {
+        handler.findUsersInCircleById(user, new Sink<>(blackhole));
+    }
+
+    @Benchmark
+    public void fetchRequestsNearby(Blackhole blackhole)
+    {
+        handler.fetchRequestsNearby(user, new Sink<>(blackhole));
+    }
+
+    private static class Sink<T> implements StreamObserver<T>
+    {
+        private final Blackhole blackhole;
+
+        Sink(Blackhole blackhole)
+        {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onNext(T value)
+        {
+            blackhole.consume(value);
+        }
+
+        @Override
+        public void onError(Throwable t)
+        {
+            blackhole.consume(t);
+        }
+
+        @Override
+        public void onCompleted()
+        {
+        }
+    }
+
+    private static class FixedLocationRepository implements LocationRepository
+    {
+        private final UserLocation self;
+        private final List<UserLocation> nearby;
+
+        FixedLocationRepository(UserLocation self, List<UserLocation> nearby)
+        {
+            this.self = self;
+            this.nearby = nearby;
+        }
+
+        @Override
+        public UserLocation save(UserLocation userLocation)
+        {
+            return userLocation;
+        }
+
+        @Override
+        public Map<String, String> saveAll(List<UserLocation> userLocations)
+        {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public List<UserLocation> getUsersNearBy(String userId)
+        {
+            return nearby;
+        }
+
+        @Override
+        public List<UserLocation> getUsersNearBy(UserLocation userLocation)
+        {
+            return nearby;
+        }
+
+        @Override
+        public List<UserLocation> getUsersAround(UserLocation userLocation)
+        {
+            return nearby;
+        }
+
+        @Override
+        public Stream<UserLocation> streamUsersAround(UserLocation userLocation, double minDistance)
+        {
+            return nearby.stream();
+        }
+
+        @Override
+        public UserLocation findById(String id)
+        {
+            return self;
+        }
+
+        @Override
+        public Map<String, UserLocation> findAllById(Collection<String> ids)
+        {
+            return ids.stream().collect(Collectors.toMap(id -> id, id -> self, (a, b) -> a));
+        }
+
+        @Override
+        public void deleteById(String id)
+        {
+        }
+    }
+
+    private static class FixedPostRepository implements PostRepository
+    {
+        private final List<Post> posts;
+
+        FixedPostRepository(List<Post> posts)
+        {
+            this.posts = posts;
+        }
+
+        @Override
+        public Post save(Post post)
+        {
+            return post;
+        }
+
+        @Override
+        public Post findById(String id)
+        {
+            return posts.get(0);
+        }
+
+        @Override
+        public void forwardToUsers(List<UserLocation> userLocations, Post post)
+        {
+        }
+
+        @Override
+        public void publishForPull(Post post)
+        {
+        }
+
+        @Override
+        public List<Post> findAllForUser(UserLocation currentUserLocation, List<UserLocation> nearbyUsers)
+        {
+            return posts;
+        }
+
+        @Override
+        public List<Post> findAllForUser(UserLocation currentUserLocation)
+        {
+            return posts;
+        }
+
+        @Override
+        public List<Post> findTimelineForUser(UserLocation currentUserLocation,
+                                              Supplier<List<UserLocation>> nearbyUsers)
+        {
+            return posts;
+        }
+
+        @Override
+        public Map<String, List<Post>> findTimelinesForUsers(List<UserLocation> currentUserLocations,
+                                                             Function<UserLocation, List<UserLocation>> nearbyUsers)
+        {
+            return currentUserLocations.stream().collect(Collectors.toMap(UserLocation::getId, user -> posts,
+                                                                          (a, b) -> a));
+        }
+
+        @Override
+        public List<Post> findTimelineSince(UserLocation currentUserLocation,
+                                            Supplier<List<UserLocation>> nearbyUsers, LocalDateTime since)
+        {
+            return posts;
+        }
+
+        @Override
+        public PostPage findPageForUser(UserLocation currentUserLocation, Supplier<List<UserLocation>> nearbyUsers,
+                                        int pageSize, String cursor)
+        {
+            return new PostPage(posts.subList(0, Math.min(pageSize, posts.size())), "");
+        }
+
+        @Override
+        public PostDelta findDeltaForUser(UserLocation currentUserLocation, Supplier<List<UserLocation>> nearbyUsers,
+                                          String token)
+        {
+            return new PostDelta(posts, Collections.emptyList(), true, "");
+        }
+
+        @Override
+        public void rematerialize(UserLocation currentUserLocation, Collection<String> joined,
+                                  Collection<String> left)
+        {
+        }
+
+        @Override
+        public void dropTimeline(String userId)
+        {
+        }
+
+        @Override
+        public List<Post> fetchMatchingNearbyPosts(UserLocation currentUserLocation, List<UserLocation> nearbyUsers,
+                                                   Post post)
+        {
+            return posts;
+        }
+
+        @Override
+        public void deleteById(String id)
+        {
+        }
+    }
+}
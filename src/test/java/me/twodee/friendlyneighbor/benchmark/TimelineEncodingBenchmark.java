@@ -0,0 +1,110 @@
+package me.twodee.friendlyneighbor.benchmark;
+
+import me.twodee.friendlyneighbor.component.FnCoreConfig;
+import me.twodee.friendlyneighbor.entity.Post;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.repository.HybridPostRepository;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feed reads and pushes with the timelines kept as lists against sorted sets. Needs a Redis server, taken from
+ * REDIS_HOST and REDIS_PORT, localhost:6379 if they aren't set. Everything is written under the BENCH
+ * keyspace and deleted after. The feed holds a post every ten minutes, so the last day is about 144 of them.
+ * The posts are packed, Mongo isn't needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimelineEncodingBenchmark
+{
+    private static final int AUDIENCE = 100;
+
+    @Param({ "list", "sorted_set" })
+    String encoding;
+
+    @Param({ "200", "2000" })
+    int feedSize;
+
+    private JedisPool pool;
+    private HybridPostRepository repository;
+    private UserLocation reader;
+    private List<UserLocation> audience;
+    private int pushed;
+
+    @Setup
+    public void setUp()
+    {
+        String host = System.getenv().getOrDefault("REDIS_HOST", "localhost");
+        int port = Integer.parseInt(System.getenv().getOrDefault("REDIS_PORT", "6379"));
+        pool = new JedisPool(host, port);
+        clear();
+        repository = new HybridPostRepository(null, pool, FnCoreConfig.builder()
+                .redisKeyspace("BENCH")
+                .feedCacheExpiry(1)
+                .feedTimelineMaxLength(feedSize)
+                .feedTimelineEncoding(encoding)
+                .build());
+
+        reader = new UserLocation("reader", 19.076, 72.8777, 10);
+        LocalDateTime now = LocalDateTime.now();
+        List<UserLocation> readerOnly = Collections.singletonList(reader);
+        // Oldest first, each push lands on top
+        for (int i = feedSize - 1; i >= 0; i--) {
+            repository.forwardToUsers(readerOnly, post("post" + i, now.minusMinutes(i * 10L)));
+        }
+        audience = new ArrayList<>(AUDIENCE);
+        for (int i = 0; i < AUDIENCE; i++) {
+            audience.add(new UserLocation("user" + i, 19.076 + i * 0.001, 72.8777, 10));
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        clear();
+        pool.close();
+    }
+
+    private void clear()
+    {
+        try (Jedis jedis = pool.getResource()) {
+            for (String key : jedis.keys("BENCH.*")) {
+                jedis.del(key);
+            }
+        }
+    }
+
+    private static Post post(String id, LocalDateTime time)
+    {
+        return new Post(id, new UserLocation("author", 19.08, 72.88, 10), time, Post.PostType.REQUEST, null);
+    }
+
+    @Benchmark
+    public List<Post> readWholeFeed()
+    {
+        return repository.findTimelineForUser(reader, Collections::emptyList);
+    }
+
+    @Benchmark
+    public List<Post> readLastDay()
+    {
+        return repository.findTimelineSince(reader, Collections::emptyList, LocalDateTime.now().minusDays(1));
+    }
+
+    @Benchmark
+    public void pushToAudience()
+    {
+        repository.forwardToUsers(audience, post("pushed" + pushed++, LocalDateTime.now()));
+    }
+}
@@ -0,0 +1,113 @@
+package me.twodee.friendlyneighbor.component;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FanoutExecutorTest
+{
+    @Test
+    void runsOnItsOwnThreadsAndTimesTasks()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        FanoutExecutor executor = new FanoutExecutor(2, 10, true, metrics);
+        AtomicReference<String> thread = new AtomicReference<>();
+
+        executor.run(() -> thread.set(Thread.currentThread().getName())).join();
+
+        assertThat(thread.get(), startsWith("fncore-fanout-"));
+        assertThat(metrics.snapshot().get("feed.fanout.executor.run.count"), equalTo(1L));
+        assertThat(metrics.snapshot().get("feed.fanout.executor.wait.count"), equalTo(1L));
+        executor.shutdown();
+    }
+
+    @Test
+    void fullQueueRejects() throws InterruptedException
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        FanoutExecutor executor = new FanoutExecutor(1, 1, false, metrics);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+
+        executor.run(() -> {
+            started.countDown();
+            await(blocked);
+        });
+        started.await(5, TimeUnit.SECONDS);
+        executor.run(() -> {});
+
+        assertThat(metrics.snapshot().get("feed.fanout.executor.queued"), equalTo(1));
+        assertThrows(RejectedExecutionException.class, () -> executor.run(() -> {}));
+        assertThat(metrics.count("feed.fanout.executor.rejected"), equalTo(1L));
+        blocked.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    void fullQueueRunsOnCaller() throws InterruptedException
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        FanoutExecutor executor = new FanoutExecutor(1, 1, true, metrics);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicReference<Thread> thread = new AtomicReference<>();
+
+        executor.run(() -> {
+            started.countDown();
+            await(blocked);
+        });
+        started.await(5, TimeUnit.SECONDS);
+        executor.run(() -> {});
+        executor.run(() -> thread.set(Thread.currentThread())).join();
+
+        assertThat(thread.get(), equalTo(Thread.currentThread()));
+        assertThat(metrics.count("feed.fanout.executor.throttled"), equalTo(1L));
+        assertThat(metrics.count("feed.fanout.executor.rejected"), equalTo(0L));
+        blocked.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    void inlineRunsOnCallerAndRejectsPastThreads() throws InterruptedException
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        FanoutExecutor executor = new FanoutExecutor(1, 1, false, metrics);
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+
+        executor.runInline(() -> thread.set(Thread.currentThread()));
+        assertThat(thread.get(), equalTo(Thread.currentThread()));
+
+        Thread holder = new Thread(() -> executor.runInline(() -> {
+            started.countDown();
+            await(blocked);
+        }));
+        holder.start();
+        started.await(5, TimeUnit.SECONDS);
+
+        assertThrows(RejectedExecutionException.class, () -> executor.runInline(() -> {}));
+        assertThat(metrics.count("feed.fanout.executor.rejected"), equalTo(1L));
+        assertThat(metrics.snapshot().get("feed.fanout.executor.run.count"), equalTo(1L));
+        blocked.countDown();
+        holder.join(5000);
+        executor.shutdown();
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
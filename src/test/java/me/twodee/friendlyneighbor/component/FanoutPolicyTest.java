@@ -0,0 +1,72 @@
+package me.twodee.friendlyneighbor.component;
+
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FanoutPolicyTest
+{
+    private static UserLocation at(String id, double distance)
+    {
+        UserLocation location = new UserLocation(id, 19, 72, 10);
+        location.setDistance(distance);
+        return location;
+    }
+
+    @Test
+    void withinLimitKeepsEveryone()
+    {
+        List<UserLocation> candidates = Arrays.asList(at("a", 3), at("b", 1));
+
+        assertThat(new FanoutPolicy(2).select(candidates)).isSameAs(candidates);
+        assertThat(FanoutPolicy.unbounded().select(candidates)).isSameAs(candidates);
+    }
+
+    @Test
+    void keepsTheNearest()
+    {
+        List<UserLocation> candidates = Arrays.asList(at("a", 5), at("b", 1), at("c", 9), at("d", 0.5),
+                                                      at("e", 3));
+
+        assertThat(new FanoutPolicy(3).select(candidates)).extracting("id").containsExactly("d", "b", "e");
+    }
+
+    @Test
+    void largeAudience()
+    {
+        List<UserLocation> candidates = new ArrayList<>();
+        for (int i = 10_000; i > 0; i--) {
+            candidates.add(at("u" + i, i));
+        }
+
+        List<UserLocation> audience = new FanoutPolicy(100).select(candidates);
+
+        assertThat(audience).hasSize(100);
+        assertThat(audience.get(0).getId()).isEqualTo("u1");
+        assertThat(audience.get(99).getId()).isEqualTo("u100");
+    }
+
+    @Test
+    void pullsPastThreshold()
+    {
+        FanoutPolicy policy = new FanoutPolicy(10, 100);
+
+        assertThat(policy.shouldPull(100)).isFalse();
+        assertThat(policy.shouldPull(101)).isTrue();
+        assertThat(new FanoutPolicy(10).shouldPull(1_000_000)).isFalse();
+    }
+
+    @Test
+    void capAtOrAbovePullThresholdNeverTrims()
+    {
+        assertThat(new FanoutPolicy(10, 100).capsBeforePulling()).isTrue();
+        assertThat(new FanoutPolicy(10).capsBeforePulling()).isTrue();
+        assertThat(new FanoutPolicy(100, 100).capsBeforePulling()).isFalse();
+        assertThat(FanoutPolicy.unbounded().capsBeforePulling()).isFalse();
+    }
+}
@@ -17,6 +17,8 @@ class FnCoreConfigTest
         FnCoreConfig config = FnCoreConfig.createFromProperties(new Properties());
         assertNotNull(config);
         assertThat(config.getFnCorePort(), equalTo(9120));
+        assertThat(config.getFeedFanoutMaxAudience(), equalTo(500));
+        assertThat(config.getFeedReadStrategy(), equalTo("geo"));
     }
 
     @Test
@@ -0,0 +1,152 @@
+package me.twodee.friendlyneighbor.component;
+
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class GeoCellIndexTest
+{
+    private GeoCellIndex populatedIndex()
+    {
+        GeoCellIndex index = new GeoCellIndex();
+        index.put(new UserLocation("abc123", new UserLocation.Position(22.507449, 88.34), 2100));
+        index.put(new UserLocation("Kolkata", new UserLocation.Position(22.507449, 88.329317), 2100));
+        index.put(new UserLocation("Delhi", new UserLocation.Position(28.2258241, 77.5837057), 2100));
+        index.put(new UserLocation("Outside", new UserLocation.Position(10.5837057, 70.2258241), 100));
+        return index;
+    }
+
+    @Test
+    void findNearbyAppliesBothRadii()
+    {
+        GeoCellIndex index = populatedIndex();
+
+        List<UserLocation> users = index.findNearby(new UserLocation.Position(22.507449, 88.34), 2100, "abc123");
+
+        Assertions.assertThat(users).extracting("id").containsExactly("Kolkata", "Delhi");
+    }
+
+    @Test
+    void findNearbyLeavesOutSmallRadius()
+    {
+        GeoCellIndex index = new GeoCellIndex();
+        index.put(new UserLocation("Delhi", new UserLocation.Position(28.2258241, 77.5837057), 1200));
+
+        List<UserLocation> users = index.findNearby(new UserLocation.Position(22.507449, 88.34), 2100, "abc123");
+
+        assertThat(users.size(), equalTo(0));
+    }
+
+    @Test
+    void findNearbySetsDistance()
+    {
+        GeoCellIndex index = populatedIndex();
+
+        List<UserLocation> users = index.findNearby(new UserLocation.Position(22.623806, 88.414486), 50, "x");
+
+        Assertions.assertThat(users).extracting("id").containsOnly("abc123", "Kolkata");
+        assertThat(Math.abs(users.get(0).getDistance() -
+                                    Util.haversine(22.623806, 88.414486, 22.507449, 88.34)),
+                   lessThan(0.001));
+    }
+
+    @Test
+    void findNearbyAcrossAntimeridian()
+    {
+        GeoCellIndex index = new GeoCellIndex();
+        index.put(new UserLocation("east", new UserLocation.Position(-17.0, 179.95), 50));
+        index.put(new UserLocation("west", new UserLocation.Position(-17.0, -179.95), 50));
+
+        List<UserLocation> users = index.findNearby(new UserLocation.Position(-17.0, 179.95), 50, "east");
+
+        Assertions.assertThat(users).extracting("id").containsExactly("west");
+    }
+
+    @Test
+    void putMovesExistingLocation()
+    {
+        GeoCellIndex index = populatedIndex();
+        index.put(new UserLocation("Kolkata", new UserLocation.Position(10.5837057, 70.2258241), 2100));
+
+        List<UserLocation> users = index.findNearby(new UserLocation.Position(22.507449, 88.34), 50, "abc123");
+
+        assertThat(index.size(), equalTo(4));
+        assertThat(users.size(), equalTo(0));
+        assertThat(index.get("Kolkata").getPosition().getLatitude(), equalTo(10.5837057));
+    }
+
+    @Test
+    void removeDropsLocation()
+    {
+        GeoCellIndex index = populatedIndex();
+        index.remove("Kolkata");
+
+        assertFalse(index.contains("Kolkata"));
+        assertNull(index.get("Kolkata"));
+        Assertions.assertThat(index.findNearby(new UserLocation.Position(22.507449, 88.34), 2100, "abc123"))
+                .extracting("id").containsExactly("Delhi");
+    }
+
+    @Test
+    void returnedLocationsAreCopies()
+    {
+        GeoCellIndex index = populatedIndex();
+        index.get("Kolkata").setRadius(1);
+
+        assertThat(index.get("Kolkata").getRadius(), equalTo(2100.0));
+    }
+
+    @Test
+    void findNearbyFindsFarCircleCoveringPoint()
+    {
+        GeoCellIndex index = new GeoCellIndex();
+        index.put(new UserLocation("Delhi", new UserLocation.Position(28.2258241, 77.5837057), 2100));
+        index.put(new UserLocation("Mumbai", new UserLocation.Position(19.416575, 72.807543), 1100));
+
+        List<UserLocation> users = index.findNearby(new UserLocation.Position(22.623806, 88.414486), 2100, "x");
+
+        Assertions.assertThat(users).extracting("id").containsExactly("Delhi");
+    }
+
+    @Test
+    void findNearbyRespectsSearchRadius()
+    {
+        GeoCellIndex index = new GeoCellIndex();
+        index.put(new UserLocation("Delhi", new UserLocation.Position(28.2258241, 77.5837057), 2100));
+
+        List<UserLocation> users = index.findNearby(new UserLocation.Position(22.623806, 88.414486), 100, "x");
+
+        assertThat(users.size(), equalTo(0));
+    }
+
+    @Test
+    void findNearbyExcludesOwner()
+    {
+        GeoCellIndex index = new GeoCellIndex();
+        index.put("p1", "abc123", new UserLocation.Position(22.507449, 88.34), 10);
+        index.put("p2", "xyz", new UserLocation.Position(22.507449, 88.34), 10);
+
+        List<UserLocation> posts = index.findNearby(new UserLocation.Position(22.507449, 88.34), 10, "abc123");
+
+        Assertions.assertThat(posts).extracting("id").containsExactly("p2");
+    }
+
+    @Test
+    void findNearbyNearPole()
+    {
+        GeoCellIndex index = new GeoCellIndex();
+        index.put(new UserLocation("north", new UserLocation.Position(89.9, 10), 100));
+
+        List<UserLocation> users = index.findNearby(new UserLocation.Position(89.95, -170), 100, "x");
+
+        Assertions.assertThat(users).extracting("id").containsExactly("north");
+    }
+}
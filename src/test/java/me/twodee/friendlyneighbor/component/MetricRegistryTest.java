@@ -0,0 +1,49 @@
+package me.twodee.friendlyneighbor.component;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+class MetricRegistryTest
+{
+    @Test
+    void countersAccumulate()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        metrics.increment("a");
+        metrics.add("a", 4);
+
+        assertThat(metrics.count("a"), equalTo(5L));
+        assertThat(metrics.snapshot().get("a"), equalTo(5L));
+    }
+
+    @Test
+    void gaugesAreReadOnSnapshot()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        int[] value = { 1 };
+        metrics.gauge("g", () -> value[0]);
+        value[0] = 7;
+
+        assertThat(metrics.snapshot().get("g"), equalTo(7));
+    }
+
+    @Test
+    void timersAreFlattened()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        metrics.record("t", 2_000_000);
+        metrics.record("t", 4_000_000);
+        String result = metrics.time("t", () -> "done");
+
+        Map<String, Number> snapshot = metrics.snapshot();
+        assertThat(result, equalTo("done"));
+        assertThat(snapshot.get("t.count"), equalTo(3L));
+        assertThat(snapshot.get("t.max_ms").doubleValue(), equalTo(4.0));
+        assertThat(snapshot.get("t.mean_ms").doubleValue(), greaterThan(1.0));
+    }
+}
@@ -3,7 +3,11 @@ package me.twodee.friendlyneighbor.component;
 import org.junit.jupiter.api.Test;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class UtilTest
 {
@@ -14,4 +18,85 @@ class UtilTest
         assertThat(Math.abs(Util.haversine(19.416575, 72.807543, 22.623806, 88.414486) - (1657.79)),
                    lessThanOrEqualTo(1.0));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testHaversineWithCosines()
+    {
+        assertThat(Util.haversine(19.416575, 72.807543, Util.cosLatitude(19.416575),
+                                  22.623806, 88.414486, Util.cosLatitude(22.623806)),
+                   equalTo(Util.haversine(19.416575, 72.807543, 22.623806, 88.414486)));
+    }
+
+    @Test
+    void testHaversineAntipodal()
+    {
+        assertThat(Util.haversine(0, 0, 0, 180), closeTo(Math.PI * Util.EARTH_RADIUS_KM, 1e-6));
+    }
+
+    @Test
+    void testEquirectangularWithinBounds()
+    {
+        double haversine = Util.haversine(19.416575, 72.807543, 19.0607, 72.8362);
+        assertThat(Math.abs(Util.equirectangular(19.416575, 72.807543, 19.0607, 72.8362) - haversine) / haversine,
+                   lessThanOrEqualTo(1e-4));
+        haversine = Util.haversine(59.9, 10.7, 61.5, 14.0);
+        assertThat(Math.abs(Util.equirectangular(59.9, 10.7, 61.5, 14.0) - haversine) / haversine,
+                   lessThanOrEqualTo(1e-3));
+    }
+
+    @Test
+    void testEquirectangularAcrossAntimeridian()
+    {
+        assertThat(Util.equirectangular(0, 179.9, 0, -179.9), closeTo(Util.haversine(0, 179.9, 0, -179.9), 1e-6));
+    }
+
+    @Test
+    void testBatchMatchesSingle()
+    {
+        double[] latitudes = { 19.0607, 22.623806, -33.8688 };
+        double[] longitudes = { 72.8362, 88.414486, 151.2093 };
+        double[] cosLatitudes = new double[3];
+        for (int i = 0; i < 3; i++) {
+            cosLatitudes[i] = Util.cosLatitude(latitudes[i]);
+        }
+        double[] distances = new double[3];
+        Util.haversine(19.416575, 72.807543, latitudes, longitudes, cosLatitudes, 3, distances);
+        for (int i = 0; i < 3; i++) {
+            assertThat(distances[i], closeTo(Util.haversine(19.416575, 72.807543, latitudes[i], longitudes[i]), 1e-9));
+        }
+    }
+
+    @Test
+    void testWithin()
+    {
+        double[] latitudes = { 19.0607, 22.623806, 19.2183, 19.42 };
+        double[] longitudes = { 72.8362, 88.414486, 72.9781, 72.81 };
+        double[] cosLatitudes = new double[4];
+        for (int i = 0; i < 4; i++) {
+            cosLatitudes[i] = Util.cosLatitude(latitudes[i]);
+        }
+        int[] hits = new int[4];
+        double[] distances = new double[4];
+
+        int found = Util.within(19.416575, 72.807543, 30, latitudes, longitudes, cosLatitudes, 4, hits, distances);
+
+        assertThat(found, equalTo(2));
+        assertThat(hits[0], equalTo(2));
+        assertThat(hits[1], equalTo(3));
+        assertThat(distances[1], closeTo(Util.haversine(19.416575, 72.807543, 19.42, 72.81), 1e-9));
+    }
+
+    @Test
+    void testBoundingBox()
+    {
+        Util.BoundingBox box = Util.BoundingBox.around(0, 179.95, 20);
+        assertTrue(box.contains(0, -179.95));
+        assertTrue(box.contains(0.1, 179.9));
+        assertFalse(box.contains(0, 179.5));
+        assertFalse(box.contains(0.5, 179.95));
+
+        Util.BoundingBox polar = Util.BoundingBox.around(89.9, 0, 50);
+        assertTrue(polar.contains(89.8, 180));
+        assertFalse(polar.contains(89, 0));
+    }
+}
@@ -1,6 +1,7 @@
 package me.twodee.friendlyneighbor.entity;
 
 import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
@@ -25,4 +26,33 @@ class UserLocationTest
         assertThat(res.getId(), equalTo("id"));
         assertThat(res.getRadius(), equalTo(0.1));
     }
-}
\ No newline at end of file
+
+    @Test
+    void coordinatesWithoutPosition()
+    {
+        UserLocation res = new UserLocation("id", 23.312, 0.2, 0.1);
+        assertThat(res.getLatitude(), equalTo(23.312));
+        assertThat(res.getLongitude(), equalTo(0.2));
+        assertThat(res.getPosition().getLatitude(), equalTo(23.312));
+        assertThat(res.getDistance(), equalTo(0.0));
+    }
+
+    @Test
+    void noPositionUntilCoordinatesAreSet()
+    {
+        UserLocation res = new UserLocation();
+        assertThat(res.hasPosition(), equalTo(false));
+        res.setPosition(new double[]{ 0.2, 23.312 });
+        assertThat(res.hasPosition(), equalTo(true));
+    }
+
+    @Test
+    void distanceIsNotStored()
+    {
+        MongoMappingContext context = new MongoMappingContext();
+        assertThat(context.getRequiredPersistentEntity(UserLocation.class).getPersistentProperty("distance"),
+                   equalTo(null));
+        assertThat(context.getRequiredPersistentEntity(UserLocation.class).getPersistentProperty("radius")
+                           .getFieldName(), equalTo("radius"));
+    }
+}
@@ -0,0 +1,136 @@
+package me.twodee.friendlyneighbor.repository;
+
+import me.twodee.friendlyneighbor.component.MetricRegistry;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.exception.DbFailure;
+import me.twodee.friendlyneighbor.exception.InvalidUser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class CachedLocationRepositoryTest
+{
+    @Mock
+    LocationRepository store;
+
+    private MetricRegistry metrics;
+    private CachedLocationRepository repository;
+
+    @BeforeEach
+    void setUp()
+    {
+        MockitoAnnotations.initMocks(this);
+        metrics = new MetricRegistry();
+        repository = new CachedLocationRepository(store, 100, 60, metrics);
+    }
+
+    @Test
+    void findByIdHitsStoreOnce()
+    {
+        when(store.findById("abc")).thenReturn(new UserLocation("abc", new UserLocation.Position(2, 3), 2.3));
+
+        repository.findById("abc");
+        UserLocation location = repository.findById("abc");
+
+        assertThat(location.getRadius(), equalTo(2.3));
+        verify(store, times(1)).findById("abc");
+        assertThat(metrics.snapshot().get("location.cache.hits"), equalTo(1L));
+        assertThat(metrics.snapshot().get("location.cache.misses"), equalTo(1L));
+    }
+
+    @Test
+    void findAllByIdOnlyAsksStoreForMisses()
+    {
+        UserLocation cached = new UserLocation("abc", new UserLocation.Position(2, 3), 2.3);
+        UserLocation stored = new UserLocation("def", new UserLocation.Position(4, 5), 1.5);
+        when(store.save(cached)).thenReturn(cached);
+        repository.save(cached);
+        when(store.findAllById(Arrays.asList("def", "gone"))).thenReturn(Collections.singletonMap("def", stored));
+
+        Map<String, UserLocation> locations = repository.findAllById(Arrays.asList("abc", "def", "gone"));
+
+        assertThat(locations.size(), equalTo(2));
+        assertThat(locations.get("abc").getRadius(), equalTo(2.3));
+        assertThat(locations.get("def").getRadius(), equalTo(1.5));
+        assertThat(repository.findById("def").getRadius(), equalTo(1.5));
+        verify(store, never()).findById(any());
+    }
+
+    @Test
+    void saveWritesThrough()
+    {
+        UserLocation location = new UserLocation("abc", new UserLocation.Position(2, 3), 2.3);
+        when(store.save(location)).thenReturn(location);
+
+        repository.save(location);
+
+        assertThat(repository.findById("abc").getRadius(), equalTo(2.3));
+        verify(store).save(location);
+        verify(store, never()).findById(any());
+    }
+
+    @Test
+    void deleteInvalidates()
+    {
+        UserLocation location = new UserLocation("abc", new UserLocation.Position(2, 3), 2.3);
+        when(store.save(location)).thenReturn(location);
+        repository.save(location);
+
+        repository.deleteById("abc");
+
+        verify(store).deleteById("abc");
+        assertNull(repository.findById("abc"));
+        verify(store).findById("abc");
+    }
+
+    @Test
+    void cachedLocationsAreCopies()
+    {
+        UserLocation location = new UserLocation("abc", new UserLocation.Position(2, 3), 2.3);
+        when(store.save(location)).thenReturn(location);
+        repository.save(location);
+
+        repository.findById("abc").setRadius(10);
+
+        assertThat(repository.findById("abc").getRadius(), equalTo(2.3));
+    }
+
+    @Test
+    void lookupByIdSkipsStoreExistenceCheck() throws InvalidUser, DbFailure
+    {
+        UserLocation location = new UserLocation("abc", new UserLocation.Position(2, 3), 2.3);
+        when(store.save(location)).thenReturn(location);
+        when(store.getUsersAround(any())).thenReturn(new ArrayList<>());
+        repository.save(location);
+
+        repository.getUsersNearBy("abc");
+        repository.getUsersNearBy(new UserLocation("abc", new UserLocation.Position(5, 5), 1));
+
+        verify(store, times(2)).getUsersAround(any());
+        verify(store, never()).findById(any());
+        verify(store, never()).getUsersNearBy(any(UserLocation.class));
+    }
+
+    @Test
+    void lookupForUnknownUser()
+    {
+        when(store.findById(any())).thenReturn(null);
+
+        assertThrows(InvalidUser.class, () -> repository.getUsersNearBy("nobody"));
+        assertThrows(InvalidUser.class, () -> repository.getUsersNearBy(
+                new UserLocation("nobody", new UserLocation.Position(5, 5), 1)));
+    }
+}
@@ -0,0 +1,146 @@
+package me.twodee.friendlyneighbor.repository;
+
+import me.twodee.friendlyneighbor.component.MetricRegistry;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.exception.DbFailure;
+import me.twodee.friendlyneighbor.exception.InvalidUser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class CoalescingLocationRepositoryTest
+{
+    @Mock
+    LocationRepository store;
+
+    private MetricRegistry metrics;
+    private CoalescingLocationRepository repository;
+
+    @BeforeEach
+    void setUp()
+    {
+        MockitoAnnotations.initMocks(this);
+        metrics = new MetricRegistry();
+        repository = new CoalescingLocationRepository(store, 0.05, 2, metrics);
+        when(store.saveAll(any())).thenReturn(Collections.emptyMap());
+    }
+
+    @Test
+    void smallMovesAreDropped()
+    {
+        when(store.findById("abc")).thenReturn(new UserLocation("abc", new UserLocation.Position(10, 10), 5));
+
+        repository.save(new UserLocation("abc", new UserLocation.Position(10.0001, 10.0001), 5));
+        repository.flush();
+
+        verify(store, never()).saveAll(any());
+        assertThat(metrics.count("location.coalesce.dropped"), equalTo(1L));
+    }
+
+    @Test
+    void radiusChangeIsKept()
+    {
+        when(store.findById("abc")).thenReturn(new UserLocation("abc", new UserLocation.Position(10, 10), 5));
+
+        repository.save(new UserLocation("abc", new UserLocation.Position(10, 10), 6));
+        repository.flush();
+
+        verify(store).saveAll(argThat(batch -> batch.size() == 1 && batch.get(0).getRadius() == 6));
+    }
+
+    @Test
+    void latestPendingLocationWins()
+    {
+        repository.save(new UserLocation("abc", new UserLocation.Position(10, 10), 5));
+        repository.save(new UserLocation("abc", new UserLocation.Position(11, 11), 5));
+        repository.save(new UserLocation("abc", new UserLocation.Position(11.0001, 11), 5));
+
+        assertThat(repository.findById("abc").getPosition().getLatitude(), equalTo(11.0));
+        repository.flush();
+
+        verify(store, times(1)).saveAll(argThat(batch -> batch.size() == 1
+                && batch.get(0).getPosition().getLatitude() == 11.0));
+        verify(store, times(1)).findById("abc");
+        assertThat(metrics.count("location.coalesce.flushed"), equalTo(1L));
+    }
+
+    @Test
+    void flushWritesInBatches()
+    {
+        for (int i = 0; i < 5; i++) {
+            repository.save(new UserLocation("user" + i, new UserLocation.Position(i, i), 5));
+        }
+        repository.flush();
+
+        verify(store, times(3)).saveAll(any());
+        assertThat(metrics.count("location.coalesce.flushed"), equalTo(5L));
+    }
+
+    @Test
+    void failedWritesAreRetried()
+    {
+        when(store.saveAll(any())).thenReturn(Collections.singletonMap("abc", "failed"))
+                .thenReturn(Collections.emptyMap());
+        repository.save(new UserLocation("abc", new UserLocation.Position(10, 10), 5));
+
+        repository.flush();
+        repository.flush();
+
+        verify(store, times(2)).saveAll(any());
+        assertThat(metrics.count("location.coalesce.flushed"), equalTo(1L));
+    }
+
+    @Test
+    void pendingLocationIsSearchedWith() throws InvalidUser, DbFailure
+    {
+        UserLocation location = new UserLocation("abc", new UserLocation.Position(10, 10), 5);
+        List<UserLocation> around = Collections.singletonList(
+                new UserLocation("xyz", new UserLocation.Position(10, 10), 5));
+        when(store.getUsersAround(location)).thenReturn(around);
+        repository.save(location);
+
+        assertThat(repository.getUsersNearBy("abc"), equalTo(around));
+        verify(store, never()).getUsersNearBy("abc");
+    }
+
+    @Test
+    void deleteDropsPendingLocation()
+    {
+        repository.save(new UserLocation("abc", new UserLocation.Position(10, 10), 5));
+
+        repository.deleteById("abc");
+        repository.flush();
+
+        verify(store).deleteById("abc");
+        verify(store, never()).saveAll(any());
+    }
+
+    @Test
+    void closeFlushes()
+    {
+        repository.startFlushing(60000);
+        repository.save(new UserLocation("abc", new UserLocation.Position(10, 10), 5));
+
+        repository.close();
+
+        verify(store).saveAll(any());
+    }
+
+    @Test
+    void unknownUserStillThrows() throws InvalidUser, DbFailure
+    {
+        when(store.getUsersNearBy("abc")).thenThrow(InvalidUser.class);
+
+        assertThrows(InvalidUser.class, () -> repository.getUsersNearBy("abc"));
+    }
+}
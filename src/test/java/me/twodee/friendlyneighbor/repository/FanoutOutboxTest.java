@@ -0,0 +1,106 @@
+package me.twodee.friendlyneighbor.repository;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.StreamEntry;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.StreamPendingEntry;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.*;
+
+class FanoutOutboxTest
+{
+    @Mock
+    JedisPool pool;
+    @Mock
+    Jedis jedis;
+    @Mock
+    Pipeline pipeline;
+
+    FanoutOutbox outbox;
+
+    @BeforeEach
+    void setUp()
+    {
+        MockitoAnnotations.initMocks(this);
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.pipelined()).thenReturn(pipeline);
+        outbox = new FanoutOutbox(pool, "TEST");
+    }
+
+    @Test
+    void appendCreatesGroupOnce()
+    {
+        when(jedis.xgroupCreate(eq("TEST.FANOUT_OUTBOX"), eq("fanout"), any(), eq(true)))
+                .thenThrow(new JedisDataException("BUSYGROUP Consumer Group name already exists"));
+
+        outbox.append("p1");
+        outbox.append("p2");
+
+        verify(jedis, times(1)).xgroupCreate(eq("TEST.FANOUT_OUTBOX"), eq("fanout"), any(), eq(true));
+        verify(jedis).xadd("TEST.FANOUT_OUTBOX", StreamEntryID.NEW_ENTRY, Collections.singletonMap("postId", "p1"));
+        verify(jedis).xadd("TEST.FANOUT_OUTBOX", StreamEntryID.NEW_ENTRY, Collections.singletonMap("postId", "p2"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void takeReadsNewEntries()
+    {
+        StreamEntry entry = new StreamEntry(new StreamEntryID(1, 0), Collections.singletonMap("postId", "p1"));
+        when(jedis.xreadGroup(eq("fanout"), eq("c"), eq(10), eq(500L), eq(false), any()))
+                .thenReturn(Collections.singletonList(
+                        new AbstractMap.SimpleImmutableEntry<>("TEST.FANOUT_OUTBOX",
+                                                               Collections.singletonList(entry))));
+
+        List<FanoutOutbox.Entry> entries = outbox.take("c", 10, 500);
+
+        assertThat(entries.size(), equalTo(1));
+        assertThat(entries.get(0).getPostId(), equalTo("p1"));
+        assertThat(entries.get(0).getDeliveries(), equalTo(1L));
+    }
+
+    @Test
+    void reclaimClaimsOnlyIdleEntries()
+    {
+        StreamEntryID idle = new StreamEntryID(1, 0);
+        StreamEntryID busy = new StreamEntryID(2, 0);
+        when(jedis.xpending("TEST.FANOUT_OUTBOX", "fanout", null, null, 10, null)).thenReturn(Arrays.asList(
+                new StreamPendingEntry(idle, "dead", 5000, 2),
+                new StreamPendingEntry(busy, "alive", 10, 1)));
+        when(jedis.xclaim("TEST.FANOUT_OUTBOX", "fanout", "c", 1000, 0, 0, false, idle))
+                .thenReturn(Collections.singletonList(
+                        new StreamEntry(idle, Collections.singletonMap("postId", "p1"))));
+
+        List<FanoutOutbox.Entry> entries = outbox.reclaim("c", 1000, 10);
+
+        assertThat(entries.size(), equalTo(1));
+        assertThat(entries.get(0).getPostId(), equalTo("p1"));
+        assertThat(entries.get(0).getDeliveries(), equalTo(3L));
+    }
+
+    @Test
+    void completeMarksPostAndRemovesEntry()
+    {
+        StreamEntryID id = new StreamEntryID(1, 0);
+
+        outbox.complete(new FanoutOutbox.Entry(id, "p1", 1));
+
+        verify(pipeline).setex(eq("TEST.FANOUT_DONE:p1"), anyInt(), eq("1"));
+        verify(pipeline).xack("TEST.FANOUT_OUTBOX", "fanout", id);
+        verify(pipeline).xdel("TEST.FANOUT_OUTBOX", id);
+        verify(pipeline).sync();
+    }
+}
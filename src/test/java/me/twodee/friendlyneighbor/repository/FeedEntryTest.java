@@ -0,0 +1,76 @@
+package me.twodee.friendlyneighbor.repository;
+
+import me.twodee.friendlyneighbor.entity.Post;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class FeedEntryTest
+{
+    @Test
+    void packedPostReadsBack()
+    {
+        LocalDateTime time = LocalDateTime.of(2020, 3, 1, 10, 15, 30, 123_000_000);
+        Post post = new Post("p1", new UserLocation("user:1", 19.076, 72.8777, 5), time, Post.PostType.OFFERING,
+                             "Lawn mower");
+
+        Post read = FeedEntry.unpack(FeedEntry.pack(post));
+
+        assertThat(read.getId(), equalTo("p1"));
+        assertThat(read.getTime(), equalTo(time));
+        assertThat(read.getType(), equalTo(Post.PostType.OFFERING));
+        assertThat(read.getLocation().getId(), equalTo("user:1"));
+        assertThat(read.getLocation().getLatitude(), equalTo(19.076));
+        assertThat(read.getLocation().getLongitude(), equalTo(72.8777));
+        assertThat(read.getLocation().getRadius(), equalTo(5.0));
+    }
+
+    @Test
+    void postWithoutTypeReadsBack()
+    {
+        Post post = new Post("p1", new UserLocation("u", 1, 2, 3), LocalDateTime.now());
+
+        assertThat(FeedEntry.unpack(FeedEntry.pack(post)).getType(), nullValue());
+    }
+
+    @Test
+    void postWithoutLocationIsPackedAsBareId()
+    {
+        Post post = new Post("p1", null, LocalDateTime.now());
+
+        assertThat(FeedEntry.pack(post), equalTo("p1"));
+        assertThat(FeedEntry.unpack("p1"), nullValue());
+        assertThat(FeedEntry.isPacked("p1"), equalTo(false));
+    }
+
+    @Test
+    void idIsReadFromEitherFormat()
+    {
+        Post post = new Post("p1", new UserLocation("u", 1, 2, 3), LocalDateTime.now());
+
+        assertThat(FeedEntry.idOf(FeedEntry.pack(post)), equalTo("p1"));
+        assertThat(FeedEntry.idOf("p1"), equalTo("p1"));
+    }
+
+    @Test
+    void unknownVersionIsNotRead()
+    {
+        assertThat(FeedEntry.unpack("p1:9:0:R:1:2:3:u"), nullValue());
+        assertThat(FeedEntry.unpack("p1:1:x:R:1:2:3:u"), nullValue());
+    }
+
+    @Test
+    void timeIsReadWithoutUnpacking()
+    {
+        Post post = new Post("p1", new UserLocation("u", 1, 2, 3), LocalDateTime.now());
+
+        assertThat(FeedEntry.timeOf(FeedEntry.pack(post)), equalTo(FeedEntry.timeOf(post)));
+        assertThat(FeedEntry.timeOf("p1"), equalTo(-1L));
+        assertThat(FeedEntry.timeOf("p1:9:0:R:1:2:3:u"), equalTo(-1L));
+    }
+}
@@ -1,6 +1,10 @@
 package me.twodee.friendlyneighbor.repository;
 
 import me.twodee.friendlyneighbor.component.FnCoreConfig;
+import me.twodee.friendlyneighbor.component.GeoCellIndex;
+import me.twodee.friendlyneighbor.component.MetricRegistry;
+import me.twodee.friendlyneighbor.dto.PostDelta;
+import me.twodee.friendlyneighbor.dto.PostPage;
 import me.twodee.friendlyneighbor.entity.Post;
 import me.twodee.friendlyneighbor.entity.UserLocation;
 import org.assertj.core.api.Assertions;
@@ -9,16 +13,37 @@ import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexInfo;
 import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import redis.clients.jedis.GeoRadiusResponse;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.GeoRadiusParam;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.mockito.Mockito.*;
 
 class HybridPostRepositoryTest {
@@ -31,10 +56,15 @@ class HybridPostRepositoryTest {
 
     @Mock
     Jedis jedis;
+    @Mock
+    Pipeline pipeline;
 
     @BeforeEach
     void setUp() {
         MockitoAnnotations.initMocks(this);
+        when(jedis.pipelined()).thenReturn(pipeline);
+        Response<Double> alive = response(null);
+        when(pipeline.zscore(anyString(), anyString())).thenReturn(alive);
     }
 
     @Test
@@ -53,6 +83,14 @@ class HybridPostRepositoryTest {
         assertThat(result, equalTo(post));
     }
 
+    private static <T> Response<T> response(T value)
+    {
+        @SuppressWarnings("unchecked")
+        Response<T> response = mock(Response.class);
+        when(response.get()).thenReturn(value);
+        return response;
+    }
+
     @Test
     void successfulForwardToUsersOutOfCache()
     {
@@ -63,18 +101,21 @@ class HybridPostRepositoryTest {
         Post post = new Post();
         post.setId("a");
         when(pool.getResource()).thenReturn(jedis);
-        when(jedis.exists(anyString())).thenReturn(false);
+        when(jedis.pipelined()).thenReturn(pipeline);
+        Response<Long> missing = response(0L);
+        when(pipeline.lpushx(anyString(), anyString())).thenReturn(missing);
 
         List<UserLocation> locationList = new ArrayList<>();
 
-        locationList.add(new UserLocation());
-        locationList.add(new UserLocation());
+        locationList.add(new UserLocation("x", 0, 0, 0));
+        locationList.add(new UserLocation("y", 0, 0, 0));
 
         HybridPostRepository repository = new HybridPostRepository(template, pool, config);
         repository.forwardToUsers(locationList, post);
 
-        verify(jedis, times(2)).lpush(anyString(), anyString());
-        verify(jedis, times(2)).expire(anyString(), anyInt());
+        verify(pipeline, times(2)).lpush(anyString(), anyString());
+        verify(pipeline, times(2)).expire(anyString(), anyInt());
+        verify(pool, times(1)).getResource();
     }
 
     @Test
@@ -87,18 +128,21 @@ class HybridPostRepositoryTest {
         Post post = new Post();
         post.setId("a");
         when(pool.getResource()).thenReturn(jedis);
-        when(jedis.exists(anyString())).thenReturn(true);
+        when(jedis.pipelined()).thenReturn(pipeline);
+        Response<Long> appended = response(3L);
+        when(pipeline.lpushx(anyString(), anyString())).thenReturn(appended);
 
         List<UserLocation> locationList = new ArrayList<>();
 
-        locationList.add(new UserLocation());
-        locationList.add(new UserLocation());
+        locationList.add(new UserLocation("x", 0, 0, 0));
+        locationList.add(new UserLocation("y", 0, 0, 0));
 
         HybridPostRepository repository = new HybridPostRepository(template, pool, config);
         repository.forwardToUsers(locationList, post);
 
-        verify(jedis, times(2)).lpushx(anyString(), anyString());
-        verify(jedis, times(0)).expire(anyString(), anyInt());
+        verify(pipeline, times(2)).lpushx(anyString(), anyString());
+        verify(pipeline, times(0)).expire(anyString(), anyInt());
+        verify(jedis, times(1)).pipelined();
     }
 
     @Test
@@ -111,8 +155,11 @@ class HybridPostRepositoryTest {
         Post post = new Post();
         post.setId("a");
         when(pool.getResource()).thenReturn(jedis);
-        when(jedis.exists("FN_CORE.FEED:a")).thenReturn(true);
-        when(jedis.exists("FN_CORE.FEED:b")).thenReturn(false);
+        when(jedis.pipelined()).thenReturn(pipeline);
+        Response<Long> appended = response(1L);
+        Response<Long> missing = response(0L);
+        when(pipeline.lpushx("FN_CORE.FEED:a", "a")).thenReturn(appended);
+        when(pipeline.lpushx("FN_CORE.FEED:b", "a")).thenReturn(missing);
 
         List<UserLocation> locationList = new ArrayList<>();
 
@@ -123,11 +170,60 @@ class HybridPostRepositoryTest {
         repository.forwardToUsers(locationList, post);
 
         // not in cache
-        verify(jedis, times(1)).lpush("FN_CORE.FEED:b", "a");
-        verify(jedis, times(1)).expire(anyString(), anyInt());
+        verify(pipeline, times(1)).lpush("FN_CORE.FEED:b", "a");
+        verify(pipeline, times(1)).expire(anyString(), anyInt());
 
         // in cache
-        verify(jedis, times(1)).lpushx("FN_CORE.FEED:a", "a");
+        verify(pipeline, never()).lpush(eq("FN_CORE.FEED:a"), anyString());
+    }
+
+    @Test
+    void forwardToUsersReclaimsOccupiedKey()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        Post post = new Post();
+        post.setId("a");
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.pipelined()).thenReturn(pipeline);
+        Response<Long> wrongType = mock(Response.class);
+        when(wrongType.get()).thenThrow(new JedisDataException("WRONGTYPE"));
+        when(pipeline.lpushx(anyString(), anyString())).thenReturn(wrongType);
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.forwardToUsers(Collections.singletonList(new UserLocation("b", 0, 0, 0)), post);
+
+        verify(pipeline).del("FN_CORE.FEED:b");
+        verify(pipeline).lpush("FN_CORE.FEED:b", "a");
+    }
+
+    @Test
+    void forwardToUsersPipelinesInBatches()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedFanoutBatchSize(2)
+                .build();
+        Post post = new Post();
+        post.setId("a");
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.pipelined()).thenReturn(pipeline);
+        Response<Long> appended = response(1L);
+        when(pipeline.lpushx(anyString(), anyString())).thenReturn(appended);
+
+        List<UserLocation> locationList = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            locationList.add(new UserLocation("u" + i, 0, 0, 0));
+        }
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.forwardToUsers(locationList, post);
+
+        verify(pipeline, times(5)).lpushx(anyString(), anyString());
+        verify(pipeline, times(3)).sync();
     }
 
     @Test
@@ -141,8 +237,8 @@ class HybridPostRepositoryTest {
         when(pool.getResource()).thenReturn(jedis);
         when(jedis.exists(anyString())).thenReturn(true);
         List<String> postIds = new ArrayList<>();
-        postIds.add("");
-        postIds.add("");
+        postIds.add("a");
+        postIds.add("b");
         List<Post> posts = new ArrayList<>();
         posts.add(new Post("a", new UserLocation("x", new UserLocation.Position(0, 0), 0), LocalDateTime.now()));
         posts.add(new Post("b", new UserLocation("x", new UserLocation.Position(0, 0), 0), LocalDateTime.now()));
@@ -243,4 +339,1103 @@ class HybridPostRepositoryTest {
                          Post.PostType.OFFERING, "Hello world"));
         assertThat(res.size(), equalTo(1));
     }
-}
\ No newline at end of file
+
+    @Test
+    void postWithoutCoordinatesIsSavedWithoutIndexing()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FNCORE")
+                .feedCacheExpiry(20)
+                .build();
+        UserLocation location = new UserLocation();
+        location.setId("x");
+        Post post = new Post("a", location, LocalDateTime.now());
+        when(template.save(any(Post.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config, new GeoCellIndex());
+
+        assertThat(repository.save(post).getId(), equalTo("a"));
+    }
+
+    @Test
+    void findAllForUserFromPostIndexOnlyFetchesVisiblePosts()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FNCORE")
+                .feedCacheExpiry(20)
+                .build();
+        Post near = new Post("a", new UserLocation("x", new UserLocation.Position(22.51, 88.34), 10),
+                             LocalDateTime.now());
+        Post shortSighted = new Post("b", new UserLocation("y", new UserLocation.Position(22.6, 88.34), 1),
+                                     LocalDateTime.now());
+        Post own = new Post("c", new UserLocation("test", new UserLocation.Position(22.51, 88.34), 10),
+                            LocalDateTime.now());
+        when(template.save(any(Post.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config, new GeoCellIndex());
+        repository.save(near);
+        repository.save(shortSighted);
+        repository.save(own);
+
+        List<Post> fetched = new ArrayList<>();
+        fetched.add(near);
+        when(template.find(any(Query.class), eq(Post.class))).thenReturn(fetched);
+
+        List<Post> result = repository.findAllForUser(
+                new UserLocation("test", new UserLocation.Position(22.507449, 88.34), 20));
+
+        Assertions.assertThat(result).extracting("id").containsExactly("a");
+        verify(template).find(argThat((Query query) -> query.getQueryObject().toJson().contains("\"a\"")
+                && !query.getQueryObject().toJson().contains("\"b\"")
+                && !query.getQueryObject().toJson().contains("\"c\"")), eq(Post.class));
+        verify(template, never()).query(Post.class);
+    }
+
+    @Test
+    void deleteRemovesFromPostIndex()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FNCORE")
+                .feedCacheExpiry(20)
+                .build();
+        GeoCellIndex index = new GeoCellIndex();
+        when(template.save(any(Post.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        when(pool.getResource()).thenReturn(jedis);
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config, index);
+        repository.save(new Post("a", new UserLocation("x", new UserLocation.Position(22.51, 88.34), 10),
+                                 LocalDateTime.now()));
+
+        repository.deleteById("a");
+
+        assertThat(index.contains("a"), equalTo(false));
+    }
+
+    @Test
+    void deleteTombstonesThePost()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.deleteById("a");
+
+        verify(template).remove(any(Query.class), eq(Post.class));
+        verify(pipeline).zadd(eq("FN_CORE.FEED.TOMBSTONES"), anyDouble(), eq("a"));
+        verify(pipeline).zrem("FN_CORE.FEED.PULLED", "a");
+        verify(pipeline).sync();
+    }
+
+    @Test
+    void findAllDropsDeletedPostsFromTheFeed()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists(anyString())).thenReturn(true);
+        when(jedis.lrange(anyString(), anyLong(), anyLong())).thenReturn(Arrays.asList("a", "deleted"));
+        Response<Double> deletedAt = response(1.0);
+        when(pipeline.zscore("FN_CORE.FEED.TOMBSTONES", "deleted")).thenReturn(deletedAt);
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>(Collections.singletonList(
+                new Post("a", new UserLocation("x", 0, 0, 10), LocalDateTime.now()))));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.findAllForUser(new UserLocation("test", 0, 0, 10), new ArrayList<>());
+
+        verify(pipeline).lrem("FN_CORE.FEED:test", 0, "deleted");
+        verify(pipeline, never()).lrem("FN_CORE.FEED:test", 0, "a");
+        verify(template).find(argThat((Query query) -> query.getQueryObject().toJson().contains("\"a\"")
+                && !query.getQueryObject().toJson().contains("deleted")), eq(Post.class));
+    }
+
+    @Test
+    void publishForPullStoresThePostOnce()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.pipelined()).thenReturn(pipeline);
+        Response<Set<String>> expired = response(new HashSet<>(Collections.singletonList("old")));
+        when(pipeline.zrangeByScore(anyString(), anyDouble(), anyDouble())).thenReturn(expired);
+        Post post = new Post("p1", new UserLocation("x", 10, 20, 5), LocalDateTime.now());
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.publishForPull(post);
+
+        verify(pipeline).geoadd("FN_CORE.FEED.PULLED", 20, 10, "p1");
+        verify(pipeline).hset("FN_CORE.FEED.PULLED_RADIUS", "p1", "5.0");
+        verify(pipeline).zrem("FN_CORE.FEED.PULLED", "old");
+        verify(pipeline, never()).lpush(anyString(), anyString());
+    }
+
+    @Test
+    void pulledPostsAreMergedIntoTheFeed()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists(anyString())).thenReturn(true);
+        when(jedis.lrange(anyString(), anyLong(), anyLong())).thenReturn(Collections.singletonList("pushed"));
+        GeoRadiusResponse near = new GeoRadiusResponse("near".getBytes());
+        near.setDistance(1);
+        GeoRadiusResponse far = new GeoRadiusResponse("far".getBytes());
+        far.setDistance(8);
+        when(jedis.georadius(eq("FN_CORE.FEED.PULLED"), anyDouble(), anyDouble(), anyDouble(), any(),
+                             any(GeoRadiusParam.class))).thenReturn(Arrays.asList(near, far));
+        when(jedis.hmget("FN_CORE.FEED.PULLED_RADIUS", "near", "far")).thenReturn(Arrays.asList("5.0", "5.0"));
+        LocalDateTime now = LocalDateTime.now();
+        Post pushed = new Post("pushed", new UserLocation("x", 0, 0, 10), now.minusHours(1));
+        Post pulled = new Post("near", new UserLocation("y", 0, 0, 5), now);
+        when(template.find(any(), any(Class.class)))
+                .thenReturn(new ArrayList<>(Collections.singletonList(pushed)))
+                .thenReturn(new ArrayList<>(Collections.singletonList(pulled)));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        List<Post> result = repository.findAllForUser(new UserLocation("test", 0, 0, 10), new ArrayList<>());
+
+        Assertions.assertThat(result).extracting("id").containsExactly("near", "pushed");
+    }
+
+    @Test
+    void forwardToUsersTrimsTheFeed()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedTimelineMaxLength(100)
+                .build();
+        Post post = new Post();
+        post.setId("a");
+        when(pool.getResource()).thenReturn(jedis);
+        Response<Long> appended = response(1L);
+        when(pipeline.lpushx(anyString(), anyString())).thenReturn(appended);
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.forwardToUsers(Collections.singletonList(new UserLocation("b", 0, 0, 0)), post);
+
+        verify(pipeline).ltrim("FN_CORE.FEED:b", 0, 99);
+    }
+
+    @Test
+    void sortedSetFanoutScoresAndTrimsByTime()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedTimelineMaxLength(100)
+                .postRetention(30)
+                .feedTimelineEncoding("sorted_set")
+                .build();
+        Post post = new Post("p1", new UserLocation("x", 0, 0, 10), LocalDateTime.now());
+        String packed = FeedEntry.pack(post);
+        when(pool.getResource()).thenReturn(jedis);
+        Response<Long> added = response(1L);
+        when(pipeline.zadd(anyString(), anyDouble(), anyString())).thenReturn(added);
+        Response<Long> created = response(-1L);
+        Response<Long> expiring = response(100L);
+        when(pipeline.ttl("FN_CORE.FEED:a")).thenReturn(created);
+        when(pipeline.ttl("FN_CORE.FEED:b")).thenReturn(expiring);
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.forwardToUsers(Arrays.asList(new UserLocation("a", 0, 0, 10), new UserLocation("b", 0, 0, 10)),
+                                  post);
+
+        verify(pipeline).zadd("FN_CORE.FEED:a", FeedEntry.timeOf(post), packed);
+        verify(pipeline).zremrangeByRank("FN_CORE.FEED:a", 0, -101);
+        verify(pipeline).zremrangeByScore(eq("FN_CORE.FEED:a"), eq("-inf"), startsWith("("));
+        verify(pipeline).expire("FN_CORE.FEED:a", (int) TimeUnit.DAYS.toSeconds(20));
+        verify(pipeline, never()).expire(eq("FN_CORE.FEED:b"), anyInt());
+        verify(pipeline, never()).lpushx(anyString(), anyString());
+    }
+
+    @Test
+    void sortedSetFanoutAndRebuildScoreEntriesAlike()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedTimelineEncoding("sorted_set")
+                .build();
+        LocalDateTime now = LocalDateTime.now();
+        Post rebuilt = new Post("a", new UserLocation("x", 0, 0, 10), now.minusHours(1));
+        // Fanned out after the rebuild although it's the older post
+        Post late = new Post("b", new UserLocation("x", 0, 0, 10), now.minusHours(2));
+        Map<String, Double> rebuiltScores = Collections.singletonMap(FeedEntry.pack(rebuilt),
+                                                                     (double) FeedEntry.timeOf(rebuilt));
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.zcard(anyString())).thenReturn(0L);
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>(Collections.singletonList(rebuilt)));
+        Response<Long> added = response(1L);
+        when(pipeline.zadd(anyString(), anyDouble(), anyString())).thenReturn(added);
+        Response<Long> expiring = response(100L);
+        when(pipeline.ttl("FN_CORE.FEED:test")).thenReturn(expiring);
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.findPageForUser(new UserLocation("test", 0, 0, 10),
+                                   () -> Collections.singletonList(new UserLocation("x", 0, 0, 10)), 10, "");
+        repository.forwardToUsers(Collections.singletonList(new UserLocation("test", 0, 0, 10)), late);
+
+        verify(pipeline).zadd("FN_CORE.FEED:test", rebuiltScores);
+        verify(pipeline).zadd("FN_CORE.FEED:test", FeedEntry.timeOf(late), FeedEntry.pack(late));
+        // The later push still sorts below the rebuilt entry, by its post time
+        assertThat(FeedEntry.timeOf(late) < rebuiltScores.values().iterator().next(), equalTo(true));
+    }
+
+    @Test
+    void sortedSetTimelineReadsOnlyNewerEntries()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedTimelineEncoding("sorted_set")
+                .build();
+        LocalDateTime since = LocalDateTime.now().minusDays(1);
+        String newer = FeedEntry.pack(new Post("p1", new UserLocation("x", 0, 0, 10), since.plusHours(1)));
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists("FN_CORE.FEED:test")).thenReturn(true);
+        when(jedis.zrevrangeByScore("FN_CORE.FEED:test", "+inf",
+                                    "(" + since.toInstant(ZoneOffset.UTC).toEpochMilli()))
+                .thenReturn(Collections.singleton(newer));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        List<Post> result = repository.findTimelineSince(new UserLocation("test", 0, 0, 10), ArrayList::new,
+                                                         since);
+
+        Assertions.assertThat(result).extracting("id").containsExactly("p1");
+        verify(jedis, never()).lrange(anyString(), anyLong(), anyLong());
+        verify(jedis, never()).zrevrange(anyString(), anyLong(), anyLong());
+        verify(template, never()).find(any(), any(Class.class));
+    }
+
+    @Test
+    void listTimelineSinceFiltersTheWholeFeed()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        LocalDateTime since = LocalDateTime.now().minusDays(1);
+        String newer = FeedEntry.pack(new Post("p1", new UserLocation("x", 0, 0, 10), since.plusHours(1)));
+        String older = FeedEntry.pack(new Post("p2", new UserLocation("x", 0, 0, 10), since.minusHours(1)));
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists("FN_CORE.FEED:test")).thenReturn(true);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, -1)).thenReturn(Arrays.asList(newer, older));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        List<Post> result = repository.findTimelineSince(new UserLocation("test", 0, 0, 10), ArrayList::new,
+                                                         since);
+
+        Assertions.assertThat(result).extracting("id").containsExactly("p1");
+    }
+
+    @Test
+    void deltaWithoutTokenReturnsWholeFeed()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        LocalDateTime now = LocalDateTime.now();
+        String first = FeedEntry.pack(new Post("p1", new UserLocation("x", 0, 0, 10), now));
+        String second = FeedEntry.pack(new Post("p2", new UserLocation("x", 0, 0, 10), now.minusDays(2)));
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists("FN_CORE.FEED:test")).thenReturn(true);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, -1)).thenReturn(Arrays.asList(first, second));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostDelta delta = repository.findDeltaForUser(new UserLocation("test", 1, 2, 10), ArrayList::new, "");
+
+        assertThat(delta.isReset(), equalTo(true));
+        Assertions.assertThat(delta.getPosts()).extracting("id").containsExactly("p1", "p2");
+        Assertions.assertThat(delta.getRemoved()).isEmpty();
+        assertThat(PostDelta.Token.decode(delta.getSyncToken()).getArea(),
+                   equalTo(PostDelta.Token.areaOf(1, 2, 10)));
+        verify(jedis, never()).zrangeByScore(anyString(), anyString(), anyString());
+    }
+
+    @Test
+    void deltaSinceTokenReturnsPostsPushedOnTopOfAnchorAndRemovedIds()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedSyncOverlap(1000)
+                .build();
+        LocalDateTime now = LocalDateTime.now();
+        // Pushed after the last sync although its post is older than the anchor
+        String late = FeedEntry.pack(new Post("p1", new UserLocation("x", 0, 0, 10), now.minusHours(2)));
+        String anchor = FeedEntry.pack(new Post("p2", new UserLocation("x", 0, 0, 10), now.minusHours(1)));
+        long issuedAt = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10);
+        String token = new PostDelta.Token(issuedAt, PostDelta.Token.areaOf(1, 2, 10), "p2").encode();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists("FN_CORE.FEED:test")).thenReturn(true);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, 63)).thenReturn(Arrays.asList(late, anchor));
+        when(jedis.lrange("FN_CORE.FEED:test", -16, -1)).thenReturn(Arrays.asList(late, anchor));
+        when(jedis.zrangeByScore("FN_CORE.FEED.TOMBSTONES", "(" + (issuedAt - 1000), "+inf"))
+                .thenReturn(Collections.singleton("gone"));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostDelta delta = repository.findDeltaForUser(new UserLocation("test", 1, 2, 10), ArrayList::new, token);
+
+        assertThat(delta.isReset(), equalTo(false));
+        Assertions.assertThat(delta.getPosts()).extracting("id").containsExactly("p1");
+        Assertions.assertThat(delta.getRemoved()).containsExactly("gone");
+        assertThat(delta.getHorizon(), equalTo("p2"));
+        PostDelta.Token next = PostDelta.Token.decode(delta.getSyncToken());
+        assertThat(next.getIssuedAt() > issuedAt, equalTo(true));
+        assertThat(next.getAnchor(), equalTo("p1"));
+        Assertions.assertThat(new String(Base64.getUrlDecoder().decode(delta.getSyncToken()), StandardCharsets.UTF_8))
+                .doesNotContain(late);
+    }
+
+    @Test
+    void deltaWhoseAnchorLeftTheFeedReturnsWholeFeed()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        String post = FeedEntry.pack(new Post("p1", new UserLocation("x", 0, 0, 10), LocalDateTime.now()));
+        String token = new PostDelta.Token(System.currentTimeMillis(), PostDelta.Token.areaOf(1, 2, 10), "trimmed")
+                .encode();
+        when(jedis.lrange("FN_CORE.FEED:test", 0, 63)).thenReturn(Collections.singletonList(post));
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists("FN_CORE.FEED:test")).thenReturn(true);
+        when(jedis.lindex("FN_CORE.FEED:test", 0)).thenReturn(post);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, -1)).thenReturn(Collections.singletonList(post));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostDelta delta = repository.findDeltaForUser(new UserLocation("test", 1, 2, 10), ArrayList::new, token);
+
+        assertThat(delta.isReset(), equalTo(true));
+        Assertions.assertThat(delta.getPosts()).extracting("id").containsExactly("p1");
+        assertThat(PostDelta.Token.decode(delta.getSyncToken()).getAnchor(), equalTo("p1"));
+    }
+
+    @Test
+    void sortedSetDeltaReachesBackOverOutboxRetries()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedSyncOverlap(1000)
+                .feedFanoutAsync(true)
+                .feedOutboxRetryAfter(30000)
+                .feedOutboxMaxAttempts(5)
+                .feedTimelineEncoding("sorted_set")
+                .build();
+        String late = FeedEntry.pack(new Post("p1", new UserLocation("x", 0, 0, 10),
+                                              LocalDateTime.now().minusHours(2)));
+        long issuedAt = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10);
+        String token = new PostDelta.Token(issuedAt, PostDelta.Token.areaOf(1, 2, 10)).encode();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists("FN_CORE.FEED:test")).thenReturn(true);
+        when(jedis.zrevrangeByScore("FN_CORE.FEED:test", "+inf",
+                                    "(" + FeedEntry.packedTime(issuedAt - 1000 - 150000)))
+                .thenReturn(Collections.singleton(late));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostDelta delta = repository.findDeltaForUser(new UserLocation("test", 1, 2, 10), ArrayList::new, token);
+
+        assertThat(delta.isReset(), equalTo(false));
+        Assertions.assertThat(delta.getPosts()).extracting("id").containsExactly("p1");
+    }
+
+    @Test
+    void deltaHorizonSkipsExpiredTailAndReportsIt()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .postRetention(30)
+                .build();
+        LocalDateTime now = LocalDateTime.now();
+        String anchor = FeedEntry.pack(new Post("p1", new UserLocation("x", 0, 0, 10), now.minusDays(1)));
+        String expired = FeedEntry.pack(new Post("p2", new UserLocation("x", 0, 0, 10), now.minusDays(40)));
+        String token = new PostDelta.Token(System.currentTimeMillis(), PostDelta.Token.areaOf(1, 2, 10), "p1")
+                .encode();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists("FN_CORE.FEED:test")).thenReturn(true);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, 63)).thenReturn(Arrays.asList(anchor, expired));
+        when(jedis.lrange("FN_CORE.FEED:test", -16, -1)).thenReturn(Arrays.asList(anchor, expired));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostDelta delta = repository.findDeltaForUser(new UserLocation("test", 1, 2, 10), ArrayList::new, token);
+
+        Assertions.assertThat(delta.getPosts()).isEmpty();
+        Assertions.assertThat(delta.getRemoved()).containsExactly("p2");
+        assertThat(delta.getHorizon(), equalTo("p1"));
+        verify(pipeline).lrem("FN_CORE.FEED:test", 0, expired);
+    }
+
+    @Test
+    void deltaAfterMoveReturnsWholeFeed()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        String post = FeedEntry.pack(new Post("p1", new UserLocation("x", 0, 0, 10),
+                                              LocalDateTime.now().minusDays(2)));
+        String token = new PostDelta.Token(System.currentTimeMillis(), PostDelta.Token.areaOf(1, 2, 10)).encode();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists("FN_CORE.FEED:test")).thenReturn(true);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, -1)).thenReturn(Collections.singletonList(post));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostDelta delta = repository.findDeltaForUser(new UserLocation("test", 1, 2, 20), ArrayList::new, token);
+
+        assertThat(delta.isReset(), equalTo(true));
+        Assertions.assertThat(delta.getPosts()).extracting("id").containsExactly("p1");
+    }
+
+    @Test
+    void sortedSetPageReadsByRank()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedTimelineEncoding("sorted_set")
+                .build();
+        LocalDateTime now = LocalDateTime.now();
+        String first = FeedEntry.pack(new Post("a", new UserLocation("x", 0, 0, 10), now));
+        String second = FeedEntry.pack(new Post("b", new UserLocation("x", 0, 0, 10), now.minusHours(1)));
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.zcard("FN_CORE.FEED:test")).thenReturn(5L);
+        when(jedis.zrevrange("FN_CORE.FEED:test", 0, 1)).thenReturn(new LinkedHashSet<>(Arrays.asList(first,
+                                                                                                       second)));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostPage page = repository.findPageForUser(new UserLocation("test", 0, 0, 10), ArrayList::new, 2, "");
+
+        Assertions.assertThat(page.getPosts()).extracting("id").containsExactly("a", "b");
+        assertThat(PostPage.Cursor.decode(page.getNextCursor()).startIn(5), equalTo(2L));
+        verify(jedis, never()).llen(anyString());
+    }
+
+    @Test
+    void timelineEncodingByName()
+    {
+        assertThat(HybridPostRepository.TimelineEncoding.from("sorted_set"),
+                   equalTo(HybridPostRepository.TimelineEncoding.SORTED_SET));
+        assertThat(HybridPostRepository.TimelineEncoding.from("nonsense"),
+                   equalTo(HybridPostRepository.TimelineEncoding.LIST));
+        assertThat(HybridPostRepository.TimelineEncoding.from(null),
+                   equalTo(HybridPostRepository.TimelineEncoding.LIST));
+    }
+
+    @Test
+    void findPageReadsOnlyThePage()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.llen("FN_CORE.FEED:test")).thenReturn(5L);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, 1)).thenReturn(Arrays.asList("a", "b"));
+        List<Post> posts = new ArrayList<>();
+        posts.add(new Post("a", new UserLocation("x", 0, 0, 10), LocalDateTime.now()));
+        posts.add(new Post("b", new UserLocation("x", 0, 0, 10), LocalDateTime.now()));
+        when(template.find(any(), any(Class.class))).thenReturn(posts);
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostPage page = repository.findPageForUser(new UserLocation("test", 0, 0, 10), ArrayList::new, 2, "");
+
+        Assertions.assertThat(page.getPosts()).extracting("id").containsExactly("a", "b");
+        assertThat(PostPage.Cursor.decode(page.getNextCursor()).startIn(5), equalTo(2L));
+    }
+
+    @Test
+    void findPageCursorAccountsForDroppedPosts()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.llen("FN_CORE.FEED:test")).thenReturn(5L);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, 1)).thenReturn(Arrays.asList("a", "deleted"));
+        Response<Double> deletedAt = response(1.0);
+        when(pipeline.zscore("FN_CORE.FEED.TOMBSTONES", "deleted")).thenReturn(deletedAt);
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>());
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostPage page = repository.findPageForUser(new UserLocation("test", 0, 0, 10), ArrayList::new, 2, "");
+
+        verify(pipeline).lrem("FN_CORE.FEED:test", 0, "deleted");
+        // The feed is one shorter, what was third is now second
+        assertThat(PostPage.Cursor.decode(page.getNextCursor()).startIn(4), equalTo(1L));
+    }
+
+    @Test
+    void findPageSkipsPostsPushedAfterTheCursor()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        // Two posts were pushed onto the head since the first page was read
+        when(jedis.llen("FN_CORE.FEED:test")).thenReturn(7L);
+        when(jedis.lrange("FN_CORE.FEED:test", 4, 5)).thenReturn(Arrays.asList("c", "d"));
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>());
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostPage page = repository.findPageForUser(new UserLocation("test", 0, 0, 10), ArrayList::new, 2,
+                                                   new PostPage.Cursor(2, 5).encode());
+
+        verify(jedis).lrange("FN_CORE.FEED:test", 4, 5);
+        assertThat(PostPage.Cursor.decode(page.getNextCursor()).startIn(7), equalTo(6L));
+    }
+
+    @Test
+    void findPageResumesAfterLastEntryOfFullFeed()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedTimelineMaxLength(5)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        // A post was pushed since the first page, the feed is full so its length stayed the same
+        when(jedis.llen("FN_CORE.FEED:test")).thenReturn(5L);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, 33)).thenReturn(Arrays.asList("new", "a", "b", "c", "d"));
+        when(jedis.lrange("FN_CORE.FEED:test", 3, 4)).thenReturn(Arrays.asList("c", "d"));
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>());
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostPage page = repository.findPageForUser(new UserLocation("test", 0, 0, 10), ArrayList::new, 2,
+                                                   new PostPage.Cursor(2, 5, "b", -1).encode());
+
+        verify(jedis).lrange("FN_CORE.FEED:test", 3, 4);
+        assertThat(page.getNextCursor(), equalTo(""));
+    }
+
+    @Test
+    void findPageFallsBackToOffsetForPostNoLongerAround()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.llen("FN_CORE.FEED:test")).thenReturn(7L);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, 35)).thenReturn(Arrays.asList("new", "newer", "a", "c", "d"));
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>());
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.findPageForUser(new UserLocation("test", 0, 0, 10), ArrayList::new, 2,
+                                   new PostPage.Cursor(2, 5, "b", -1).encode());
+
+        verify(jedis).lrange("FN_CORE.FEED:test", 4, 5);
+    }
+
+    @Test
+    void sortedSetPageResumesByTimeOfLastPost()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedTimelineEncoding("sorted_set")
+                .build();
+        LocalDateTime time = LocalDateTime.now().minusHours(1);
+        long packed = FeedEntry.timeOf(new Post("b", null, time));
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.zcard("FN_CORE.FEED:test")).thenReturn(5L);
+        when(jedis.zcount("FN_CORE.FEED:test", "(" + packed, "+inf")).thenReturn(1L);
+        // Another post has the same time and comes first
+        String tie = FeedEntry.pack(new Post("c", new UserLocation("x", 0, 0, 10), time));
+        String last = FeedEntry.pack(new Post("b", new UserLocation("x", 0, 0, 10), time));
+        when(jedis.zrevrangeByScore("FN_CORE.FEED:test", (double) packed, (double) packed))
+                .thenReturn(new LinkedHashSet<>(Arrays.asList(tie, last)));
+        when(jedis.zrevrange(anyString(), anyLong(), anyLong())).thenReturn(Collections.emptySet());
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.findPageForUser(new UserLocation("test", 0, 0, 10), ArrayList::new, 2,
+                                   new PostPage.Cursor(2, 5, "b", packed).encode());
+
+        verify(jedis).zrevrange("FN_CORE.FEED:test", 3, 4);
+    }
+
+    @Test
+    void sortedSetPageResumesAfterTimeOfDeletedPost()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedTimelineEncoding("sorted_set")
+                .build();
+        long packed = FeedEntry.timeOf(new Post("b", null, LocalDateTime.now().minusHours(1)));
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.zcard("FN_CORE.FEED:test")).thenReturn(7L);
+        when(jedis.zcount("FN_CORE.FEED:test", "(" + packed, "+inf")).thenReturn(3L);
+        when(jedis.zrevrangeByScore(anyString(), anyDouble(), anyDouble())).thenReturn(Collections.emptySet());
+        when(jedis.zrevrange(anyString(), anyLong(), anyLong())).thenReturn(Collections.emptySet());
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.findPageForUser(new UserLocation("test", 0, 0, 10), ArrayList::new, 2,
+                                   new PostPage.Cursor(2, 5, "b", packed).encode());
+
+        verify(jedis).zrevrange("FN_CORE.FEED:test", 3, 4);
+    }
+
+    @Test
+    void sortedSetPageResumesByRankOfBareEntry()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedTimelineEncoding("sorted_set")
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.zcard("FN_CORE.FEED:test")).thenReturn(5L);
+        when(jedis.zrevrank("FN_CORE.FEED:test", "b")).thenReturn(2L);
+        when(jedis.zrevrange(anyString(), anyLong(), anyLong())).thenReturn(Collections.emptySet());
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.findPageForUser(new UserLocation("test", 0, 0, 10), ArrayList::new, 2,
+                                   new PostPage.Cursor(2, 5, "b", -1).encode());
+
+        verify(jedis).zrevrange("FN_CORE.FEED:test", 3, 4);
+    }
+
+    @Test
+    void firstPageIsCutAtPageSizeAfterPulledPosts()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        LocalDateTime now = LocalDateTime.now();
+        String first = FeedEntry.pack(new Post("a", new UserLocation("x", 0, 0, 10), now.minusHours(1)));
+        String second = FeedEntry.pack(new Post("b", new UserLocation("x", 0, 0, 10), now.minusHours(2)));
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.llen("FN_CORE.FEED:test")).thenReturn(5L);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, 1)).thenReturn(Arrays.asList(first, second));
+        GeoRadiusResponse near = new GeoRadiusResponse("near".getBytes());
+        near.setDistance(1);
+        when(jedis.georadius(eq("FN_CORE.FEED.PULLED"), anyDouble(), anyDouble(), anyDouble(), any(),
+                             any(GeoRadiusParam.class))).thenReturn(Collections.singletonList(near));
+        when(jedis.hmget("FN_CORE.FEED.PULLED_RADIUS", "near")).thenReturn(Collections.singletonList("5.0"));
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>(Collections.singletonList(
+                new Post("near", new UserLocation("y", 0, 0, 5), now))));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostPage page = repository.findPageForUser(new UserLocation("test", 0, 0, 10), ArrayList::new, 2, "");
+
+        Assertions.assertThat(page.getPosts()).extracting("id").containsExactly("near", "a");
+        // The next page starts with the post that was cut
+        PostPage.Cursor next = PostPage.Cursor.decode(page.getNextCursor());
+        assertThat(next.getAnchor(), equalTo("a"));
+        assertThat(next.getTime(), equalTo(FeedEntry.timeOf(first)));
+        assertThat(next.startIn(5), equalTo(1L));
+        Assertions.assertThat(new String(Base64.getUrlDecoder().decode(page.getNextCursor()), StandardCharsets.UTF_8))
+                .doesNotContain(first);
+    }
+
+    @Test
+    void pulledPostsThatDontFitComeWithLaterPages()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        LocalDateTime now = LocalDateTime.now();
+        String[] pushed = new String[4];
+        for (int i = 0; i < pushed.length; i++) {
+            String id = String.valueOf((char) ('a' + i));
+            pushed[i] = FeedEntry.pack(new Post(id, new UserLocation("x", 0, 0, 10), now.minusHours(i + 1)));
+        }
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.llen("FN_CORE.FEED:test")).thenReturn(4L);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, 1)).thenReturn(Arrays.asList(pushed[0], pushed[1]));
+        when(jedis.lrange("FN_CORE.FEED:test", 0, 33)).thenReturn(Arrays.asList(pushed));
+        when(jedis.lrange("FN_CORE.FEED:test", 2, 3)).thenReturn(Arrays.asList(pushed[2], pushed[3]));
+        when(jedis.lrange("FN_CORE.FEED:test", 3, 4)).thenReturn(Collections.singletonList(pushed[3]));
+        List<GeoRadiusResponse> candidates = new ArrayList<>();
+        for (String id : new String[]{ "p1", "p2", "p3" }) {
+            GeoRadiusResponse candidate = new GeoRadiusResponse(id.getBytes());
+            candidate.setDistance(1);
+            candidates.add(candidate);
+        }
+        when(jedis.georadius(eq("FN_CORE.FEED.PULLED"), anyDouble(), anyDouble(), anyDouble(), any(),
+                             any(GeoRadiusParam.class))).thenReturn(candidates);
+        when(jedis.hmget("FN_CORE.FEED.PULLED_RADIUS", "p1", "p2", "p3"))
+                .thenReturn(Arrays.asList("5.0", "5.0", "5.0"));
+        when(template.find(any(), any(Class.class))).thenAnswer(invocation -> new ArrayList<>(Arrays.asList(
+                new Post("p1", new UserLocation("y", 0, 0, 5), now),
+                new Post("p2", new UserLocation("y", 0, 0, 5), now.minusMinutes(30)),
+                new Post("p3", new UserLocation("y", 0, 0, 5), now.minusMinutes(150)))));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        List<String> served = new ArrayList<>();
+        String cursor = "";
+        int pages = 0;
+        do {
+            PostPage page = repository.findPageForUser(new UserLocation("test", 0, 0, 10), ArrayList::new, 2,
+                                                       cursor);
+            page.getPosts().forEach(post -> served.add(post.getId()));
+            cursor = page.getNextCursor();
+        } while (!cursor.isEmpty() && ++pages < 10);
+
+        Assertions.assertThat(served).containsExactly("p1", "p2", "a", "b", "p3", "c", "d");
+    }
+
+    @Test
+    void findPageRebuildsMissingFeed()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .feedTimelineMaxLength(2)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.llen(anyString())).thenReturn(0L);
+        List<Post> posts = new ArrayList<>();
+        for (String id : new String[]{ "a", "b", "c" }) {
+            posts.add(new Post(id, new UserLocation("x", 0, 0, 10), LocalDateTime.now()));
+        }
+        when(template.find(any(), any(Class.class))).thenReturn(posts);
+        String[] packed = { FeedEntry.pack(posts.get(0)), FeedEntry.pack(posts.get(1)) };
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        PostPage page = repository.findPageForUser(new UserLocation("test", 0, 0, 10),
+                                                   () -> Collections.singletonList(new UserLocation("x", 0, 0, 10)),
+                                                   1, "");
+
+        Assertions.assertThat(page.getPosts()).extracting("id").containsExactly("a");
+        verify(pipeline).rpush("FN_CORE.FEED:test", packed);
+        assertFalse(page.getNextCursor().isEmpty());
+    }
+
+    @Test
+    void cachedPostsAreNotFetchedFromMongo()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists(anyString())).thenReturn(true);
+        when(jedis.lrange(anyString(), anyLong(), anyLong())).thenReturn(Arrays.asList("new", "old"));
+        LocalDateTime now = LocalDateTime.now();
+        PostCache cache = new PostCache(10, 60, new MetricRegistry());
+        cache.putAll(Collections.singletonList(new Post("old", new UserLocation("x", 0, 0, 10), now.minusHours(1))));
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>(Collections.singletonList(
+                new Post("new", new UserLocation("x", 0, 0, 10), now))));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config, null, cache);
+        List<Post> result = repository.findAllForUser(new UserLocation("test", 0, 0, 10), new ArrayList<>());
+
+        Assertions.assertThat(result).extracting("id").containsExactly("new", "old");
+        verify(template).find(argThat((Query query) -> !query.getQueryObject().toJson().contains("\"old\"")),
+                              eq(Post.class));
+        // Fetched once, cached from then on
+        Assertions.assertThat(cache.getAll(Collections.singletonList("new"))).containsOnlyKeys("new");
+    }
+
+    @Test
+    void packedEntriesAreReadWithoutMongoInFeedOrder()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        LocalDateTime now = LocalDateTime.now();
+        // Pushed late, but still on top of the feed
+        String older = FeedEntry.pack(new Post("older", new UserLocation("x", 0, 0.01, 10), now.minusHours(1)));
+        String newer = FeedEntry.pack(new Post("newer", new UserLocation("y", 0, 0.02, 10), now));
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists(anyString())).thenReturn(true);
+        when(jedis.lrange(anyString(), anyLong(), anyLong())).thenReturn(Arrays.asList(older, newer, "bare"));
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>(Collections.singletonList(
+                new Post("bare", new UserLocation("z", 0, 0, 10), now.minusDays(1)))));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        List<Post> result = repository.findAllForUser(new UserLocation("test", 0, 0, 10), new ArrayList<>());
+
+        Assertions.assertThat(result).extracting("id").containsExactly("older", "newer", "bare");
+        assertThat(result.get(1).getLocation().getDistance() > result.get(0).getLocation().getDistance(),
+                   equalTo(true));
+        verify(template, times(1)).find(argThat((Query query) -> query.getQueryObject().toJson().contains("bare")
+                && !query.getQueryObject().toJson().contains("older")), eq(Post.class));
+    }
+
+    @Test
+    void migrationRewritesFeedsWithBareIds()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        Transaction transaction = mock(Transaction.class);
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.scan(eq(ScanParams.SCAN_POINTER_START), any(ScanParams.class))).thenReturn(
+                new ScanResult<>(ScanParams.SCAN_POINTER_START, Arrays.asList("FN_CORE.FEED:a", "FN_CORE.FEED:b")));
+        Post post = new Post("p1", new UserLocation("x", 0, 0, 10), LocalDateTime.now());
+        String packed = FeedEntry.pack(post);
+        when(jedis.lrange("FN_CORE.FEED:a", 0, -1)).thenReturn(Collections.singletonList("p1"));
+        when(jedis.lrange("FN_CORE.FEED:b", 0, -1)).thenReturn(Collections.singletonList(packed));
+        when(jedis.ttl("FN_CORE.FEED:a")).thenReturn(100L);
+        when(jedis.multi()).thenReturn(transaction);
+        when(transaction.exec()).thenReturn(new ArrayList<>());
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>(Collections.singletonList(post)));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+
+        assertThat(repository.migrateFeedEntries(), equalTo(1L));
+        verify(transaction).rpush("FN_CORE.FEED:a", packed);
+        verify(transaction).expire("FN_CORE.FEED:a", 100);
+        verify(jedis, times(1)).multi();
+    }
+
+    @Test
+    void rematerializeSwapsPostsOfChangedNeighbours()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        Transaction transaction = mock(Transaction.class);
+        when(pool.getResource()).thenReturn(jedis);
+        LocalDateTime now = LocalDateTime.now();
+        String gone = FeedEntry.pack(new Post("p1", new UserLocation("a", 0, 0, 10), now.minusHours(3)));
+        String kept = FeedEntry.pack(new Post("p2", new UserLocation("b", 0, 0, 10), now.minusHours(2)));
+        Post joined = new Post("p3", new UserLocation("c", 0, 0, 10), now.minusHours(1));
+        String added = FeedEntry.pack(joined);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, -1)).thenReturn(Arrays.asList(kept, gone));
+        when(jedis.ttl("FN_CORE.FEED:test")).thenReturn(100L);
+        when(jedis.multi()).thenReturn(transaction);
+        when(transaction.exec()).thenReturn(new ArrayList<>());
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>(Collections.singletonList(joined)));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.rematerialize(new UserLocation("test", 0, 0, 10), Collections.singleton("c"),
+                                 Collections.singleton("a"));
+
+        verify(transaction).del("FN_CORE.FEED:test");
+        verify(transaction).rpush("FN_CORE.FEED:test", added, kept);
+        verify(transaction).expire("FN_CORE.FEED:test", 100);
+        verify(template, times(1)).find(argThat((Query query) -> query.getQueryObject().toJson().contains("\"c\"")
+                && !query.getQueryObject().toJson().contains("\"b\"")), eq(Post.class));
+    }
+
+    @Test
+    void rematerializeLeavesMissingFeedToNextRead()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, -1)).thenReturn(new ArrayList<>());
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.rematerialize(new UserLocation("test", 0, 0, 10), Collections.singleton("c"),
+                                 Collections.singleton("a"));
+
+        verify(jedis).unwatch();
+        verify(jedis, never()).multi();
+        verify(template, never()).find(any(), any(Class.class));
+    }
+
+    @Test
+    void timelinesForUsersHydrateSharedPostsOnce()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        LocalDateTime now = LocalDateTime.now();
+        String packed = FeedEntry.pack(new Post("p3", new UserLocation("z", 0, 0, 10), now.minusHours(3)));
+        Response<List<String>> first = response(Arrays.asList("p1", "p2"));
+        Response<List<String>> second = response(Arrays.asList("p2", packed));
+        when(pipeline.lrange("FN_CORE.FEED:a", 0, -1)).thenReturn(first);
+        when(pipeline.lrange("FN_CORE.FEED:b", 0, -1)).thenReturn(second);
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>(Arrays.asList(
+                new Post("p1", new UserLocation("x", 0, 0, 10), now.minusHours(1)),
+                new Post("p2", new UserLocation("y", 0, 0, 10), now.minusHours(2)))));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        Map<String, List<Post>> timelines = repository.findTimelinesForUsers(
+                Arrays.asList(new UserLocation("a", 0, 0, 10), new UserLocation("b", 0.01, 0, 10)), user -> {
+                    throw new AssertionError("No feed has to be rebuilt");
+                });
+
+        Assertions.assertThat(timelines.get("a")).extracting("id").containsExactly("p1", "p2");
+        Assertions.assertThat(timelines.get("b")).extracting("id").containsExactly("p2", "p3");
+        assertThat(timelines.get("a").get(1) != timelines.get("b").get(0), equalTo(true));
+        assertThat(timelines.get("b").get(0).getLocation().getDistance() > 1, equalTo(true));
+        verify(template, times(1)).find(any(), any(Class.class));
+        verify(pipeline).expire("FN_CORE.FEED:a", (int) TimeUnit.DAYS.toSeconds(20));
+    }
+
+    @Test
+    void timelinesForUsersRebuildMissingFeeds()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        Response<List<String>> empty = response(new ArrayList<>());
+        when(pipeline.lrange("FN_CORE.FEED:a", 0, -1)).thenReturn(empty);
+        Post post = new Post("p1", new UserLocation("x", 0, 0, 10), LocalDateTime.now());
+        String packed = FeedEntry.pack(post);
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>(Collections.singletonList(post)));
+        List<UserLocation> nearby = Collections.singletonList(new UserLocation("x", 0, 0, 10));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        Map<String, List<Post>> timelines = repository.findTimelinesForUsers(
+                Collections.singletonList(new UserLocation("a", 0, 0, 10)), user -> nearby);
+
+        Assertions.assertThat(timelines.get("a")).extracting("id").containsExactly("p1");
+        verify(pipeline).rpush("FN_CORE.FEED:a", packed);
+    }
+
+    @Test
+    void rebuildOnlyReadsPostsInRetentionWindow()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .postRetention(30)
+                .build();
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists(anyString())).thenReturn(false);
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>());
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        repository.findAllForUser(new UserLocation("test", 0, 0, 10),
+                                  Collections.singletonList(new UserLocation("x", 0, 0, 10)));
+
+        verify(template).find(argThat((Query query) -> query.getQueryObject().containsKey("time")
+                && query.getQueryObject().containsKey("location.id")), eq(Post.class));
+    }
+
+    @Test
+    void timelineEntriesPastRetentionAreDroppedOnRead()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .postRetention(30)
+                .build();
+        LocalDateTime now = LocalDateTime.now();
+        String fresh = FeedEntry.pack(new Post("fresh", new UserLocation("x", 0, 0, 10), now.minusDays(1)));
+        String old = FeedEntry.pack(new Post("old", new UserLocation("x", 0, 0, 10), now.minusDays(40)));
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.exists("FN_CORE.FEED:test")).thenReturn(true);
+        when(jedis.lrange("FN_CORE.FEED:test", 0, -1)).thenReturn(Arrays.asList(fresh, old));
+        GeoRadiusResponse near = new GeoRadiusResponse("pulled".getBytes());
+        near.setDistance(1);
+        when(jedis.georadius(eq("FN_CORE.FEED.PULLED"), anyDouble(), anyDouble(), anyDouble(), any(),
+                             any(GeoRadiusParam.class))).thenReturn(Collections.singletonList(near));
+        when(jedis.hmget("FN_CORE.FEED.PULLED_RADIUS", "pulled")).thenReturn(Collections.singletonList("5.0"));
+        when(template.find(any(), any(Class.class))).thenReturn(new ArrayList<>(Collections.singletonList(
+                new Post("pulled", new UserLocation("y", 0, 0, 5), now.minusDays(35)))));
+
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config);
+        List<Post> result = repository.findTimelineForUser(new UserLocation("test", 0, 0, 10), ArrayList::new);
+
+        Assertions.assertThat(result).extracting("id").containsExactly("fresh");
+        verify(pipeline).lrem("FN_CORE.FEED:test", 0, old);
+    }
+
+    @Test
+    void postsPastRetentionAreDroppedFromPostIndex()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .feedCacheExpiry(20)
+                .postRetention(30)
+                .build();
+        GeoCellIndex index = new GeoCellIndex();
+        when(template.save(any(Post.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        HybridPostRepository repository = new HybridPostRepository(template, pool, config, index);
+        repository.save(new Post("old", new UserLocation("x", 22.51, 88.34, 10), LocalDateTime.now().minusDays(40)));
+        // The TTL index already deleted it, or the window leaves it out
+        when(template.find(any(Query.class), eq(Post.class))).thenReturn(new ArrayList<>());
+
+        List<Post> result = repository.findAllForUser(new UserLocation("test", 22.507449, 88.34, 20));
+
+        Assertions.assertThat(result).isEmpty();
+        assertThat(index.contains("old"), equalTo(false));
+        verify(template).find(argThat((Query query) -> query.getQueryObject().containsKey("time")), eq(Post.class));
+    }
+
+    @Test
+    void retentionIndexesExpireOldPosts()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .postRetention(30)
+                .postRetentionTtl(true)
+                .build();
+        when(template.indexOps(Post.class)).thenReturn(indexOperations);
+
+        new HybridPostRepository(template, pool, config).ensureRetentionIndexes();
+
+        verify(indexOperations).ensureIndex(argThat(index -> index.getIndexKeys().containsKey("time")
+                && Long.valueOf(TimeUnit.DAYS.toSeconds(30)).equals(index.getIndexOptions().get("expireAfterSeconds"))));
+        verify(indexOperations).ensureIndex(argThat(index -> "2dsphere".equals(
+                index.getIndexKeys().get("location.position"))));
+    }
+
+    @Test
+    void retentionMigrationReplacesPlanarIndex()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .postRetention(30)
+                .postRetentionMigrate(true)
+                .build();
+        IndexInfo planar = mock(IndexInfo.class);
+        when(planar.getName()).thenReturn(HybridPostRepository.PLANAR_INDEX);
+        when(template.indexOps(Post.class)).thenReturn(indexOperations);
+        when(indexOperations.getIndexInfo()).thenReturn(Collections.singletonList(planar));
+
+        new HybridPostRepository(template, pool, config).ensureRetentionIndexes();
+
+        verify(indexOperations).dropIndex(HybridPostRepository.PLANAR_INDEX);
+        verify(indexOperations, never()).ensureIndex(argThat(index -> index.getIndexKeys().containsKey("time")
+                && index.getIndexOptions().containsKey("expireAfterSeconds")));
+    }
+
+    @Test
+    void retentionKeepsPlanarIndexUnlessMigrating()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .postRetention(30)
+                .build();
+        IndexInfo planar = mock(IndexInfo.class);
+        when(planar.getName()).thenReturn(HybridPostRepository.PLANAR_INDEX);
+        when(template.indexOps(Post.class)).thenReturn(indexOperations);
+        when(indexOperations.getIndexInfo()).thenReturn(Collections.singletonList(planar));
+
+        new HybridPostRepository(template, pool, config).ensureRetentionIndexes();
+
+        verify(indexOperations, never()).dropIndex(anyString());
+    }
+
+    @Test
+    void noRetentionLeavesPostsAlone()
+    {
+        FnCoreConfig config = FnCoreConfig.builder()
+                .redisKeyspace("FN_CORE")
+                .build();
+
+        new HybridPostRepository(template, pool, config).ensureRetentionIndexes();
+
+        verify(template, never()).indexOps(Post.class);
+    }
+}
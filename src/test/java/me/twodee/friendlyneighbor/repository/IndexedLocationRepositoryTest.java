@@ -0,0 +1,92 @@
+package me.twodee.friendlyneighbor.repository;
+
+import me.twodee.friendlyneighbor.component.GeoCellIndex;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.exception.DbFailure;
+import me.twodee.friendlyneighbor.exception.InvalidUser;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.function.Consumer;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class IndexedLocationRepositoryTest
+{
+    @Mock
+    MongoLocationRepository store;
+
+    @BeforeEach
+    void setUp()
+    {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @SuppressWarnings("unchecked")
+    private IndexedLocationRepository loadedRepository()
+    {
+        doAnswer(invocation -> {
+            Consumer<UserLocation> consumer = invocation.getArgument(0);
+            consumer.accept(new UserLocation("abc123", new UserLocation.Position(22.507449, 88.34), 2100));
+            consumer.accept(new UserLocation("Kolkata", new UserLocation.Position(22.507449, 88.329317), 2100));
+            consumer.accept(new UserLocation("Outside", new UserLocation.Position(10.5837057, 70.2258241), 100));
+            return null;
+        }).when(store).forEachLocation(any(Consumer.class));
+        IndexedLocationRepository repository = new IndexedLocationRepository(store, new GeoCellIndex());
+        repository.load();
+        return repository;
+    }
+
+    @Test
+    void lookupByIdServedFromIndex() throws InvalidUser, DbFailure
+    {
+        IndexedLocationRepository repository = loadedRepository();
+
+        Assertions.assertThat(repository.getUsersNearBy("abc123")).extracting("id").containsExactly("Kolkata");
+        verify(store, never()).getUsersNearBy(anyString());
+        verify(store, never()).findById(anyString());
+    }
+
+    @Test
+    void lookupByLocationForInvalidUser()
+    {
+        IndexedLocationRepository repository = loadedRepository();
+        UserLocation location = new UserLocation("invalid", new UserLocation.Position(22.507449, 88.34), 400);
+
+        assertThrows(InvalidUser.class, () -> repository.getUsersNearBy(location));
+        assertThrows(InvalidUser.class, () -> repository.getUsersNearBy("invalid"));
+    }
+
+    @Test
+    void saveWritesThroughAndIndexes() throws InvalidUser, DbFailure
+    {
+        IndexedLocationRepository repository = loadedRepository();
+        UserLocation location = new UserLocation("Howrah", new UserLocation.Position(22.5958, 88.2636), 100);
+        when(store.save(location)).thenReturn(location);
+
+        repository.save(location);
+
+        verify(store).save(location);
+        assertThat(repository.findById("Howrah").getRadius(), equalTo(100.0));
+        Assertions.assertThat(repository.getUsersNearBy("abc123")).extracting("id").contains("Howrah");
+    }
+
+    @Test
+    void deleteRemovesFromStoreAndIndex()
+    {
+        IndexedLocationRepository repository = loadedRepository();
+
+        repository.deleteById("Kolkata");
+
+        verify(store).deleteById("Kolkata");
+        assertNull(repository.findById("Kolkata"));
+    }
+}
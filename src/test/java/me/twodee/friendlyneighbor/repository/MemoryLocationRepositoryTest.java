@@ -0,0 +1,144 @@
+package me.twodee.friendlyneighbor.repository;
+
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.exception.InvalidUser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MemoryLocationRepositoryTest
+{
+    @TempDir
+    Path directory;
+
+    private MemoryLocationRepository repository;
+
+    @BeforeEach
+    void setUp() throws IOException
+    {
+        repository = new MemoryLocationRepository(directory);
+        repository.open();
+    }
+
+    private MemoryLocationRepository reopen() throws IOException
+    {
+        MemoryLocationRepository restored = new MemoryLocationRepository(directory);
+        restored.open();
+        return restored;
+    }
+
+    @Test
+    void saveAndFind()
+    {
+        repository.save(new UserLocation("abc", new UserLocation.Position(19.416575, 72.807543), 10));
+
+        UserLocation location = repository.findById("abc");
+        assertThat(location.getPosition().getLatitude(), closeTo(19.416575, 1e-5));
+        assertThat(location.getPosition().getLongitude(), closeTo(72.807543, 1e-5));
+        assertThat(location.getRadius(), equalTo(10.0));
+        assertNull(repository.findById("xyz"));
+    }
+
+    @Test
+    void usersAroundAreMutuallyVisible() throws InvalidUser
+    {
+        repository.saveAll(Arrays.asList(
+                new UserLocation("Virar", new UserLocation.Position(19.416575, 72.807543), 60),
+                new UserLocation("Bandra", new UserLocation.Position(19.0607, 72.8362), 60),
+                new UserLocation("Thane", new UserLocation.Position(19.2183, 72.9781), 60),
+                new UserLocation("Shortsighted", new UserLocation.Position(19.0760, 72.8777), 1),
+                new UserLocation("Pune", new UserLocation.Position(18.5204, 73.8567), 500)));
+
+        List<UserLocation> users = repository.getUsersNearBy("Virar");
+
+        assertThat(users.size(), equalTo(2));
+        assertThat(users.get(0).getId(), equalTo("Thane"));
+        assertThat(users.get(1).getId(), equalTo("Bandra"));
+        assertThat(users.get(1).getDistance(), closeTo(39.7, 0.5));
+    }
+
+    @Test
+    void unknownUser()
+    {
+        assertThrows(InvalidUser.class, () -> repository.getUsersNearBy("abc"));
+    }
+
+    @Test
+    void restoresFromLogAlone() throws IOException
+    {
+        repository.save(new UserLocation("abc", new UserLocation.Position(10, 10), 5));
+        repository.save(new UserLocation("xyz", new UserLocation.Position(11, 11), 5));
+        repository.save(new UserLocation("abc", new UserLocation.Position(12, 12), 6));
+        repository.deleteById("xyz");
+
+        MemoryLocationRepository restored = reopen();
+
+        assertThat(restored.size(), equalTo(1));
+        assertThat(restored.findById("abc").getRadius(), equalTo(6.0));
+        assertNull(restored.findById("xyz"));
+    }
+
+    @Test
+    void restoresFromSnapshotAndLog() throws IOException
+    {
+        repository.save(new UserLocation("abc", new UserLocation.Position(10, 10), 5));
+        repository.save(new UserLocation("xyz", new UserLocation.Position(11, 11), 5));
+        repository.snapshot();
+        repository.deleteById("abc");
+        repository.save(new UserLocation("def", new UserLocation.Position(12, 12), 5));
+
+        MemoryLocationRepository restored = reopen();
+
+        assertThat(restored.size(), equalTo(2));
+        assertNull(restored.findById("abc"));
+        assertThat(restored.findById("def").getPosition().getLatitude(), equalTo(12.0));
+    }
+
+    @Test
+    void closeLeavesOnlyTheSnapshot() throws IOException
+    {
+        repository.save(new UserLocation("abc", new UserLocation.Position(10, 10), 5));
+        repository.close();
+
+        assertThat(Files.size(directory.resolve("locations.wal")), equalTo(0L));
+        assertThat(reopen().findById("abc").getRadius(), equalTo(5.0));
+    }
+
+    @Test
+    void tornRecordIsCutOff() throws IOException
+    {
+        repository.save(new UserLocation("abc", new UserLocation.Position(10, 10), 5));
+        Files.write(directory.resolve("locations.wal"), new byte[]{ 1, 0, 3, 'x' }, StandardOpenOption.APPEND);
+
+        MemoryLocationRepository restored = reopen();
+        restored.save(new UserLocation("xyz", new UserLocation.Position(11, 11), 5));
+
+        MemoryLocationRepository again = reopen();
+        assertThat(again.size(), equalTo(2));
+        assertThat(again.findById("xyz").getRadius(), equalTo(5.0));
+    }
+
+    @Test
+    void deletedSlotsAreReused()
+    {
+        repository.save(new UserLocation("abc", new UserLocation.Position(10, 10), 5));
+        repository.deleteById("abc");
+        repository.save(new UserLocation("xyz", new UserLocation.Position(10, 10), 5));
+
+        assertThat(repository.size(), equalTo(1));
+        assertNull(repository.findById("abc"));
+    }
+}
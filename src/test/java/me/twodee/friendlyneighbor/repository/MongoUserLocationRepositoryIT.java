@@ -16,6 +16,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.data.mongodb.core.MongoTemplate;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -64,6 +65,20 @@ class MongoUserLocationRepositoryIT
         assertThat(template.findById("Mumbai", UserLocation.class).getRadius(), equalTo(1100.0));
     }
 
+    @Test
+    void testSuccessfulSaveAll()
+    {
+        LocationRepository repository = new MongoLocationRepository(template);
+        template.save(new UserLocation("Mumbai", new UserLocation.Position(19.416575, 72.807543), 10));
+        List<UserLocation> locations = new ArrayList<>();
+        locations.add(new UserLocation("Mumbai", new UserLocation.Position(19.416575, 72.807543), 1100));
+        locations.add(new UserLocation("Kolkata", new UserLocation.Position(22.507449, 88.329317), 2100));
+
+        assertThat(repository.saveAll(locations).isEmpty(), equalTo(true));
+        assertThat(template.findAll(UserLocation.class).size(), equalTo(2));
+        assertThat(template.findById("Mumbai", UserLocation.class).getRadius(), equalTo(1100.0));
+    }
+
     @Test
     void testLookupByIdDoesntContainSameLocation() throws InvalidUser, DbFailure
     {
@@ -207,7 +222,7 @@ class MongoUserLocationRepositoryIT
         assertThat(userLocation.getRadius(), equalTo(400.0));
         assertThat(userLocation.getPosition().getLatitude(), equalTo(22.507449));
         assertThat(userLocation.getPosition().getLongitude(), equalTo(88.34));
-        assertNull(userLocation.getDistance());
+        assertThat(userLocation.getDistance(), equalTo(0.0));
     }
 
     @Test
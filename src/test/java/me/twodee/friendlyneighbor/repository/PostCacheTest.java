@@ -0,0 +1,132 @@
+package me.twodee.friendlyneighbor.repository;
+
+import me.twodee.friendlyneighbor.component.MetricRegistry;
+import me.twodee.friendlyneighbor.entity.Post;
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import org.assertj.core.api.Assertions;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.*;
+
+class PostCacheTest
+{
+    @Mock
+    JedisPool pool;
+    @Mock
+    Jedis jedis;
+    @Mock
+    Pipeline pipeline;
+    @Mock
+    MongoConverter converter;
+
+    MetricRegistry metrics;
+
+    @BeforeEach
+    void setUp()
+    {
+        MockitoAnnotations.initMocks(this);
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.pipelined()).thenReturn(pipeline);
+        metrics = new MetricRegistry();
+    }
+
+    @Test
+    void handsOutCopies()
+    {
+        PostCache cache = new PostCache(10, 60, metrics);
+        Post post = new Post("a", new UserLocation("x", 10, 20, 5), LocalDateTime.now());
+        cache.putAll(Collections.singletonList(post));
+        post.getLocation().setDistance(3);
+
+        Post cached = cache.getAll(Collections.singletonList("a")).get("a");
+        cached.getLocation().setPosition(null);
+
+        Post again = cache.getAll(Collections.singletonList("a")).get("a");
+        assertThat(again, not(sameInstance(cached)));
+        assertThat(again.getLocation().getLatitude(), equalTo(10.0));
+        assertThat(again.getLocation().getDistance(), equalTo(0.0));
+    }
+
+    @Test
+    void missingPostsAreLeftOut()
+    {
+        PostCache cache = new PostCache(10, 60, metrics);
+        cache.putAll(Collections.singletonList(new Post("a", null, LocalDateTime.now())));
+
+        Map<String, Post> found = cache.getAll(Arrays.asList("a", "b"));
+
+        Assertions.assertThat(found).containsOnlyKeys("a");
+        assertThat(metrics.count("post.cache.hits"), equalTo(1L));
+        assertThat(metrics.count("post.cache.misses"), equalTo(1L));
+    }
+
+    @Test
+    void invalidateDropsThePost()
+    {
+        PostCache cache = new PostCache(10, 60, pool, "TEST", converter, metrics);
+        cache.putAll(Collections.singletonList(new Post("a", null, LocalDateTime.now())));
+        when(jedis.mget("TEST.POST:a")).thenReturn(Collections.singletonList(null));
+
+        cache.invalidate("a");
+
+        Assertions.assertThat(cache.getAll(Collections.singletonList("a"))).isEmpty();
+        verify(jedis).del("TEST.POST:a");
+    }
+
+    @Test
+    void localMissesAreReadFromRedis()
+    {
+        PostCache cache = new PostCache(10, 60, pool, "TEST", converter, metrics);
+        Post shared = new Post("b", null, LocalDateTime.now());
+        when(jedis.mget("TEST.POST:b")).thenReturn(Collections.singletonList("{\"_id\": \"b\"}"));
+        when(converter.read(eq(Post.class), any(Document.class))).thenReturn(shared);
+
+        Map<String, Post> found = cache.getAll(Collections.singletonList("b"));
+
+        Assertions.assertThat(found).containsOnlyKeys("b");
+        assertThat(metrics.count("post.cache.redis_hits"), equalTo(1L));
+        // Kept locally from then on
+        cache.getAll(Collections.singletonList("b"));
+        verify(jedis, times(1)).mget("TEST.POST:b");
+    }
+
+    @Test
+    void failingRedisCountsAsMiss()
+    {
+        PostCache cache = new PostCache(10, 60, pool, "TEST", converter, metrics);
+        when(jedis.mget("TEST.POST:a")).thenThrow(new JedisConnectionException("down"));
+
+        Assertions.assertThat(cache.getAll(Collections.singletonList("a"))).isEmpty();
+        assertThat(metrics.count("post.cache.misses"), equalTo(1L));
+    }
+
+    @Test
+    void putAllWritesToRedis()
+    {
+        PostCache cache = new PostCache(10, 60, pool, "TEST", converter, metrics);
+
+        cache.putAll(Collections.singletonList(new Post("a", null, LocalDateTime.now())));
+
+        verify(converter).write(any(Post.class), any(Document.class));
+        verify(pipeline).setex(eq("TEST.POST:a"), eq(60), anyString());
+        verify(pipeline).sync();
+    }
+}
@@ -0,0 +1,171 @@
+package me.twodee.friendlyneighbor.repository;
+
+import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.exception.DbFailure;
+import me.twodee.friendlyneighbor.exception.InvalidUser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import redis.clients.jedis.*;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.GeoRadiusParam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class RedisLocationRepositoryTest
+{
+    @Mock
+    JedisPool pool;
+    @Mock
+    Jedis jedis;
+    @Mock
+    Pipeline pipeline;
+
+    private RedisLocationRepository repository;
+
+    @BeforeEach
+    void setUp()
+    {
+        MockitoAnnotations.initMocks(this);
+        when(pool.getResource()).thenReturn(jedis);
+        when(jedis.pipelined()).thenReturn(pipeline);
+        repository = new RedisLocationRepository(pool, "FNCORE");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Response<T> response(T value)
+    {
+        Response<T> response = mock(Response.class);
+        when(response.get()).thenReturn(value);
+        return response;
+    }
+
+    private static GeoRadiusResponse candidate(String id, double latitude, double longitude, double distance)
+    {
+        GeoRadiusResponse response = new GeoRadiusResponse(id.getBytes());
+        response.setCoordinate(new GeoCoordinate(longitude, latitude));
+        response.setDistance(distance);
+        return response;
+    }
+
+    @Test
+    void saveAllReportsRejectedLocations()
+    {
+        Response<Long> accepted = response(1L);
+        @SuppressWarnings("unchecked")
+        Response<Long> rejected = mock(Response.class);
+        when(rejected.get()).thenThrow(new JedisDataException("invalid longitude,latitude pair"));
+        when(pipeline.geoadd(anyString(), anyDouble(), anyDouble(), anyString())).thenReturn(accepted, rejected);
+
+        Map<String, String> errors = repository.saveAll(Arrays.asList(
+                new UserLocation("abc", new UserLocation.Position(10, 10), 5),
+                new UserLocation("pole", new UserLocation.Position(89, 10), 5)));
+
+        assertThat(errors.size(), equalTo(1));
+        assertThat(errors.containsKey("pole"), equalTo(true));
+        verify(pipeline).geoadd("FNCORE.LOCATION", 10, 10, "abc");
+        verify(pipeline).hset("FNCORE.LOCATION_RADIUS", "abc", "5.0");
+        verify(pipeline, times(1)).sync();
+    }
+
+    @Test
+    void findById()
+    {
+        Response<List<GeoCoordinate>> coordinates = response(Collections.singletonList(new GeoCoordinate(20, 10)));
+        Response<String> radius = response("5.0");
+        when(pipeline.geopos("FNCORE.LOCATION", "abc")).thenReturn(coordinates);
+        when(pipeline.hget("FNCORE.LOCATION_RADIUS", "abc")).thenReturn(radius);
+
+        UserLocation location = repository.findById("abc");
+
+        assertThat(location.getPosition().getLatitude(), equalTo(10.0));
+        assertThat(location.getPosition().getLongitude(), equalTo(20.0));
+        assertThat(location.getRadius(), equalTo(5.0));
+    }
+
+    @Test
+    void findMissingById()
+    {
+        Response<List<GeoCoordinate>> coordinates = response(Collections.singletonList(null));
+        Response<String> radius = response(null);
+        when(pipeline.geopos("FNCORE.LOCATION", "abc")).thenReturn(coordinates);
+        when(pipeline.hget("FNCORE.LOCATION_RADIUS", "abc")).thenReturn(radius);
+
+        assertNull(repository.findById("abc"));
+        assertThrows(InvalidUser.class, () -> repository.getUsersNearBy("abc"));
+    }
+
+    @Test
+    void findAllByIdLeavesOutMissingUsers()
+    {
+        Response<List<GeoCoordinate>> found = response(Collections.singletonList(new GeoCoordinate(20, 10)));
+        Response<List<GeoCoordinate>> missing = response(Collections.singletonList(null));
+        Response<String> radius = response("5.0");
+        Response<String> noRadius = response(null);
+        when(pipeline.geopos("FNCORE.LOCATION", "abc")).thenReturn(found);
+        when(pipeline.hget("FNCORE.LOCATION_RADIUS", "abc")).thenReturn(radius);
+        when(pipeline.geopos("FNCORE.LOCATION", "gone")).thenReturn(missing);
+        when(pipeline.hget("FNCORE.LOCATION_RADIUS", "gone")).thenReturn(noRadius);
+
+        Map<String, UserLocation> locations = repository.findAllById(Arrays.asList("abc", "gone"));
+
+        assertThat(locations.keySet(), equalTo(Collections.singleton("abc")));
+        assertThat(locations.get("abc").getRadius(), equalTo(5.0));
+        verify(pipeline, times(1)).sync();
+    }
+
+    @Test
+    void usersAroundAreMutuallyVisible() throws DbFailure
+    {
+        List<GeoRadiusResponse> candidates = new ArrayList<>(Arrays.asList(
+                candidate("abc", 10, 10, 0),
+                candidate("near", 10.01, 10, 1.1),
+                candidate("shortsighted", 10.02, 10, 2.2),
+                candidate("far", 10.03, 10, 3.3)));
+        when(jedis.georadius(eq("FNCORE.LOCATION"), eq(10.0), eq(10.0), eq(5.0), eq(GeoUnit.KM),
+                             any(GeoRadiusParam.class))).thenReturn(candidates);
+        when(jedis.hmget("FNCORE.LOCATION_RADIUS", "near", "shortsighted", "far"))
+                .thenReturn(Arrays.asList("2.0", "1.0", "10.0"));
+
+        List<UserLocation> users = repository.getUsersAround(
+                new UserLocation("abc", new UserLocation.Position(10, 10), 5));
+
+        assertThat(users.size(), equalTo(2));
+        assertThat(users.get(0).getId(), equalTo("near"));
+        assertThat(users.get(0).getDistance(), equalTo(1.1));
+        assertThat(users.get(1).getId(), equalTo("far"));
+        assertThat(users.get(1).getRadius(), equalTo(10.0));
+    }
+
+    @Test
+    void connectionFailureIsDbFailure()
+    {
+        when(jedis.georadius(anyString(), anyDouble(), anyDouble(), anyDouble(), any(GeoUnit.class),
+                             any(GeoRadiusParam.class))).thenThrow(JedisConnectionException.class);
+
+        assertThrows(DbFailure.class, () -> repository.getUsersAround(
+                new UserLocation("abc", new UserLocation.Position(10, 10), 5)));
+    }
+
+    @Test
+    void deleteRemovesBothKeys()
+    {
+        repository.deleteById("abc");
+
+        verify(pipeline).zrem("FNCORE.LOCATION", "abc");
+        verify(pipeline).hdel("FNCORE.LOCATION_RADIUS", "abc");
+    }
+}
@@ -2,6 +2,7 @@ package me.twodee.friendlyneighbor.service;
 
 import me.twodee.friendlyneighbor.dto.ResultObject;
 import me.twodee.friendlyneighbor.dto.UserLocationResult;
+import me.twodee.friendlyneighbor.dto.UserLocationStream;
 import me.twodee.friendlyneighbor.dto.UserLocationsResult;
 import me.twodee.friendlyneighbor.entity.UserLocation;
 import me.twodee.friendlyneighbor.exception.DbFailure;
@@ -15,13 +16,20 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class DiscoveryTest
@@ -75,7 +83,7 @@ class DiscoveryTest
         Assertions.assertThat(nearbyUsers.getUserLocations()).extracting("id")
                 .containsOnly("abc123", "hello");
         Assertions.assertThat(nearbyUsers.getUserLocations()).extracting("distance")
-                .containsOnly(100, 2.0);
+                .containsOnly(100.0, 2.0);
     }
 
     @Test
@@ -117,7 +125,7 @@ class DiscoveryTest
         Assertions.assertThat(nearbyUsers.getUserLocations()).extracting("id")
                 .containsOnly("abc123", "hello");
         Assertions.assertThat(nearbyUsers.getUserLocations()).extracting("distance")
-                .containsOnly(10, 2.0);
+                .containsOnly(10.0, 2.0);
     }
 
     @Test
@@ -145,6 +153,55 @@ class DiscoveryTest
         assertThat(res.getNotification().getErrors().get("internal"), equalTo(ResultObject.SOMETHING_WENT_WRONG));
     }
 
+    @Test
+    void testBulkSaveKeepsLastLocationPerUser()
+    {
+        Discovery discovery = new Discovery(repository);
+        when(repository.saveAll(any())).thenReturn(new HashMap<>());
+        List<UserLocation> locations = new ArrayList<>();
+        locations.add(new UserLocation("abc", new UserLocation.Position(10, 10), 10));
+        locations.add(new UserLocation("xyz", new UserLocation.Position(10, 10), 10));
+        locations.add(new UserLocation("abc", new UserLocation.Position(12, 12), 12));
+
+        Map<String, ResultObject> results = discovery.saveUserLocations(locations);
+
+        assertThat(results.size(), equalTo(2));
+        assertFalse(results.get("abc").getNotification().hasErrors());
+        Mockito.verify(repository).saveAll(Mockito.argThat(batch -> batch.size() == 2
+                && batch.get(0).getRadius() == 12));
+    }
+
+    @Test
+    void testBulkSavePartialFailure()
+    {
+        Discovery discovery = new Discovery(repository);
+        Map<String, String> errors = new HashMap<>();
+        errors.put("xyz", "duplicate key");
+        when(repository.saveAll(any())).thenReturn(errors);
+        List<UserLocation> locations = new ArrayList<>();
+        locations.add(new UserLocation("abc", new UserLocation.Position(10, 10), 10));
+        locations.add(new UserLocation("xyz", new UserLocation.Position(10, 10), 10));
+
+        Map<String, ResultObject> results = discovery.saveUserLocations(locations);
+
+        assertFalse(results.get("abc").getNotification().hasErrors());
+        assertThat(results.get("xyz").getNotification().getErrors().get("internal"),
+                   equalTo(ResultObject.SOMETHING_WENT_WRONG));
+    }
+
+    @Test
+    void testBulkSaveFailure()
+    {
+        Discovery discovery = new Discovery(repository);
+        when(repository.saveAll(any())).thenThrow(RuntimeException.class);
+        List<UserLocation> locations = new ArrayList<>();
+        locations.add(new UserLocation("abc", new UserLocation.Position(10, 10), 10));
+
+        Map<String, ResultObject> results = discovery.saveUserLocations(locations);
+
+        assertTrue(results.get("abc").getNotification().hasErrors());
+    }
+
     @Test
     void testUserDelete()
     {
@@ -188,4 +245,112 @@ class DiscoveryTest
         assertTrue(result.getNotification().hasErrors());
         assertTrue(result.getNotification().getErrors().containsKey("userId"));
     }
-}
\ No newline at end of file
+
+    private List<UserLocation> nearbyUsers()
+    {
+        List<UserLocation> users = new ArrayList<>();
+        String[] ids = { "a", "b", "c", "d" };
+        double[] distances = { 1, 2, 2, 3 };
+        for (int i = 0; i < ids.length; i++) {
+            UserLocation location = new UserLocation(ids[i], new UserLocation.Position(10, 10), 10);
+            location.setDistance(distances[i]);
+            users.add(location);
+        }
+        return users;
+    }
+
+    private List<String> drain(UserLocationStream stream)
+    {
+        List<String> ids = new ArrayList<>();
+        stream.forEachRemaining(location -> ids.add(location.getId()));
+        return ids;
+    }
+
+    @Test
+    void testStreamByIdPagesThroughUsers() throws DbFailure
+    {
+        UserLocation loc = new UserLocation("abc", new UserLocation.Position(10, 10), 10);
+        when(repository.findById("abc")).thenReturn(loc);
+        when(repository.streamUsersAround(any(), anyDouble())).thenAnswer(invocation -> nearbyUsers().stream());
+        Discovery discovery = new Discovery(repository);
+
+        UserLocationStream firstPage = discovery.streamNearbyUsersByUserId("abc", 2, "");
+        assertThat(drain(firstPage), equalTo(Arrays.asList("a", "b")));
+        String cursor = firstPage.nextCursor();
+        assertFalse(cursor.isEmpty());
+
+        UserLocationStream secondPage = discovery.streamNearbyUsersByUserId("abc", 2, cursor);
+        assertThat(drain(secondPage), equalTo(Arrays.asList("c", "d")));
+        assertThat(secondPage.nextCursor(), equalTo(""));
+    }
+
+    @Test
+    void usersAtTheSameDistanceAreNotLostAcrossPages() throws DbFailure
+    {
+        UserLocation loc = new UserLocation("abc", new UserLocation.Position(10, 10), 10);
+        when(repository.findById("abc")).thenReturn(loc);
+        List<String> order = new ArrayList<>(Arrays.asList("e", "c", "a", "d", "b"));
+        // Every read hands the tied users out in another order, like $nearSphere may
+        when(repository.streamUsersAround(any(), anyDouble())).thenAnswer(invocation -> {
+            Collections.rotate(order, 2);
+            List<UserLocation> users = new ArrayList<>();
+            for (String id : order) {
+                UserLocation location = new UserLocation(id, new UserLocation.Position(10, 10), 10);
+                location.setDistance(2);
+                users.add(location);
+            }
+            return users.stream();
+        });
+        Discovery discovery = new Discovery(repository);
+
+        List<String> seen = new ArrayList<>();
+        String cursor = "";
+        do {
+            UserLocationStream page = discovery.streamNearbyUsersByUserId("abc", 2, cursor);
+            seen.addAll(drain(page));
+            cursor = page.nextCursor();
+        } while (!cursor.isEmpty());
+
+        Assertions.assertThat(seen).containsExactlyInAnyOrder("a", "b", "c", "d", "e");
+    }
+
+    @Test
+    void testStreamByIdInvalidUser()
+    {
+        when(repository.findById(any())).thenReturn(null);
+        Discovery discovery = new Discovery(repository);
+
+        UserLocationStream result = discovery.streamNearbyUsersByUserId("abc", 0, "");
+
+        assertTrue(result.getNotification().getErrors().containsKey("userId"));
+        assertFalse(result.hasNext());
+    }
+
+    @Test
+    void testStreamByLocationMalformedCursorStartsOver() throws DbFailure
+    {
+        UserLocation loc = new UserLocation("abc", new UserLocation.Position(10, 10), 10);
+        when(repository.findById("abc")).thenReturn(loc);
+        when(repository.streamUsersAround(any(), anyDouble())).thenAnswer(invocation -> nearbyUsers().stream());
+        Discovery discovery = new Discovery(repository);
+
+        UserLocationStream result = discovery.streamNearbyUsersByLocation(loc, 0, "not a cursor");
+
+        assertThat(drain(result).size(), equalTo(4));
+    }
+
+    @Test
+    void getUserLocationsMarksMissingUsers()
+    {
+        UserLocation loc = new UserLocation("abc", new UserLocation.Position(10, 10), 10);
+        when(repository.findAllById(Arrays.asList("gone", "abc"))).thenReturn(Collections.singletonMap("abc", loc));
+        Discovery discovery = new Discovery(repository);
+
+        Map<String, UserLocationResult> results = discovery.getUserLocations(Arrays.asList("gone", "abc"));
+
+        assertThat(new ArrayList<>(results.keySet()), equalTo(Arrays.asList("gone", "abc")));
+        assertTrue(results.get("gone").getErrors().containsKey("userId"));
+        assertThat(results.get("abc").userLocation, equalTo(loc));
+        verify(repository, never()).findById(any());
+    }
+}
@@ -0,0 +1,116 @@
+package me.twodee.friendlyneighbor.service;
+
+import me.twodee.friendlyneighbor.component.MetricRegistry;
+import me.twodee.friendlyneighbor.dto.ResultObject;
+import me.twodee.friendlyneighbor.dto.SuccessResult;
+import me.twodee.friendlyneighbor.repository.FanoutOutbox;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import redis.clients.jedis.StreamEntryID;
+
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+class FanoutWorkerTest
+{
+    @Mock
+    FanoutOutbox outbox;
+
+    @Mock
+    Feed feed;
+
+    MetricRegistry metrics;
+    FanoutWorker worker;
+
+    @BeforeEach
+    void setUp()
+    {
+        MockitoAnnotations.initMocks(this);
+        metrics = new MetricRegistry();
+        worker = new FanoutWorker(outbox, feed, metrics, 1, 3, 1000);
+    }
+
+    @Test
+    void deliveredPostIsCompleted()
+    {
+        FanoutOutbox.Entry entry = new FanoutOutbox.Entry(new StreamEntryID(1, 0), "p1", 1);
+        when(feed.deliverQueued("p1")).thenReturn(new SuccessResult());
+
+        worker.process(entry);
+
+        verify(outbox).complete(entry);
+        assertThat(metrics.count("feed.outbox.delivered"), equalTo(1L));
+    }
+
+    @Test
+    void alreadyDeliveredPostIsNotPushedAgain()
+    {
+        FanoutOutbox.Entry entry = new FanoutOutbox.Entry(new StreamEntryID(1, 0), "p1", 2);
+        when(outbox.isDone("p1")).thenReturn(true);
+
+        worker.process(entry);
+
+        verify(feed, never()).deliverQueued(any());
+        verify(outbox).complete(entry);
+    }
+
+    @Test
+    void failedPostIsLeftPendingForRetry()
+    {
+        FanoutOutbox.Entry entry = new FanoutOutbox.Entry(new StreamEntryID(1, 0), "p1", 1);
+        when(feed.deliverQueued("p1")).thenThrow(new RuntimeException("Redis went away"));
+
+        worker.process(entry);
+
+        verify(outbox, never()).complete(any());
+        verify(outbox, never()).discard(any());
+    }
+
+    @Test
+    void failedPostIsDroppedAfterMaxAttempts()
+    {
+        FanoutOutbox.Entry entry = new FanoutOutbox.Entry(new StreamEntryID(1, 0), "p1", 3);
+        when(feed.deliverQueued("p1")).thenThrow(new RuntimeException("Redis went away"));
+
+        worker.process(entry);
+
+        verify(outbox).discard(entry);
+        assertThat(metrics.count("feed.outbox.dropped"), equalTo(1L));
+    }
+
+    @Test
+    void missingPostIsDroppedRightAway()
+    {
+        FanoutOutbox.Entry entry = new FanoutOutbox.Entry(new StreamEntryID(1, 0), "p1", 1);
+        when(feed.deliverQueued("p1")).thenReturn(new ResultObject("post", Feed.POST_MISSING));
+
+        worker.process(entry);
+
+        verify(outbox).discard(entry);
+        verify(outbox, never()).complete(any());
+    }
+
+    @Test
+    void pollRetriesStalePostsBeforeNewOnes()
+    {
+        FanoutOutbox.Entry stale = new FanoutOutbox.Entry(new StreamEntryID(1, 0), "p1", 2);
+        FanoutOutbox.Entry fresh = new FanoutOutbox.Entry(new StreamEntryID(2, 0), "p2", 1);
+        when(outbox.reclaim("c", 1000, FanoutWorker.BATCH_SIZE)).thenReturn(Collections.singletonList(stale));
+        when(outbox.take(eq("c"), anyInt(), anyLong())).thenReturn(Collections.singletonList(fresh));
+        when(feed.deliverQueued(any())).thenReturn(new SuccessResult());
+
+        worker.poll("c");
+
+        verify(outbox).complete(stale);
+        verify(outbox).complete(fresh);
+        assertThat(metrics.count("feed.outbox.retried"), equalTo(1L));
+    }
+}
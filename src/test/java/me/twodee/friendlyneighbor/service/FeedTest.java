@@ -1,8 +1,12 @@
 package me.twodee.friendlyneighbor.service;
 
+import me.twodee.friendlyneighbor.component.FanoutExecutor;
+import me.twodee.friendlyneighbor.component.FanoutPolicy;
+import me.twodee.friendlyneighbor.component.MetricRegistry;
 import me.twodee.friendlyneighbor.dto.*;
 import me.twodee.friendlyneighbor.entity.Post;
 import me.twodee.friendlyneighbor.entity.UserLocation;
+import me.twodee.friendlyneighbor.repository.FanoutOutbox;
 import me.twodee.friendlyneighbor.repository.PostRepository;
 import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -12,12 +16,26 @@ import org.mockito.MockitoAnnotations;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class FeedTest
@@ -195,4 +213,383 @@ class FeedTest
 
         Assertions.assertThat(results.getPosts()).extracting("id").containsExactly("p1");
     }
-}
\ No newline at end of file
+
+    @Test
+    void fanoutCappedToNearestUsers()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Feed feed = new Feed(discovery, repository, null, new FanoutPolicy(2), metrics);
+        UserLocation far = new UserLocation("far", 20, 20, 10);
+        far.setDistance(8);
+        UserLocation near = new UserLocation("near", 20, 20, 10);
+        near.setDistance(1);
+        UserLocation nearer = new UserLocation("nearer", 20, 20, 10);
+        nearer.setDistance(0.5);
+        when(discovery.lookupNearbyUsersByLocation(any()))
+                .thenReturn(new UserLocationsResult(Arrays.asList(far, near, nearer)));
+        Post post = new Post();
+        when(repository.save(any())).thenReturn(post);
+
+        ResultObject result = feed.pushRequestToNearbyUsers("p1", new UserLocation("test", 20, 20, 10));
+
+        assertFalse(result.hasErrors());
+        assertThat(((FanoutResult) result).getReached(), equalTo(2));
+        assertThat(((FanoutResult) result).getSkipped(), equalTo(1));
+        assertThat(metrics.count("feed.fanout.skipped"), equalTo(1L));
+        verify(repository).forwardToUsers(eq(Arrays.asList(nearer, near)), eq(post));
+    }
+
+    @Test
+    void fanoutPastPullThresholdIsPublishedOnce()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Feed feed = new Feed(discovery, repository, null, new FanoutPolicy(1, 2), metrics);
+        List<UserLocation> nearby = Arrays.asList(new UserLocation("a", 20, 20, 10),
+                                                  new UserLocation("b", 20, 20, 10),
+                                                  new UserLocation("c", 20, 20, 10));
+        when(discovery.lookupNearbyUsersByLocation(any())).thenReturn(new UserLocationsResult(nearby));
+        Post post = new Post();
+        when(repository.save(any())).thenReturn(post);
+
+        ResultObject result = feed.pushRequestToNearbyUsers("p1", new UserLocation("test", 20, 20, 10));
+
+        assertThat(((FanoutResult) result).getReached(), equalTo(3));
+        assertThat(((FanoutResult) result).getSkipped(), equalTo(0));
+        verify(repository).publishForPull(post);
+        verify(repository, never()).forwardToUsers(any(), any());
+        assertThat(metrics.count("feed.fanout.pulled"), equalTo(1L));
+    }
+
+    @Test
+    void fetchRequestPageLooksUpNearbyUsersOnlyToRebuild()
+    {
+        Feed feed = new Feed(discovery, repository);
+        UserLocation location = new UserLocation("uid", 12, 12, 10);
+        when(discovery.getUserLocation("uid")).thenReturn(new UserLocationResult(location));
+        when(repository.findPageForUser(any(), any(), anyInt(), anyString()))
+                .thenReturn(new PostPage(new ArrayList<>(), ""));
+
+        PostPage page = feed.fetchRequestPageForUser("uid", 10, "");
+
+        assertFalse(page.hasErrors());
+        verify(repository).findPageForUser(eq(location), any(), eq(10), eq(""));
+        verify(discovery, never()).lookupNearbyUsersByLocation(any());
+    }
+
+    @Test
+    void fetchRequestDeltaCountsResets()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Feed feed = new Feed(discovery, repository, null, FanoutPolicy.unbounded(), metrics);
+        UserLocation location = new UserLocation("uid", 12, 12, 10);
+        when(discovery.getUserLocation("uid")).thenReturn(new UserLocationResult(location));
+        when(repository.findDeltaForUser(any(), any(), anyString()))
+                .thenReturn(new PostDelta(new ArrayList<>(), new ArrayList<>(), true, "token"));
+
+        PostDelta delta = feed.fetchRequestDeltaForUser("uid", "");
+
+        assertFalse(delta.hasErrors());
+        verify(repository).findDeltaForUser(eq(location), any(), eq(""));
+        verify(discovery, never()).lookupNearbyUsersByLocation(any());
+        assertThat(metrics.count("feed.read.delta.reset"), equalTo(1L));
+        assertThat(metrics.count("feed.read.delta.incremental"), equalTo(0L));
+    }
+
+    @Test
+    void fetchRequestDeltaForInvalidUser()
+    {
+        Feed feed = new Feed(discovery, repository);
+        Notification notification = new Notification();
+        notification.addError("id", "Invalid user");
+        UserLocationResult invalid = new UserLocationResult();
+        invalid.setNotification(notification);
+        when(discovery.getUserLocation("uid")).thenReturn(invalid);
+
+        PostDelta delta = feed.fetchRequestDeltaForUser("uid", "token");
+
+        assertTrue(delta.hasErrors());
+        verify(repository, never()).findDeltaForUser(any(), any(), anyString());
+    }
+
+    @Test
+    void fanoutRejectedWhenExecutorIsFull()
+    {
+        FanoutExecutor executor = mock(FanoutExecutor.class);
+        doThrow(new RejectedExecutionException()).when(executor).runInline(any());
+        Feed feed = new Feed(discovery, repository, null, FanoutPolicy.unbounded(), executor, new MetricRegistry());
+        when(discovery.lookupNearbyUsersByLocation(any()))
+                .thenReturn(new UserLocationsResult(Arrays.asList(new UserLocation("a", 20, 20, 10))));
+        when(repository.save(any())).thenReturn(new Post());
+
+        ResultObject result = feed.pushRequestToNearbyUsers("p1", new UserLocation("test", 20, 20, 10));
+
+        assertThat(result.getErrors().get("fanout"), equalTo(Feed.FANOUT_BUSY));
+        verify(repository, never()).forwardToUsers(any(), any());
+    }
+
+    @Test
+    void fanoutQueuedToOutboxWhenAsync()
+    {
+        FanoutOutbox outbox = mock(FanoutOutbox.class);
+        MetricRegistry metrics = new MetricRegistry();
+        Feed feed = new Feed(discovery, repository, null, FanoutPolicy.unbounded(), mock(FanoutExecutor.class),
+                             metrics, outbox);
+        when(repository.save(any())).thenReturn(new Post("p1", null, LocalDateTime.now()));
+
+        ResultObject result = feed.pushRequestToNearbyUsers("p1", new UserLocation("test", 20, 20, 10));
+
+        assertFalse(result.hasErrors());
+        verify(outbox).append("p1");
+        verify(discovery, never()).lookupNearbyUsersByLocation(any());
+        verify(repository, never()).forwardToUsers(any(), any());
+        assertThat(metrics.count("feed.outbox.queued"), equalTo(1L));
+    }
+
+    @Test
+    void deliverQueuedPushesSavedPost()
+    {
+        Feed feed = new Feed(discovery, repository);
+        UserLocation author = new UserLocation("test", 20, 20, 10);
+        Post post = new Post("p1", author, LocalDateTime.now());
+        List<UserLocation> nearby = Arrays.asList(new UserLocation("a", 20, 20, 10));
+        when(repository.findById("p1")).thenReturn(post);
+        when(discovery.lookupNearbyUsersByLocation(author)).thenReturn(new UserLocationsResult(nearby));
+
+        ResultObject result = feed.deliverQueued("p1");
+
+        assertFalse(result.hasErrors());
+        verify(repository).forwardToUsers(nearby, post);
+        verify(repository, never()).fetchMatchingNearbyPosts(any(), any(), any());
+    }
+
+    @Test
+    void deliverQueuedMissingPost()
+    {
+        Feed feed = new Feed(discovery, repository);
+
+        ResultObject result = feed.deliverQueued("p1");
+
+        assertThat(result.getErrors().get("post"), equalTo(Feed.POST_MISSING));
+        verify(repository, never()).forwardToUsers(any(), any());
+    }
+
+    private Feed feedReadingWith(Feed.ReadStrategy strategy, MetricRegistry metrics)
+    {
+        return new Feed(discovery, repository, null, FanoutPolicy.unbounded(), mock(FanoutExecutor.class), metrics,
+                        null, strategy);
+    }
+
+    @Test
+    void timelineStrategyReadsTheTimeline()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Feed feed = feedReadingWith(Feed.ReadStrategy.TIMELINE, metrics);
+        UserLocation location = new UserLocation("uid", 12, 12, 10);
+        when(discovery.getUserLocation("uid")).thenReturn(new UserLocationResult(location));
+        when(repository.findTimelineForUser(eq(location), any()))
+                .thenReturn(Arrays.asList(new Post("p1", null, LocalDateTime.now())));
+
+        PostResults results = feed.fetchRequestsForUser("uid");
+
+        Assertions.assertThat(results.getPosts()).extracting("id").containsExactly("p1");
+        verify(repository, never()).findAllForUser(any());
+        verify(discovery, never()).lookupNearbyUsersByLocation(any());
+        assertThat(metrics.snapshot().get("feed.read.timeline.count"), equalTo(1L));
+    }
+
+    @Test
+    void fallbackStrategyQueriesGeoWhenTimelineIsEmpty()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Feed feed = feedReadingWith(Feed.ReadStrategy.TIMELINE_FALLBACK, metrics);
+        UserLocation location = new UserLocation("uid", 12, 12, 10);
+        when(discovery.getUserLocation("uid")).thenReturn(new UserLocationResult(location));
+        when(repository.findTimelineForUser(eq(location), any())).thenReturn(new ArrayList<>());
+        when(repository.findAllForUser(location))
+                .thenReturn(Arrays.asList(new Post("p1", null, LocalDateTime.now())));
+
+        PostResults results = feed.fetchRequestsForUser("uid");
+
+        Assertions.assertThat(results.getPosts()).extracting("id").containsExactly("p1");
+        assertThat(metrics.count("feed.read.fallback"), equalTo(1L));
+    }
+
+    @Test
+    void fallbackStrategyQueriesGeoWhenTimelineFails()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Feed feed = feedReadingWith(Feed.ReadStrategy.TIMELINE_FALLBACK, metrics);
+        UserLocation location = new UserLocation("uid", 12, 12, 10);
+        when(discovery.getUserLocation("uid")).thenReturn(new UserLocationResult(location));
+        when(repository.findTimelineForUser(eq(location), any())).thenThrow(new RuntimeException("Redis is down"));
+        when(repository.findAllForUser(location))
+                .thenReturn(Arrays.asList(new Post("p1", null, LocalDateTime.now())));
+
+        PostResults results = feed.fetchRequestsForUser("uid");
+
+        Assertions.assertThat(results.getPosts()).extracting("id").containsExactly("p1");
+        assertThat(metrics.count("feed.read.fallback"), equalTo(1L));
+        assertThat(metrics.snapshot().get("feed.read.geo.count"), equalTo(1L));
+    }
+
+    private Feed feedRematerializingAfter(double distance, FanoutExecutor executor, MetricRegistry metrics)
+    {
+        return new Feed(discovery, repository, null, FanoutPolicy.unbounded(), executor, metrics, null,
+                        Feed.ReadStrategy.TIMELINE, distance);
+    }
+
+    private static FanoutExecutor inlineExecutor()
+    {
+        FanoutExecutor executor = mock(FanoutExecutor.class);
+        when(executor.run(any())).thenAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return CompletableFuture.completedFuture(null);
+        });
+        return executor;
+    }
+
+    @Test
+    void moveRematerializesOnlyTheChangedNeighbours()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Feed feed = feedRematerializingAfter(0.5, inlineExecutor(), metrics);
+        UserLocation previous = new UserLocation("test", 22.50, 88.34, 2);
+        UserLocation current = new UserLocation("test", 22.52, 88.34, 2);
+        when(discovery.lookupNearbyUsersByLocation(previous)).thenReturn(new UserLocationsResult(Arrays.asList(
+                new UserLocation("a", 22.50, 88.34, 2), new UserLocation("b", 22.51, 88.34, 2))));
+        when(discovery.lookupNearbyUsersByLocation(current)).thenReturn(new UserLocationsResult(Arrays.asList(
+                new UserLocation("b", 22.51, 88.34, 2), new UserLocation("c", 22.52, 88.34, 2))));
+
+        feed.refreshAfterMove(previous, current);
+
+        verify(repository).rematerialize(current, Collections.singleton("c"), Collections.singleton("a"));
+        assertThat(metrics.count("feed.rematerialize.count"), equalTo(1L));
+    }
+
+    @Test
+    void rematerializingOnlyWithDistanceSet()
+    {
+        assertThat(feedRematerializingAfter(0.5, inlineExecutor(), new MetricRegistry()).isRematerializing(),
+                   equalTo(true));
+        assertThat(feedRematerializingAfter(0, inlineExecutor(), new MetricRegistry()).isRematerializing(),
+                   equalTo(false));
+    }
+
+    @Test
+    void smallMoveLeavesTimelineAlone()
+    {
+        FanoutExecutor executor = inlineExecutor();
+        Feed feed = feedRematerializingAfter(0.5, executor, new MetricRegistry());
+
+        // About 110 metres north, same radius
+        feed.refreshAfterMove(new UserLocation("test", 22.500, 88.34, 2), new UserLocation("test", 22.501, 88.34, 2));
+
+        verify(executor, never()).run(any());
+        verify(repository, never()).rematerialize(any(), any(), any());
+    }
+
+    @Test
+    void radiusChangeRematerializes()
+    {
+        Feed feed = feedRematerializingAfter(0.5, inlineExecutor(), new MetricRegistry());
+        UserLocation previous = new UserLocation("test", 22.50, 88.34, 2);
+        UserLocation current = new UserLocation("test", 22.50, 88.34, 5);
+        when(discovery.lookupNearbyUsersByLocation(previous)).thenReturn(new UserLocationsResult(new ArrayList<>()));
+        when(discovery.lookupNearbyUsersByLocation(current)).thenReturn(
+                new UserLocationsResult(Arrays.asList(new UserLocation("a", 22.53, 88.34, 5))));
+
+        feed.refreshAfterMove(previous, current);
+
+        verify(repository).rematerialize(current, Collections.singleton("a"), Collections.emptySet());
+    }
+
+    @Test
+    void rematerializationDisabledByDefault()
+    {
+        Feed feed = new Feed(discovery, repository);
+
+        feed.refreshAfterMove(new UserLocation("test", 22.50, 88.34, 2), new UserLocation("test", 23.50, 88.34, 9));
+
+        verify(discovery, never()).lookupNearbyUsersByLocation(any());
+        verify(repository, never()).rematerialize(any(), any(), any());
+    }
+
+    @Test
+    void timelineDroppedWhenExecutorIsFull()
+    {
+        FanoutExecutor executor = mock(FanoutExecutor.class);
+        when(executor.run(any())).thenThrow(new RejectedExecutionException());
+        MetricRegistry metrics = new MetricRegistry();
+        Feed feed = feedRematerializingAfter(0.5, executor, metrics);
+
+        feed.refreshAfterMove(new UserLocation("test", 22.50, 88.34, 2), new UserLocation("test", 22.60, 88.34, 2));
+
+        verify(repository).dropTimeline("test");
+        verify(repository, never()).rematerialize(any(), any(), any());
+        assertThat(metrics.count("feed.rematerialize.dropped"), equalTo(1L));
+    }
+
+    @Test
+    void batchFetchReadsTimelinesTogether()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Feed feed = feedReadingWith(Feed.ReadStrategy.TIMELINE_FALLBACK, metrics);
+        UserLocation first = new UserLocation("a", 20, 20, 10);
+        UserLocation second = new UserLocation("b", 20, 20, 10);
+        Map<String, UserLocationResult> locations = new LinkedHashMap<>();
+        locations.put("a", new UserLocationResult(first));
+        locations.put("gone", missingUser());
+        locations.put("b", new UserLocationResult(second));
+        when(discovery.getUserLocations(Arrays.asList("a", "gone", "b"))).thenReturn(locations);
+        Map<String, List<Post>> timelines = new HashMap<>();
+        timelines.put("a", Collections.singletonList(new Post("p1", first, LocalDateTime.now())));
+        timelines.put("b", new ArrayList<>());
+        when(repository.findTimelinesForUsers(eq(Arrays.asList(first, second)), any())).thenReturn(timelines);
+        when(repository.findAllForUser(second)).thenReturn(
+                Collections.singletonList(new Post("p2", first, LocalDateTime.now())));
+
+        Map<String, PostResults> results = feed.fetchRequestsForUsers(Arrays.asList("a", "gone", "b"));
+
+        assertThat(new ArrayList<>(results.keySet()), equalTo(Arrays.asList("a", "gone", "b")));
+        Assertions.assertThat(results.get("a").getPosts()).extracting("id").containsExactly("p1");
+        assertTrue(results.get("gone").hasErrors());
+        Assertions.assertThat(results.get("b").getPosts()).extracting("id").containsExactly("p2");
+        verify(repository, never()).findAllForUser(first);
+        verify(discovery, never()).getUserLocation(anyString());
+        assertThat(metrics.count("feed.read.fallback"), equalTo(1L));
+    }
+
+    @Test
+    void batchFetchWithGeoStrategyQueriesEachUser()
+    {
+        Feed feed = feedReadingWith(Feed.ReadStrategy.GEO, new MetricRegistry());
+        UserLocation user = new UserLocation("a", 20, 20, 10);
+        when(discovery.getUserLocations(Collections.singletonList("a")))
+                .thenReturn(Collections.singletonMap("a", new UserLocationResult(user)));
+        when(repository.findAllForUser(user)).thenReturn(
+                Collections.singletonList(new Post("p1", user, LocalDateTime.now())));
+
+        Map<String, PostResults> results = feed.fetchRequestsForUsers(Collections.singletonList("a"));
+
+        Assertions.assertThat(results.get("a").getPosts()).extracting("id").containsExactly("p1");
+        verify(repository, never()).findTimelinesForUsers(any(), any());
+    }
+
+    private static UserLocationResult missingUser()
+    {
+        Notification note = new Notification();
+        note.addError("userId", "The supplied User ID doesn't exist");
+        UserLocationResult result = new UserLocationResult();
+        result.setNotification(note);
+        return result;
+    }
+
+    @Test
+    void readStrategyByName()
+    {
+        assertThat(Feed.ReadStrategy.from("timeline_fallback"), equalTo(Feed.ReadStrategy.TIMELINE_FALLBACK));
+        assertThat(Feed.ReadStrategy.from("Timeline"), equalTo(Feed.ReadStrategy.TIMELINE));
+        assertThat(Feed.ReadStrategy.from("nonsense"), equalTo(Feed.ReadStrategy.GEO));
+        assertThat(Feed.ReadStrategy.from(null), equalTo(Feed.ReadStrategy.GEO));
+    }
+}